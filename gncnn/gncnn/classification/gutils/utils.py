@@ -3,7 +3,10 @@ From: https://github.com/Nicolik/MESCnn
 Modified by: Israel Mateos-Aparicio-Ruiz
 Modifications:
     - Removed str2bool function
+    - Added set_num_threads function
 """
+import os
+
 import torch
 
 
@@ -14,3 +17,15 @@ def get_proper_device():
     #     return torch.device("mps")
     else:
         return torch.device("cpu")
+
+
+def set_num_threads():
+    """Limit the CPU threads used by torch to GNCNN_NUM_THREADS, which is set
+    when several processes run at the same time. Returns the number of
+    threads, or None if it is not limited."""
+    num_threads = os.environ.get('GNCNN_NUM_THREADS')
+    if not num_threads:
+        return None
+    num_threads = max(1, int(num_threads))
+    torch.set_num_threads(num_threads)
+    return num_threads
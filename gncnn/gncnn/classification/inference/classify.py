@@ -8,9 +8,17 @@ Modifications:
     - Added top-3 prediction (instead of top-1) for the 12 classes
     - Added most predicted class to the summary report
     - Removed download of the models (only local models are used)
+    - Added reading the crops from the region server of the QuPath extension
+    - Added reporting the input size of the classifier, so the crops are
+      exported at that resolution
+    - Added batched inference, with the crops read and preprocessed by a pool
+      of loader threads ahead of the models
 """
 import logging
 import os
+import time
+from collections import deque
+from concurrent.futures import ThreadPoolExecutor
 
 import numpy as np
 import torch
@@ -20,7 +28,8 @@ from mmcls.apis import init_model
 from mmcls.datasets.pipelines import Compose
 from mmcv.parallel import collate, scatter
 
-from gncnn.classification.gutils.utils import get_proper_device
+from gncnn import events, region_client
+from gncnn.classification.gutils.utils import get_proper_device, set_num_threads
 from gncnn.classification.inference.paths import get_logs_path
 from gncnn.definitions import ROOT_DIR
 
@@ -32,29 +41,127 @@ def get_most_predicted_topk_classes(scores, topk):
     return topk_labels
 
 
-def main():
+def parse_args(argv=None):
     import argparse
     parser = argparse.ArgumentParser(description='Classifiers Inference for Glomeruli Task')
     parser.add_argument('-r', '--root-path', type=str, help='Root path', default=ROOT_DIR)
-    parser.add_argument('-e', '--export-dir', type=str, help='Directory to export report', required=True)
+    parser.add_argument('-e', '--export-dir', type=str, help='Directory to export report', required=False)
     parser.add_argument('--netB', type=str, help='Network architecture for Sclerotic vs. Non-Sclerotic', required=True)
     parser.add_argument('--netM', type=str, help='Network architecture for 12 classes (Non-sclerotic)', required=False)
     parser.add_argument('--multi', action='store_true', help='Use 12-class classification after Sclerotic vs. Non-Sclerotic classification', default=False)
     parser.add_argument('--topk', type=int, help='Top k classes to consider for 12-class classification', default=1)
-    args = parser.parse_args()
+    parser.add_argument('-w', '--wsi', type=str, nargs='*', help='WSI IDs to classify (all exported WSIs by default)', default=None)
+    parser.add_argument('--region-server', action='store_true', help='Read the listed crops from the region server, instead of the exported images', default=False)
+    parser.add_argument('-b', '--batch-size', type=int, help='Number of crops classified in each forward pass', default=16)
+    parser.add_argument('--loader-workers', type=int, help='Threads which read and preprocess the crops (default: from GNCNN_NUM_THREADS, up to 4)', default=None)
+    parser.add_argument('--input-size', action='store_true', help='Report the input size of the --netB classifier and exit', default=False)
+    args = parser.parse_args(argv)
+
+    if not args.input_size and args.export_dir is None:
+        parser.error("--export-dir is required")
+    if args.batch_size < 1:
+        parser.error("--batch-size must be at least 1")
 
     if args.multi and args.netM is None:
         parser.error("--multi requires --netM")
 
-    net_name_dict = {
-        "B": args.netB,
-        "M": args.netM if args.multi else None,
-    }
+    return args
+
+
+def get_input_size(root_path, net_b):
+    """Return the side of the images given to the --netB classifier, from the
+    Resize step of its test pipeline (its shorter side if it keeps the aspect
+    ratio), or None if the pipeline does not resize the images.
+
+    Only the config is read, not the weights.
+    """
+    from mmcv import Config
+
+    config_path = os.path.join(get_logs_path(root_path), 'binary', net_b, f'{net_b}_B_config.py')
+    cfg = Config.fromfile(config_path)
+    crop_size = None
+    for step in cfg.data.test.pipeline:
+        if step['type'] == 'Resize':
+            size = step['size']
+            if isinstance(size, int):
+                return size
+            # (h, w), or (size, -1) to keep the aspect ratio
+            return max(side for side in size if side > 0)
+        if step['type'] == 'CenterCrop':
+            crop_size = step['crop_size']
+            crop_size = crop_size if isinstance(crop_size, int) else max(crop_size)
+    return crop_size
+
+
+def get_loader_workers(args):
+    """Return the number of loader threads: the given one, or the threads of
+    the process up to 4, as the models use them too."""
+    if args.loader_workers is not None:
+        return max(1, args.loader_workers)
+    return max(1, min(4, int(os.environ.get('GNCNN_NUM_THREADS') or os.cpu_count() or 1)))
+
+
+def load_batches(items, load_item, batch_size, workers):
+    """Yield the items in batches of (item, data), with the items loaded by a
+    pool of threads. At most two batches are loaded ahead of the one being
+    classified, so the memory does not grow with the number of crops.
+    """
+    with ThreadPoolExecutor(max_workers=workers, thread_name_prefix='gncnn-loader') as pool:
+        pending = deque()
+        it = iter(items)
+        exhausted = False
+        while True:
+            while not exhausted and len(pending) < 3 * batch_size:
+                item = next(it, None)
+                if item is None:
+                    exhausted = True
+                    break
+                pending.append((item, pool.submit(load_item, item)))
+            if not pending:
+                return
+            batch = [pending.popleft() for _ in range(min(batch_size, len(pending)))]
+            yield [(item, future.result()) for item, future in batch]
+
+
+def forward(model, device, batch):
+    """Classify a batch of preprocessed crops, returning their scores."""
+    data = collate(batch, samples_per_gpu=len(batch))
+    if next(model.parameters()).is_cuda:
+        # Scatter to specified GPU
+        data = scatter(data, [device])[0]
+    with torch.no_grad():
+        return np.asarray(model(return_loss=False, **data))
+
+
+def load_models(root_path, net_b, net_m=None):
+    """Load the classification models, which can be reused for several runs.
+
+    Returns the binary model, the 12-class model (None if net_m is None) and
+    the device they run on.
+    """
+    set_num_threads()
+    gdc_log_dir = get_logs_path(root_path)
+    device = get_proper_device()
+
+    # Model 1: Sclerotic vs. Non-Sclerotic
+    net_path = os.path.join(gdc_log_dir, 'binary', net_b, f'{net_b}_B_ckpt.pth')
+    config_path = os.path.join(gdc_log_dir, 'binary', net_b, f'{net_b}_B_config.py')
+    bin_model = init_model(config_path, net_path, device=device)
+
+    # Model 2: 12 classes
+    mult_model = None
+    if net_m is not None:
+        net_path = os.path.join(gdc_log_dir, '12classes', net_m, f'{net_m}_M_ckpt.pth')
+        config_path = os.path.join(gdc_log_dir, '12classes', net_m, f'{net_m}_M_config.py')
+        mult_model = init_model(config_path, net_path, device=device)
+
+    return bin_model, mult_model, device
 
-    root_path = args.root_path
+
+def classify_wsis(bin_model, mult_model, device, args):
+    """Classify the exported glomeruli of each WSI and write the reports."""
     export_dir = args.export_dir
 
-    gdc_log_dir = get_logs_path(root_path)
     crop_dir = os.path.join(export_dir, "Temp", "ann-export-output")
 
     if not os.path.exists(crop_dir):
@@ -65,7 +172,13 @@ def main():
     report_dir = os.path.join(export_dir, "Report", f"B-{args.netB}_M-{args.netM}")
     os.makedirs(report_dir, exist_ok=True)
 
-    wsi_ids = os.listdir(crop_dir)
+    if args.region_server:
+        # Each WSI has a list of crops instead of a folder of images
+        wsi_ids = [f[:-len('.crops')] for f in os.listdir(crop_dir) if f.endswith('.crops')]
+    else:
+        wsi_ids = [f for f in os.listdir(crop_dir) if os.path.isdir(os.path.join(crop_dir, f))]
+    if args.wsi is not None:
+        wsi_ids = [wsi_id for wsi_id in wsi_ids if wsi_id in args.wsi]
     if len(wsi_ids) == 0:
         logging.warning("No WSI IDs found in the export directory")
         return
@@ -78,9 +191,31 @@ def main():
 
     output_file_summary_csv = os.path.join(report_dir, "summary.csv")
 
+    # List the crops upfront, so the progress covers all the WSIs
+    images_by_wsi = {}
+    for wsi_id in wsi_ids:
+        if args.region_server:
+            images_by_wsi[wsi_id] = region_client.read_region_list(os.path.join(crop_dir, f"{wsi_id}.crops"))
+        else:
+            prediction_dir = os.path.join(crop_dir, wsi_id)
+            images_by_wsi[wsi_id] = [os.path.join(prediction_dir, f) for f in os.listdir(prediction_dir)
+                                     if f.endswith((".png", ".jpg"))]
+    total_images = sum(len(images_list) for images_list in images_by_wsi.values())
+    done_images = 0
+    events.emit('start', command='gncnn-classify', wsis=wsi_ids, total=total_images)
+
+    # Crops read from the region server are already loaded, as mmcls does for
+    # arrays
+    pipeline = bin_model.cfg.data.test.pipeline
+    if args.region_server:
+        pipeline = [step for step in pipeline if step['type'] != 'LoadImageFromFile']
+    comp_pipeline = Compose(pipeline)
+    loader_workers = get_loader_workers(args)
+    logging.info(f"Classifying with batches of {args.batch_size} crops and {loader_workers} loader threads")
+
     for wsi_id in wsi_ids:
         output_file_csv = os.path.join(report_dir, f"{wsi_id}.csv")
-        prediction_dir = os.path.join(crop_dir, wsi_id)
+        wsi_start_time = time.time()
 
         gdc_dict = {
             'filename': [],
@@ -103,86 +238,55 @@ def main():
             'SLEGN-IV-prob': [],
         }
 
-        # Model 1: Sclerotic vs. Non-Sclerotic
-        net_name = net_name_dict["B"]
-        net_path = os.path.join(gdc_log_dir, 'binary', net_name, f'{net_name}_B_ckpt.pth')
-        config_path = os.path.join(gdc_log_dir, 'binary', net_name, f'{net_name}_B_config.py')
-
-        device = get_proper_device()
-        bin_model = init_model(config_path, net_path, device=device)
-
-        # Model 2: 12 classes
-        if args.multi:
-            net_name = net_name_dict["M"]
-            net_path = os.path.join(gdc_log_dir, '12classes', net_name, f'{net_name}_M_ckpt.pth')
-            config_path = os.path.join(gdc_log_dir, '12classes', net_name, f'{net_name}_M_config.py')
-            
-            mult_model = init_model(config_path, net_path, device=device)
-        
-        images_list = os.listdir(prediction_dir)
-        images_list = [os.path.join(prediction_dir, f) for f in images_list if f.endswith(".png")]
-        for image_path in images_list:
+        def load_item(image):
             # Build the data pipeline
-            data = dict(img_info=dict(filename=image_path), img_prefix=None)
-            pipeline = bin_model.cfg.data.test.pipeline
-            comp_pipeline = Compose(pipeline)
-            data = comp_pipeline(data)
-            data = collate([data], samples_per_gpu=1)
-            if next(bin_model.parameters()).is_cuda:
-                # Scatter to specified GPU
-                data = scatter(data, [device])[0]
+            if args.region_server:
+                _, downsample, x, y, w, h = image
+                data = dict(img=region_client.read_region(wsi_id, x, y, w, h, downsample))
+            else:
+                data = dict(img_info=dict(filename=image), img_prefix=None)
+            return comp_pipeline(data)
 
+        multi_classes = ['ABMGN', 'ANCA', 'C3-GN', 'CryoglobulinemicGN', 'DDD', 'Fibrillary', 'IAGN', 'IgAGN',
+                         'MPGN', 'Membranous', 'PGNMID', 'SLEGN-IV']
+        images_list = images_by_wsi[wsi_id]
+        for batch in load_batches(images_list, load_item, args.batch_size, loader_workers):
             # Forward the sclerotic vs. non-sclerotic model
-            with torch.no_grad():
-                scores = bin_model(return_loss=False, **data)
-            # Collect the predicted class and the scores
-            pred_label = np.argsort(scores, axis=1)[0][::-1]
-            pred_class = bin_model.CLASSES[pred_label[0]][3:]
-            scores = scores[0]
-            gdc_dict['NoSclerotic-prob'].append(scores[0])
-            gdc_dict['Sclerotic-prob'].append(scores[1])
-
-            if not args.multi or pred_class == "Sclerotic":
-                # Append NaNs for the 12 classes
-                gdc_dict['ABMGN-prob'].append(np.nan)
-                gdc_dict['ANCA-prob'].append(np.nan)
-                gdc_dict['C3-GN-prob'].append(np.nan)
-                gdc_dict['CryoglobulinemicGN-prob'].append(np.nan)
-                gdc_dict['DDD-prob'].append(np.nan)
-                gdc_dict['Fibrillary-prob'].append(np.nan)
-                gdc_dict['IAGN-prob'].append(np.nan)
-                gdc_dict['IgAGN-prob'].append(np.nan)
-                gdc_dict['MPGN-prob'].append(np.nan)
-                gdc_dict['Membranous-prob'].append(np.nan)
-                gdc_dict['PGNMID-prob'].append(np.nan)
-                gdc_dict['SLEGN-IV-prob'].append(np.nan)
-            else:
-                # Forward the 12 classes model
-                with torch.no_grad():
-                    scores = mult_model(return_loss=False, **data)
-                # Collect the predicted class and the scores
-                pred_label = np.argsort(scores, axis=1)[0][::-1]
-                # pred_class = mult_model.CLASSES[pred_label[0]][3:]
-                topk_labels = pred_label[:args.topk]
-                pred_class = [mult_model.CLASSES[l][3:] for l in topk_labels]
-                scores = scores[0]
-                gdc_dict['ABMGN-prob'].append(scores[0])
-                gdc_dict['ANCA-prob'].append(scores[1])
-                gdc_dict['C3-GN-prob'].append(scores[2])
-                gdc_dict['CryoglobulinemicGN-prob'].append(scores[3])
-                gdc_dict['DDD-prob'].append(scores[4])
-                gdc_dict['Fibrillary-prob'].append(scores[5])
-                gdc_dict['IAGN-prob'].append(scores[6])
-                gdc_dict['IgAGN-prob'].append(scores[7])
-                gdc_dict['MPGN-prob'].append(scores[8])
-                gdc_dict['Membranous-prob'].append(scores[9])
-                gdc_dict['PGNMID-prob'].append(scores[10])
-                gdc_dict['SLEGN-IV-prob'].append(scores[11])
-
-                pred_class = " | ".join(pred_class)
-            
-            gdc_dict['filename'].append(image_path)
-            gdc_dict['predicted-class'].append(pred_class)
+            bin_scores = forward(bin_model, device, [data for _, data in batch])
+            pred_classes = [bin_model.CLASSES[np.argsort(scores)[::-1][0]][3:] for scores in bin_scores]
+
+            # Forward the 12 classes model for the non-sclerotic crops only
+            mult_scores = {}
+            if args.multi:
+                indices = [i for i, pred_class in enumerate(pred_classes) if pred_class != "Sclerotic"]
+                if indices:
+                    scores = forward(mult_model, device, [batch[i][1] for i in indices])
+                    mult_scores = dict(zip(indices, scores))
+
+            for i, (image, _) in enumerate(batch):
+                image_path = image[0] if args.region_server else image
+                gdc_dict['NoSclerotic-prob'].append(bin_scores[i][0])
+                gdc_dict['Sclerotic-prob'].append(bin_scores[i][1])
+                pred_class = pred_classes[i]
+
+                if i not in mult_scores:
+                    # Append NaNs for the 12 classes
+                    for class_name in multi_classes:
+                        gdc_dict[f'{class_name}-prob'].append(np.nan)
+                else:
+                    # Collect the predicted class and the scores
+                    scores = mult_scores[i]
+                    topk_labels = np.argsort(scores)[::-1][:args.topk]
+                    pred_class = " | ".join(mult_model.CLASSES[l][3:] for l in topk_labels)
+                    for label, class_name in enumerate(multi_classes):
+                        gdc_dict[f'{class_name}-prob'].append(scores[label])
+
+                gdc_dict['filename'].append(image_path)
+                gdc_dict['predicted-class'].append(pred_class)
+
+                done_images += 1
+                events.emit('crop_finished', wsi=wsi_id, crop=os.path.basename(image_path), done=done_images,
+                            total=total_images)
 
         gdc_df = pd.DataFrame(data=gdc_dict)
         gdc_df.to_csv(output_file_csv, sep=';', index=False)
@@ -219,10 +323,25 @@ def main():
         wsi_dict['most-predicted-class'].append(most_predicted_class)
         wsi_dict['ratio-most-predicted-class'].append(f'{count_most_predicted_class} | {total_crops}')
 
+        events.emit('timing', name='classification', wsi=wsi_id, crops=total_crops,
+                    seconds=round(time.time() - wsi_start_time, 3))
+
 
     wsi_df = pd.DataFrame(data=wsi_dict)
     wsi_df.to_csv(output_file_summary_csv, sep=';', index=False)
 
+    events.emit('end', command='gncnn-classify', wsis=wsi_ids)
+
+
+@events.report_errors
+def main(argv=None):
+    args = parse_args(argv)
+    if args.input_size:
+        events.emit('input_size', size=get_input_size(args.root_path, args.netB))
+        return
+    bin_model, mult_model, device = load_models(args.root_path, args.netB, args.netM if args.multi else None)
+    classify_wsis(bin_model, mult_model, device, args)
+
 
 if __name__ == '__main__':
     main()
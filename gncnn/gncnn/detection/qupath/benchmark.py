@@ -0,0 +1,99 @@
+"""Measure the throughput of gncnn-segment as the number of processes run at
+the same time varies.
+
+The cores are divided between the processes as the QuPath extension does,
+setting OMP_NUM_THREADS, MKL_NUM_THREADS and GNCNN_NUM_THREADS for each
+process. The tiles must already be in the export directory
+(Temp/tiler-output/Tiles/<wsi>); the WSIs are distributed between the
+processes, so there should be at least as many WSIs as processes.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import argparse
+import csv
+import os
+import subprocess
+import sys
+import time
+from concurrent.futures import ThreadPoolExecutor
+
+
+def parse_args(argv=None):
+    parser = argparse.ArgumentParser(description='Benchmark gncnn-segment with several processes at the same time')
+    parser.add_argument('-e', '--export', type=str, help='path/to/export, containing the tiles', required=True)
+    parser.add_argument('-w', '--wsi', type=str, nargs='*', help='WSIs to segment (all tiled WSIs by default)',
+                        default=None)
+    parser.add_argument('-p', '--processes', type=int, nargs='+', help='Numbers of processes to measure',
+                        default=[1, 2, 4])
+    parser.add_argument('-m', '--model', type=str, help='Model to use for inference', default="cascade_R_50_FPN_1x")
+    parser.add_argument('-c', '--train-config', type=str, help='I=Internal/E=External/A=All', default="external")
+    parser.add_argument('--undersampling', type=float,
+                        help='Undersampling factor of tiles, unless their name contains it as d=', default=1)
+    parser.add_argument('--pixel-size', type=float, help='Pixel size of the WSI', default=0.5)
+    parser.add_argument('-b', '--batch-size', type=int, help='Number of tiles in each forward pass', default=2)
+    parser.add_argument('-o', '--output', type=str, help='path/to/results.csv', default=None)
+
+    return parser.parse_args(argv)
+
+
+def get_environment(processes):
+    """Environment of each process, with its share of the cores."""
+    threads = str(max(1, (os.cpu_count() or 1) // processes))
+    env = dict(os.environ)
+    env['OMP_NUM_THREADS'] = threads
+    env['MKL_NUM_THREADS'] = threads
+    env['GNCNN_NUM_THREADS'] = threads
+    env.pop('GNCNN_EVENTS', None)
+    return env
+
+
+def segment(args, wsi, env):
+    command = [sys.executable, '-m', 'gncnn.detection.qupath.segment', '--wsi', wsi, '--export', args.export,
+               '--model', args.model, '--train-config', args.train_config,
+               '--undersampling', str(args.undersampling), '--pixel-size', str(args.pixel_size),
+               '--batch-size', str(args.batch_size)]
+    result = subprocess.run(command, env=env, stdout=subprocess.DEVNULL, stderr=subprocess.PIPE, text=True)
+    if result.returncode != 0:
+        raise RuntimeError(f"gncnn-segment failed for {wsi}:\n{result.stderr}")
+
+
+def run_round(args, wsis, processes):
+    """Segment every WSI with the given number of processes at the same
+    time, and return the elapsed seconds."""
+    env = get_environment(processes)
+    start_time = time.time()
+    with ThreadPoolExecutor(max_workers=processes) as executor:
+        # Raise the first error, if any
+        list(executor.map(lambda wsi: segment(args, wsi, env), wsis))
+    return time.time() - start_time
+
+
+def main(argv=None):
+    args = parse_args(argv)
+
+    tiles_dir = os.path.join(args.export, 'Temp', 'tiler-output', 'Tiles')
+    wsis = args.wsi if args.wsi else sorted(os.listdir(tiles_dir))
+    tiles = sum(len(os.listdir(os.path.join(tiles_dir, wsi))) for wsi in wsis)
+    print(f"Benchmarking {len(wsis)} WSIs with {tiles} tiles on {os.cpu_count()} cores")
+
+    results = []
+    for processes in args.processes:
+        seconds = run_round(args, wsis, processes)
+        results.append({
+            'processes': processes,
+            'threads-per-process': max(1, (os.cpu_count() or 1) // processes),
+            'seconds': round(seconds, 2),
+            'tiles-per-second': round(tiles / seconds, 3),
+            'speedup': round(results[0]['seconds'] / seconds, 2) if results else 1.0,
+        })
+        print(results[-1])
+
+    if args.output is not None:
+        with open(args.output, 'w', newline='') as f:
+            writer = csv.DictWriter(f, fieldnames=list(results[0].keys()), delimiter=';')
+            writer.writeheader()
+            writer.writerows(results)
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,87 @@
+"""Compare the glomeruli detected in a WSI with two settings, e.g. two tile
+overlaps, exported from QuPath as GeoJSON.
+
+The detections of the reference are matched one to one with those of the
+other run, in decreasing order of the intersection over union (IoU) of their
+bounding boxes. The recall is the fraction of the reference glomeruli matched,
+and the precision the fraction of the other glomeruli matched.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import argparse
+import json
+
+import numpy as np
+
+
+def parse_args(argv=None):
+    parser = argparse.ArgumentParser(description='Compare the glomeruli detected with two settings')
+    parser.add_argument('reference', type=str, help='path/to/reference.geojson, e.g. with a 2048 px overlap')
+    parser.add_argument('other', type=str, help='path/to/other.geojson, e.g. with a 512 px overlap')
+    parser.add_argument('--iou', type=float, help='Minimum IoU of the boxes of matched glomeruli', default=0.5)
+
+    return parser.parse_args(argv)
+
+
+def read_boxes(path):
+    """Return the bounding box [x1, y1, x2, y2] of each feature of a GeoJSON
+    file, as a FeatureCollection or a list of features."""
+    with open(path) as f:
+        data = json.load(f)
+    features = data['features'] if isinstance(data, dict) else data
+    boxes = []
+    for feature in features:
+        geometry = feature['geometry']
+        polygons = geometry['coordinates'] if geometry['type'] == 'MultiPolygon' else [geometry['coordinates']]
+        # Only the exterior rings bound the glomerulus
+        points = np.concatenate([np.asarray(polygon[0], dtype=float) for polygon in polygons])
+        boxes.append([points[:, 0].min(), points[:, 1].min(), points[:, 0].max(), points[:, 1].max()])
+    return np.asarray(boxes, dtype=float).reshape(-1, 4)
+
+
+def box_iou(a, b):
+    """Return the IoU of each box of a with each box of b."""
+    x1 = np.maximum(a[:, None, 0], b[None, :, 0])
+    y1 = np.maximum(a[:, None, 1], b[None, :, 1])
+    x2 = np.minimum(a[:, None, 2], b[None, :, 2])
+    y2 = np.minimum(a[:, None, 3], b[None, :, 3])
+    intersection = np.maximum(0.0, x2 - x1) * np.maximum(0.0, y2 - y1)
+    area_a = (a[:, 2] - a[:, 0]) * (a[:, 3] - a[:, 1])
+    area_b = (b[:, 2] - b[:, 0]) * (b[:, 3] - b[:, 1])
+    union = area_a[:, None] + area_b[None, :] - intersection
+    return np.divide(intersection, union, out=np.zeros_like(intersection), where=union > 0)
+
+
+def match(reference, other, threshold):
+    """Return the number of one-to-one matches with an IoU of at least the
+    threshold, taking the pairs with the highest IoU first."""
+    if len(reference) == 0 or len(other) == 0:
+        return 0
+    iou = box_iou(reference, other)
+    pairs = np.argwhere(iou >= threshold)
+    pairs = pairs[np.argsort(-iou[pairs[:, 0], pairs[:, 1]], kind='stable')]
+    used_reference = set()
+    used_other = set()
+    for i, j in pairs:
+        if i not in used_reference and j not in used_other:
+            used_reference.add(i)
+            used_other.add(j)
+    return len(used_reference)
+
+
+def main(argv=None):
+    args = parse_args(argv)
+
+    reference = read_boxes(args.reference)
+    other = read_boxes(args.other)
+    matched = match(reference, other, args.iou)
+
+    recall = matched / len(reference) if len(reference) else 1.0
+    precision = matched / len(other) if len(other) else 1.0
+    print(f"Reference: {len(reference)} glomeruli, other: {len(other)} glomeruli, matched: {matched} "
+          f"(IoU >= {args.iou})")
+    print(f"Recall: {recall:.4f}, precision: {precision:.4f}")
+
+
+if __name__ == '__main__':
+    main()
@@ -7,16 +7,37 @@ Modifications:
     - Modified area computation to use pixel size
     - Added annotations export to GeoJSON
     - Added TorchScript support for Windows/MacOS
+    - Added reading the tiles from a memory-mapped ring buffer
+    - Added reading the tiles from the region server of the QuPath extension
+    - Added batched inference, with the tiles read by a prefetch thread and
+      the masks post-processed by a separate worker
+    - Masks are turned into polygons as soon as each tile is processed,
+      instead of being kept until the NMS, and the peak memory is reported
+    - Added writing the raw detections of each tile, to be merged by the
+      QuPath extension instead of the NMS of this module
+    - The raw detections record their tile, its size and whether they are
+      cut by its edge, so glomeruli split between tiles can be stitched
+    - Added reading the tiles of another tile list from the region server
+    - Added a persistent cache of the detections of each tile, so only new or
+      changed tiles are run through the model
+    - Added writing the raw detections to another path, e.g. those of the
+      coarse pass of the candidate cascade
 """
+import json
 import logging
 import os
+import queue
+import threading
 import tqdm
+from collections import deque
 import cv2
 import numpy as np
 import time
 import sys
+from concurrent.futures import ThreadPoolExecutor
 
 if 'linux' in sys.platform:
+    import torch
     from detectron2.engine import DefaultPredictor
     from gncnn.detection.model.config import build_model_config, CLI_MODEL_NAME_DICT, set_config, DEFAULT_SEGMENTATION_MODEL
 else:
@@ -38,10 +59,13 @@ else:
         return {"image": image, "height": height, "width": width}
 
 print("Loading local libraries...")
-from gncnn.classification.gutils.utils import get_proper_device
+from gncnn import events, region_client
+from gncnn.classification.gutils.utils import get_proper_device, set_num_threads
 from gncnn.definitions import ROOT_DIR
 from gncnn.detection.qupath.config import MIN_AREA_GLOMERULUS_UM, DETECTRON_SCORE_THRESHOLD
-from gncnn.detection.qupath.utils import get_dataset_dicts_validation, tile2xywh, mask2polygon, get_area_10x
+from gncnn.detection.qupath.utils import tile2xywh, tile2downsample, contours2polygon, get_area_10x, get_peak_rss_mb
+from gncnn.detection.qupath.tile_ring import TileRing
+from gncnn.detection.qupath.tile_cache import TileCache
 from gncnn.detection.qupath.nms import nms
 from gncnn.detection.qupath.download import download_detector
 from gncnn.detection.qupath.shapely2geojson import poly2geojson
@@ -49,28 +73,52 @@ from gncnn.detection.qupath.mask_ops import paste_masks_in_image
 print("Local libraries loaded!")
 
 
-def main():
+def parse_args(argv=None):
     import argparse
     parser = argparse.ArgumentParser(description='Segment Glomeruli with Detectron2 from WSI')
     parser.add_argument('-w', '--wsi', type=str, help='path/to/wsi', required=True)
     parser.add_argument('-e', '--export', type=str, help='path/to/export', required=True)
     parser.add_argument('-m', '--model', type=str, help='Model to use for inference', default="cascade_R_50_FPN_1x")
     parser.add_argument('-c', '--train-config', type=str, help='I=Internal/E=External/A=All', default="external")
-    parser.add_argument('--undersampling', type=int, help='Undersampling factor of tiles', default=4)
+    parser.add_argument('--undersampling', type=float,
+                        help='Undersampling factor of tiles, unless their name contains it as d=', default=4)
     parser.add_argument('--pixel-size', type=float, help='Pixel size of the WSI', default=0.5)
-
-    args = parser.parse_args()
-
-    print("undersampling: ", args.undersampling)
-    print("pixel size: ", args.pixel_size)
+    parser.add_argument('--ring', type=str, help='path/to/ring buffer of tiles, instead of the tile folder',
+                        default=None)
+    parser.add_argument('--region-server', action='store_true',
+                        help='Read the listed tiles from the region server, instead of the tile folder', default=False)
+    parser.add_argument('--tile-list', type=str,
+                        help='path/to/tile list read from the region server, instead of the one of the tiler',
+                        default=None)
+    parser.add_argument('-b', '--batch-size', type=int, help='Number of tiles given to the model in each forward pass',
+                        default=2)
+    parser.add_argument('--cache', type=str, help='path/to/cache of the detections of each tile', default=None)
+    parser.add_argument('--cache-size-mb', type=float, help='Maximum size of the cache of detections', default=512)
+    parser.add_argument('--raw-detections', action='store_true',
+                        help='Write the detections of each tile as they are found, without merging them with NMS',
+                        default=False)
+    parser.add_argument('--raw-detections-path', type=str,
+                        help='path/to/raw detections, instead of the detection folder of the WSI', default=None)
+
+    return parser.parse_args(argv)
+
+
+def load_predictor(model, train_config):
+    """Load the detection model, which can be reused for several WSIs.
+
+    Returns the predictor, the device it runs on and the path to its weights.
+    """
+    num_threads = set_num_threads()
+    if num_threads is not None:
+        cv2.setNumThreads(num_threads)
+        print(f"Using {num_threads} CPU threads")
 
     if 'linux' in sys.platform:
-        if args.model not in CLI_MODEL_NAME_DICT:
-            logging.warning(f"Model '{args.model}' not present, default to {DEFAULT_SEGMENTATION_MODEL}!")
-            args.model = DEFAULT_SEGMENTATION_MODEL
+        if model not in CLI_MODEL_NAME_DICT:
+            logging.warning(f"Model '{model}' not present, default to {DEFAULT_SEGMENTATION_MODEL}!")
+            model = DEFAULT_SEGMENTATION_MODEL
 
-        train_config = args.train_config
-        config_file, model_name = CLI_MODEL_NAME_DICT[args.model]
+        config_file, model_name = CLI_MODEL_NAME_DICT[model]
 
         cfg = build_model_config(config_file)
         config_dir = set_config(cfg, train_config)
@@ -78,8 +126,6 @@ def main():
         model_name = "cascade_mask_rcnn_R_50_FPN_1x"
         config_dir = 'external-validation'
 
-    undersampling = args.undersampling
-
     tool_dir = os.path.join(ROOT_DIR, 'gncnn')
     model_folder = os.path.join(tool_dir, 'detection', 'logs', model_name, config_dir)
     logs_dir = os.path.join(model_folder, 'output')
@@ -113,104 +159,376 @@ def main():
         cfg.MODEL.ROI_HEADS.SCORE_THRESH_TEST = DETECTRON_SCORE_THRESHOLD
         predictor = DefaultPredictor(cfg)
 
-    tile_dir = os.path.join(args.export, 'Temp', 'tiler-output', 'Tiles', args.wsi)
-    path_to_segment_output = os.path.join(args.export, 'Temp', 'segment-output')
+    return predictor, device, path_to_weights
+
+
+def open_tiles(args):
+    """Return the number of tiles of the WSI and an iterator of
+    (name, image, x_offset, y_offset, undersampling) for each of them, read
+    from the ring buffer or the region server if given, or from the tile
+    folder otherwise."""
+    if args.ring is not None:
+        print(f"Reading tiles from {args.ring}")
+        ring = TileRing(args.ring)
+
+        def ring_tiles():
+            try:
+                for x, y, w, h, downsample, image in ring:
+                    name = f"{args.wsi} [d={downsample:g},x={x},y={y},w={w},h={h}]"
+                    # The view is only valid until the next tile is requested,
+                    # and the tiles are prefetched ahead of the model, so the
+                    # writer could overwrite the slot of a queued tile
+                    yield name, np.array(image), x, y, downsample
+            finally:
+                ring.close()
+
+        return len(ring), ring_tiles()
+
+    if args.region_server:
+        tile_list = args.tile_list
+        if tile_list is None:
+            tile_list = os.path.join(args.export, 'Temp', 'tiler-output', f"{args.wsi}.tiles")
+        print(f"Reading tiles listed in {tile_list} from the region server")
+        regions = region_client.read_region_list(tile_list)
+
+        def server_tiles():
+            # The next tile is requested while the current one is processed
+            with ThreadPoolExecutor(max_workers=1) as executor:
+                futures = [executor.submit(region_client.read_region, args.wsi, x, y, w, h, d)
+                           for _, d, x, y, w, h in regions[:1]]
+                for i, (_, d, x, y, w, h) in enumerate(regions):
+                    if i + 1 < len(regions):
+                        _, nd, nx, ny, nw, nh = regions[i + 1]
+                        futures.append(executor.submit(region_client.read_region, args.wsi, nx, ny, nw, nh, nd))
+                    image = futures[i].result()
+                    futures[i] = None
+                    yield f"{args.wsi} [d={d:g},x={x},y={y},w={w},h={h}]", image, x, y, d
+
+        return len(regions), server_tiles()
 
-    detection_dir = os.path.join(path_to_segment_output, 'Detections', args.wsi)
-    os.makedirs(detection_dir, exist_ok=True)
-
-    print(f"Attempting to build dataset dict from {tile_dir}")
-    dataset_dicts = get_dataset_dicts_validation(tile_dir)
-
-    masks_wsi = []
-    bboxes_wsi = []
-    scores_wsi = []
-    offset_wsi = []
-
-    counts = 0
-    for dd, d in enumerate(tqdm.tqdm(dataset_dicts)):
-        filename = d["file_name"]
-        base_name = os.path.basename(filename)
-        x1_off, y1_off, _, _ = tile2xywh(filename)
-
-        logging.info(f"Basename: {base_name}, x_off: {x1_off}, y_off: {y1_off}")
-
-        im = cv2.imread(filename)
-        start_time = time.time()
-        if not 'linux' in platform:
-            lib = "TorchScript"
+    tile_dir = os.path.join(args.export, 'Temp', 'tiler-output', 'Tiles', args.wsi)
+    print(f"Reading tiles from {tile_dir}")
+    filenames = sorted(os.listdir(tile_dir))
+
+    def folder_tiles():
+        for base_name in filenames:
+            filename = os.path.join(tile_dir, base_name)
+            x1_off, y1_off, _, _ = tile2xywh(filename)
+            # Tiles may be read at a lower resolution than the WSI, closer to
+            # the input size of the model
+            undersampling = tile2downsample(filename, args.undersampling)
+            yield base_name, cv2.imread(filename), x1_off, y1_off, undersampling
+
+    return len(filenames), folder_tiles()
+
+
+def prefetch(iterable, size):
+    """Iterate over the items in a background thread, so they are read (e.g.
+    decoded) while the previous ones are processed, up to size items ahead.
+    """
+    items = queue.Queue(maxsize=size)
+    stop = threading.Event()
+    end = object()
+
+    def produce():
+        try:
+            for item in iterable:
+                while not stop.is_set():
+                    try:
+                        items.put((item, None), timeout=0.5)
+                        break
+                    except queue.Full:
+                        pass
+                if stop.is_set():
+                    return
+            items.put((end, None))
+        except Exception as e:
+            items.put((end, e))
+
+    thread = threading.Thread(target=produce, name='gncnn-prefetch', daemon=True)
+    thread.start()
+    try:
+        while True:
+            item, error = items.get()
+            if error is not None:
+                raise error
+            if item is end:
+                return
+            yield item
+    finally:
+        stop.set()
+
+
+def batches(iterable, batch_size):
+    """Group the items in lists of up to batch_size items."""
+    batch = []
+    for item in iterable:
+        batch.append(item)
+        if len(batch) == batch_size:
+            yield batch
+            batch = []
+    if batch:
+        yield batch
+
+
+def predict_batch(predictor, device, images):
+    """Detect the glomeruli in a batch of tiles.
+
+    Returns, for each tile, the scores of its detections and their masks as
+    uint8 arrays of the size of the tile.
+    """
+    results = []
+    if not 'linux' in sys.platform:
+        # The TorchScript module takes a single image
+        for im in images:
             # Disable gradient computation during inference
             with torch.no_grad():
                 inputs = preprocess_input(im, device)  # Preprocess input image if needed
                 image = inputs["image"]
                 outputs = predictor(image)
-            
+
             # keys=['pred_boxes', 'pred_classes', 'pred_masks', 'scores']
             boxes = outputs[0]
-            classes = outputs[1].cpu().numpy()
             scores = outputs[3].cpu().numpy()
             masks = outputs[2][:, 0, :, :]
-            
+
             if outputs[2].shape[0] > 0:
                 scale_factor = inputs["width"] / image.shape[2] # Images are square
                 boxes *= scale_factor
                 masks = paste_masks_in_image(masks, boxes, im.shape[:2])
-            mask_array = masks.cpu().numpy()
-        else:
-            lib = "Detectron2"
-            outputs = predictor(im)
-            classes = outputs["instances"].get("pred_classes").cpu().numpy()
-            scores = outputs["instances"].get("scores").cpu().numpy()
-
-            mask_array = outputs['instances'].to("cpu").pred_masks.numpy()
-
-        mask_array = mask_array.astype(np.uint8)
-        end_time = time.time()
-        elapsed_time = end_time - start_time
-        logging.info(f"[{lib}] Elapsed Time (sec): {elapsed_time:.2f}")
-
-        for m, mask in enumerate(mask_array):
-            logging.info(f"Mask ({m}) - shape: {mask.shape}, dtype: {mask.dtype}, sum: {mask.sum()}")
-
-            contours, heirarchy = cv2.findContours(mask, cv2.RETR_EXTERNAL, cv2.CHAIN_APPROX_SIMPLE)
-            bounding_boxes = [cv2.boundingRect(contour) for contour in contours]
-
-            if bounding_boxes:
-                x1, y1 = bounding_boxes[0][0]*undersampling + int(x1_off), bounding_boxes[0][1]*undersampling + int(y1_off)
-                w, h = bounding_boxes[0][2]*undersampling, bounding_boxes[0][3]*undersampling
-                x2, y2 = x1 + w, y1 + h
-                bboxes_wsi.append((x1, y1, x2, y2))
-                scores_wsi.append(scores[m])
-                masks_wsi.append(mask*255)
-                offset_wsi.append((x1_off, y1_off))
-                counts = counts + 1
+            results.append((scores, masks.cpu().numpy().astype(np.uint8)))
+        return results
+
+    if len(images) == 1:
+        outputs = [predictor(images[0])]
+    else:
+        # As DefaultPredictor does for a single image
+        inputs = []
+        for im in images:
+            original = im[:, :, ::-1] if predictor.input_format == "RGB" else im
+            height, width = original.shape[:2]
+            image = predictor.aug.get_transform(original).apply_image(original)
+            image = torch.as_tensor(image.astype("float32").transpose(2, 0, 1))
+            inputs.append({"image": image, "height": height, "width": width})
+        with torch.no_grad():
+            outputs = predictor.model(inputs)
+    for output in outputs:
+        instances = output["instances"].to("cpu")
+        results.append((instances.scores.numpy(), instances.pred_masks.numpy().astype(np.uint8)))
+    return results
+
+
+def tile_detections(mask_array, scores):
+    """Return the score, bounding rectangle of the first contour, polygon and
+    whether it touches the edge of the tile, in tile pixels, for each
+    detection of a tile.
+
+    Only the polygons of the masks are kept, so the memory used by the
+    detections of a WSI depends on their number and size, not on the size of
+    the tiles.
+    """
+    detections = []
+    for m, mask in enumerate(mask_array):
+        logging.info(f"Mask ({m}) - shape: {mask.shape}, dtype: {mask.dtype}, sum: {mask.sum()}")
+
+        contours, heirarchy = cv2.findContours(mask, cv2.RETR_EXTERNAL, cv2.CHAIN_APPROX_SIMPLE)
+
+        if contours:
+            polygon = contours2polygon(contours)
+            detections.append((scores[m], cv2.boundingRect(contours[0]), polygon, touches_edge(polygon, mask.shape)))
+    return detections
+
+
+def extract_detections(detections, x1_off, y1_off, undersampling, tile_shape):
+    """Return the bounding box in the WSI, score, polygon in tile pixels,
+    offset, undersampling, whether it touches the edge of the tile and the
+    size of the tile in the WSI, for each detection of a tile returned by
+    tile_detections."""
+    tile_size = (int(tile_shape[1]*undersampling), int(tile_shape[0]*undersampling))
+    wsi_detections = []
+    for score, rect, polygon, cut in detections:
+        x1, y1 = int(rect[0]*undersampling) + int(x1_off), int(rect[1]*undersampling) + int(y1_off)
+        w, h = int(rect[2]*undersampling), int(rect[3]*undersampling)
+        x2, y2 = x1 + w, y1 + h
+        wsi_detections.append(((x1, y1, x2, y2), score, polygon, (x1_off, y1_off), undersampling, cut, tile_size))
+    return wsi_detections
+
+
+def touches_edge(polygon, shape):
+    """Return whether a polygon in tile pixels touches the edge of the tile,
+    so the glomerulus may continue in the next tile."""
+    height, width = shape[:2]
+    return bool(polygon[:, 0].min() <= 1 or polygon[:, 1].min() <= 1 or
+                polygon[:, 0].max() >= width - 2 or polygon[:, 1].max() >= height - 2)
+
+
+def to_wsi_polygon(polygon, xy_offset, undersampling, pixel_size):
+    """Return a polygon of a tile in WSI coordinates, and its area in um^2."""
+    # The pixel size is the one of the WSI, not of the tile
+    area_um = get_area_10x(polygon) * (pixel_size * undersampling)**2
+    polygon_large = np.array([[point[0]*undersampling + xy_offset[0],
+                               point[1]*undersampling + xy_offset[1]] for point in polygon])
+    return polygon_large, area_um
+
+
+def segment_wsi(predictor, device, args, path_to_weights=None):
+    """Detect the glomeruli in the tiles of a WSI and save them as GeoJSON.
+
+    The tiles are given to the model in batches of args.batch_size. The next
+    tiles are read by a prefetch thread during the forward pass, and the masks
+    of each batch are turned into detections by a post-processing worker while
+    the next batch is forwarded.
+
+    With args.raw_detections, the detections are written to
+    raw-detections.jsonl, or to args.raw_detections_path, as they are found, one JSON object per line with
+    their box, score, area and polygon in the WSI, the offset and size of
+    their tile and whether they touch its edge, after a header line with the minimum
+    area of a glomerulus and the pixel size. The QuPath extension merges
+    them, stitching the glomeruli split between tiles, so they are not kept
+    here.
+    """
+    print("undersampling: ", args.undersampling)
+    print("pixel size: ", args.pixel_size)
+    print("batch size: ", args.batch_size)
+
+    lib = "Detectron2" if 'linux' in sys.platform else "TorchScript"
+
+    path_to_segment_output = os.path.join(args.export, 'Temp', 'segment-output')
+
+    detection_dir = os.path.join(path_to_segment_output, 'Detections', args.wsi)
+    os.makedirs(detection_dir, exist_ok=True)
+
+    num_tiles, tiles = open_tiles(args)
+
+    raw_file = None
+    if args.raw_detections:
+        raw_path = args.raw_detections_path or os.path.join(detection_dir, 'raw-detections.jsonl')
+        os.makedirs(os.path.dirname(os.path.abspath(raw_path)), exist_ok=True)
+        raw_file = open(raw_path, 'w')
+        raw_file.write(json.dumps({'min_area_um': MIN_AREA_GLOMERULUS_UM, 'pixel_size': args.pixel_size}) + '\n')
+    raw_count = 0
+
+    wsi_start_time = time.time()
+    events.emit('start', command='gncnn-segment', wsi=args.wsi, total=num_tiles)
+
+    # Tiles post-processed, only updated by the post-processing worker
+    done = [0]
+    detections = []
+
+    def collect(new_detections):
+        nonlocal raw_count
+        if raw_file is None:
+            detections.extend(new_detections)
+            return
+        for box, score, polygon, xy_offset, undersampling, cut, tile_size in new_detections:
+            polygon_large, area_um = to_wsi_polygon(polygon, xy_offset, undersampling, args.pixel_size)
+            raw_file.write(json.dumps({'box': [float(v) for v in box], 'score': float(score), 'area_um': float(area_um),
+                                       'polygon': polygon_large.tolist(),
+                                       'tile': [int(xy_offset[0]), int(xy_offset[1]), tile_size[0], tile_size[1]],
+                                       'cut': cut}) + '\n')
+            raw_count += 1
+
+    cache = None
+    if args.cache is not None:
+        cache = TileCache(args.cache, args.cache_size_mb * 1024 * 1024, args.model, args.train_config,
+                          DETECTRON_SCORE_THRESHOLD, path_to_weights)
+
+    def postprocess(batch, keys, results, start_time):
+        """Each result is either the detections of a cached tile, or the
+        scores and masks of the model."""
+        detections = []
+        for dd, (base_name, tile_shape, x1_off, y1_off, undersampling), key, result in zip(
+                range(done[0], done[0] + len(batch)), batch, keys, results):
+            if isinstance(result, list):
+                local = result
+            else:
+                local = tile_detections(result[1], result[0])
+                if cache is not None:
+                    cache.put(key, local)
+            detections.extend(extract_detections(local, x1_off, y1_off, undersampling, tile_shape))
+            events.emit('tile_finished', tile=base_name, done=dd + 1, total=num_tiles,
+                        detections=len(local), seconds=round(time.time() - start_time, 3))
+        done[0] += len(batch)
+        return detections
+
+    # Batches being post-processed, at most two, so their masks do not pile
+    # up if the post-processing is slower than the model
+    pending = deque()
+    index = 0
+    with ThreadPoolExecutor(max_workers=1, thread_name_prefix='gncnn-postprocess') as postprocessor:
+        # The progress bar is replaced by the events when they are enabled
+        with tqdm.tqdm(total=num_tiles, disable=events.enabled()) as progress:
+            for batch in batches(prefetch(tiles, 2 * args.batch_size), args.batch_size):
+                for base_name, _, x1_off, y1_off, _ in batch:
+                    events.emit('tile_started', tile=base_name, index=index, total=num_tiles)
+                    logging.info(f"Basename: {base_name}, x_off: {x1_off}, y_off: {y1_off}")
+                    index += 1
+
+                start_time = time.time()
+                # Only the tiles not in the cache are run through the model.
+                # The tiles are private copies, so a key always matches the
+                # pixels the detections are computed from
+                keys = [cache.key(im) if cache is not None else None for _, im, _, _, _ in batch]
+                results = [cache.get(key) if cache is not None else None for key in keys]
+                missing = [i for i, result in enumerate(results) if result is None]
+                if missing:
+                    predicted = predict_batch(predictor, device, [batch[i][1] for i in missing])
+                    for i, result in zip(missing, predicted):
+                        results[i] = result
+                    del predicted
+                    elapsed_time = time.time() - start_time
+                    logging.info(f"[{lib}] Elapsed Time (sec): {elapsed_time:.2f} for {len(missing)} tiles")
+                    events.emit('timing', name='inference', tiles=len(missing), seconds=round(elapsed_time, 3))
+
+                # Only the shapes of the images are needed by the
+                # post-processing
+                batch = [(base_name, im.shape[:2], x1_off, y1_off, undersampling)
+                         for base_name, im, x1_off, y1_off, undersampling in batch]
+                while len(pending) >= 2:
+                    collect(pending.popleft().result())
+                pending.append(postprocessor.submit(postprocess, batch, keys, results, start_time))
+                del results
+                progress.update(len(batch))
+
+        while pending:
+            collect(pending.popleft().result())
+
+    if cache is not None:
+        evicted = cache.evict()
+        print(f"Tile cache: {cache.hits} hits, {cache.misses} misses, {evicted} evicted")
+        events.emit('cache', name='tiles', hits=cache.hits, misses=cache.misses, evicted=evicted)
+
+    if raw_file is not None:
+        raw_file.close()
+        events.emit('detections', name='raw', count=raw_count)
+        end_wsi(args, wsi_start_time)
+        return
+
+    bboxes_wsi = [detection[0] for detection in detections]
+    scores_wsi = [detection[1] for detection in detections]
+    polygons_wsi = [detection[2] for detection in detections]
+    offset_wsi = [detection[3] for detection in detections]
+    undersampling_wsi = [detection[4] for detection in detections]
 
     print(f"Before NMS: {len(bboxes_wsi)}")
     idxs = nms(bboxes_wsi, scores_wsi, threshold_iou=0.4, threshold_iom=0.4, return_idxs=True)
     print(f"After  NMS: {len(idxs)}")
+    events.emit('detections', name='nms', before=len(bboxes_wsi), count=len(idxs))
 
     picked_boxes = [bboxes_wsi[i] for i in idxs]
     picked_score = [scores_wsi[i] for i in idxs]
-    picked_masks = [masks_wsi[i] for i in idxs]
+    picked_polygons = [polygons_wsi[i] for i in idxs]
     picked_offset = [offset_wsi[i] for i in idxs]
+    picked_undersampling = [undersampling_wsi[i] for i in idxs]
 
     list_polygons = []
     glomerular_areas = []
 
-    for glomerulus_roi, single_glomerulus_mask, xy_offset in zip(picked_boxes, picked_masks, picked_offset):
-        x1_roi, y1_roi, x2_roi, y2_roi = glomerulus_roi
-        w_roi, h_roi = x2_roi - x1_roi, y2_roi - y1_roi
-
-        single_glomerulus_mask[single_glomerulus_mask>0] = 255
-        single_glomerulus_mask = single_glomerulus_mask.astype(np.uint8)
-
-        polygon = mask2polygon(single_glomerulus_mask)
-        area_um = get_area_10x(polygon) * args.pixel_size**2
+    for glomerulus_roi, polygon, xy_offset, undersampling in zip(picked_boxes, picked_polygons,
+                                                                picked_offset, picked_undersampling):
+        polygon_large, area_um = to_wsi_polygon(polygon, xy_offset, undersampling, args.pixel_size)
         glomerular_areas.append(area_um)
 
-        polygon_large = np.array([[point[0]*undersampling + xy_offset[0],
-                                   point[1]*undersampling + xy_offset[1]] for point in polygon])
-
         if area_um > MIN_AREA_GLOMERULUS_UM:
             list_polygons.append(polygon_large)
         else:
@@ -222,6 +540,25 @@ def main():
     path_to_geojson = os.path.join(detection_dir, 'detections.geojson')
     poly2geojson(list_polygons, 'Glomerulus', [0, 0, 255], path_to_geojson)
 
+    events.emit('detections', name='glomerulus', count=len(list_polygons))
+    end_wsi(args, wsi_start_time)
+
+
+def end_wsi(args, wsi_start_time):
+    """Report the end of the segmentation of a WSI, with its peak memory."""
+    # In a persistent worker, the peak covers the WSIs segmented before too
+    peak_rss_mb = get_peak_rss_mb()
+    print(f"Peak RSS (MB): {peak_rss_mb}")
+    events.emit('end', command='gncnn-segment', wsi=args.wsi, seconds=round(time.time() - wsi_start_time, 3),
+                peak_rss_mb=peak_rss_mb)
+
+
+@events.report_errors
+def main(argv=None):
+    args = parse_args(argv)
+    predictor, device, path_to_weights = load_predictor(args.model, args.train_config)
+    segment_wsi(predictor, device, args, path_to_weights)
+
 
 if __name__ == '__main__':
     main()
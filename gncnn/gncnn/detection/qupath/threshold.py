@@ -5,10 +5,12 @@ Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
 import argparse
 import logging
 import os
+import time
 
 import cv2
 import shapely.geometry
 
+from gncnn import events
 from gncnn.detection.qupath.config import MIN_AREA_GLOMERULUS_UM
 from gncnn.detection.qupath.shapely2geojson import poly2geojson
 
@@ -64,14 +66,17 @@ def contours2geojson(contours, pixel_size, output_path):
     logging.info(f'Saving {len(final_polygons)} tissue polygons to {output_path}')
     poly2geojson(final_polygons, 'Tissue', [255, 0, 0], output_path)
 
+    return len(final_polygons)
 
-def main():
+
+@events.report_errors
+def main(argv=None):
     parser = argparse.ArgumentParser(description='Segment Glomeruli with Detectron2 from WSI')
     parser.add_argument('--undersampling', type=int, help='Undersampling factor of tiles', default=20)
     parser.add_argument('-w', '--wsi', type=str, help='path/to/wsi', required=True)
     parser.add_argument('-e', '--export', type=str, help='path/to/export', required=True)
     parser.add_argument('--pixel-size', type=float, help='Pixel size of the WSI', default=0.5)
-    args = parser.parse_args()
+    args = parser.parse_args(argv)
 
     lowres_dir = os.path.join(args.export, 'Temp', 'lowres-output', 'Images', args.wsi)
     path_to_threshold_output = os.path.join(args.export, 'Temp', 'threshold-output')
@@ -79,8 +84,15 @@ def main():
     annotation_dir = os.path.join(path_to_threshold_output, 'Annotations', args.wsi)
     os.makedirs(annotation_dir, exist_ok=True)
 
-    for img_path in os.listdir(lowres_dir):
-        img_path = os.path.join(lowres_dir, img_path)
+    img_names = os.listdir(lowres_dir)
+    start_time = time.time()
+    events.emit('start', command='gncnn-threshold', wsi=args.wsi, total=len(img_names))
+
+    for i, img_name in enumerate(img_names):
+        events.emit('tile_started', tile=img_name, index=i, total=len(img_names))
+        tile_start_time = time.time()
+
+        img_path = os.path.join(lowres_dir, img_name)
         img = thresholding(img_path)
 
         # Find contours
@@ -97,7 +109,13 @@ def main():
 
         # Save as GeoJSON for QuPath
         path_to_geojson = os.path.join(annotation_dir, 'annotations.geojson')
-        contours2geojson(final_contours, args.pixel_size, path_to_geojson)
+        count = contours2geojson(final_contours, args.pixel_size, path_to_geojson)
+
+        events.emit('tile_finished', tile=img_name, done=i + 1, total=len(img_names), detections=count,
+                    seconds=round(time.time() - tile_start_time, 3))
+        events.emit('detections', name='tissue', count=count)
+
+    events.emit('end', command='gncnn-threshold', wsi=args.wsi, seconds=round(time.time() - start_time, 3))
 
 
 if __name__ == '__main__':
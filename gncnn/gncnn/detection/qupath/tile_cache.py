@@ -0,0 +1,126 @@
+"""Persistent cache of the detections of each tile, so a rerun only runs the
+detector on the tiles which are new or changed.
+
+The detections are kept in tile pixels, keyed by a hash of the pixels of the
+tile and of the model, its training configuration, weights and score
+threshold, so
+the same tile read at another position or for another WSI is a hit too. Each
+entry is a small JSON file. A hit updates its modification time, and the
+least recently used entries are evicted when the cache exceeds its size.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import hashlib
+import json
+import os
+import threading
+import uuid
+
+import numpy as np
+
+# Version of the format of the entries, changed when they are not
+# compatible anymore
+CACHE_VERSION = 1
+
+
+def get_package_version():
+    try:
+        from importlib.metadata import version
+        return version('gncnn')
+    except Exception:
+        return 'unknown'
+
+
+def get_weights_fingerprint(path_to_weights):
+    """Return the size and modification time of the weights of a model, which
+    change when they are downloaded again or retrained, without hashing them
+    on every run."""
+    if path_to_weights is None:
+        return 'unknown'
+    try:
+        stat = os.stat(path_to_weights)
+    except OSError:
+        return 'unknown'
+    return f"{os.path.abspath(path_to_weights)}:{stat.st_size}:{stat.st_mtime_ns}"
+
+
+class TileCache:
+
+    def __init__(self, path, max_bytes, model, train_config, score_threshold, path_to_weights=None):
+        self.path = path
+        self.max_bytes = max_bytes
+        self.namespace = (f"v{CACHE_VERSION}|{get_package_version()}|{model}|{train_config}|"
+                          f"{get_weights_fingerprint(path_to_weights)}|{score_threshold}").encode()
+        self.hits = 0
+        self.misses = 0
+        self._lock = threading.Lock()
+        os.makedirs(path, exist_ok=True)
+
+    def key(self, image):
+        """Return the key of a tile, from its pixels and the model."""
+        digest = hashlib.sha1(self.namespace)
+        digest.update(str(image.shape).encode())
+        digest.update(np.ascontiguousarray(image).data)
+        return digest.hexdigest()
+
+    def _file(self, key):
+        return os.path.join(self.path, key[:2], key + '.json')
+
+    def get(self, key):
+        """Return the detections of a tile as (score, rect, polygon, cut), in
+        tile pixels, or None if the tile is not cached."""
+        path = self._file(key)
+        try:
+            with open(path) as f:
+                entry = json.load(f)
+            os.utime(path)
+        except (OSError, ValueError):
+            with self._lock:
+                self.misses += 1
+            return None
+        with self._lock:
+            self.hits += 1
+        return [(d['score'], tuple(d['rect']), np.asarray(d['polygon']).reshape(-1, 2), d['cut'])
+                for d in entry['detections']]
+
+    def put(self, key, detections):
+        """Store the detections of a tile, as returned by get."""
+        path = self._file(key)
+        os.makedirs(os.path.dirname(path), exist_ok=True)
+        entry = {'detections': [{'score': float(score), 'rect': [int(v) for v in rect],
+                                 'polygon': np.asarray(polygon).tolist(), 'cut': bool(cut)}
+                                for score, rect, polygon, cut in detections]}
+        # Written to a temporary file first, so a reader never sees it
+        # half written
+        tmp_path = f"{path}.{uuid.uuid4().hex}.tmp"
+        with open(tmp_path, 'w') as f:
+            json.dump(entry, f)
+        os.replace(tmp_path, path)
+
+    def evict(self):
+        """Delete the least recently used entries until the cache fits in its
+        size. Returns the number of entries deleted."""
+        entries = []
+        total = 0
+        for shard in os.scandir(self.path):
+            if not shard.is_dir():
+                continue
+            for entry in os.scandir(shard.path):
+                try:
+                    stat = entry.stat()
+                except OSError:
+                    continue
+                entries.append((stat.st_mtime, stat.st_size, entry.path))
+                total += stat.st_size
+        entries.sort()
+        evicted = 0
+        for _, size, path in entries:
+            if total <= self.max_bytes:
+                break
+            try:
+                os.remove(path)
+            except OSError:
+                continue
+            total -= size
+            evicted += 1
+        return evicted
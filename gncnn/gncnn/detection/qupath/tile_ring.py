@@ -0,0 +1,83 @@
+"""Reader of the memory-mapped ring buffer of tiles written by the QuPath
+extension (TileRingBuffer), which hands the tiles of a WSI to gncnn-segment
+as raw pixels instead of image files.
+
+The file starts with a header of HEADER_SIZE bytes, followed by a fixed
+number of slots. Each slot has the region of the tile and its size in pixels,
+followed by its 8-bit interleaved BGR pixels, the channel order of OpenCV.
+The writer only reuses a slot once the reader has consumed the tile in it.
+All the values are little-endian:
+
+header: int32 magic, int32 version, int32 slots, int32 tiles, int64 slot size,
+        int64 tiles written, int64 tiles read, int32 state
+slot:   int32 x, y, width, height, pixel width, pixel height,
+        float64 downsample, uint8 pixels[pixel height, pixel width, 3]
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import time
+
+import numpy as np
+
+MAGIC = 0x474E5242
+VERSION = 1
+HEADER_SIZE = 64
+SLOT_HEADER_SIZE = 32
+
+STATE_WRITING = 0
+STATE_FINISHED = 1
+STATE_ABORTED = 2
+
+# Time between checks of the writer progress
+POLL_SECONDS = 0.002
+
+
+class TileRing:
+    def __init__(self, path):
+        self.path = path
+        self._buffer = np.memmap(path, dtype=np.uint8, mode='r+')
+        magic, version, self.slots, self.tiles = (int(v) for v in self._buffer[0:16].view('<i4'))
+        if magic != MAGIC or version != VERSION:
+            raise ValueError(f"{path} is not a tile ring buffer of version {VERSION}")
+        self.slot_size = int(self._buffer[16:24].view('<i8')[0])
+        # Tiles written and read, shared with the writer
+        self._counters = self._buffer[24:40].view('<i8')
+        self._state = self._buffer[40:44].view('<i4')
+
+    def __len__(self):
+        return self.tiles
+
+    def _wait_for(self, index):
+        """Wait until the writer has written the tile with the given index."""
+        while self._counters[0] <= index:
+            state = self._state[0]
+            if state == STATE_ABORTED:
+                raise RuntimeError(f"The tiles could not be written to {self.path}")
+            if state == STATE_FINISHED and self._counters[0] <= index:
+                raise RuntimeError(f"Only {self._counters[0]} of {self.tiles} tiles were written to {self.path}")
+            time.sleep(POLL_SECONDS)
+
+    def __iter__(self):
+        """Yield (x, y, width, height, downsample, image) for each tile, in
+        full-resolution coordinates. The image is a view of the slot, without
+        copying it, so it is only valid until the next tile is requested."""
+        for index in range(self.tiles):
+            self._wait_for(index)
+            offset = HEADER_SIZE + (index % self.slots) * self.slot_size
+            x, y, w, h, width, height = (int(v) for v in self._buffer[offset:offset + 24].view('<i4'))
+            downsample = float(self._buffer[offset + 24:offset + 32].view('<f8')[0])
+            start = offset + SLOT_HEADER_SIZE
+            image = np.asarray(self._buffer[start:start + width * height * 3]).reshape(height, width, 3)
+            yield x, y, w, h, downsample, image
+            # Let the writer reuse the slot
+            self._counters[1] = index + 1
+
+    def close(self):
+        mmap = self._buffer._mmap
+        del self._buffer, self._counters, self._state
+        if mmap is not None:
+            try:
+                mmap.close()
+            except BufferError:
+                # A tile is still referenced, the file is unmapped with it
+                pass
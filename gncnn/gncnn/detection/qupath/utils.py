@@ -4,8 +4,11 @@ Modified by: Israel Mateos-Aparicio-Ruiz
 Modifications:
     - Removed unused functions
     - Adapted tile2xywh to own format
+    - Added tile2downsample
+    - Added contours2polygon and get_peak_rss_mb
 """
 import os
+import sys
 
 import cv2
 import numpy as np
@@ -40,13 +43,40 @@ def tile2xywh(filename):
     return x_tile, y_tile, w_tile, h_tile
 
 
+def tile2downsample(filename, default):
+    """Downsample of a tile, written in its name as 'd=' when it is not 1."""
+    base_name = os.path.basename(filename)
+    if '[d=' not in base_name:
+        return default
+    return float(base_name.split('[d=')[1].split(',')[0])
+
+
 def mask2polygon(mask):
     contours, heirarchy = cv2.findContours(mask, cv2.RETR_EXTERNAL, cv2.CHAIN_APPROX_SIMPLE)
+    return contours2polygon(contours)
+
+
+def contours2polygon(contours):
+    """Return the largest of the external contours of a mask as an (N, 2)
+    array."""
     polygon = max(contours, key=cv2.contourArea)
     polygon = np.squeeze(polygon, axis=1)
     return polygon
 
 
+def get_peak_rss_mb():
+    """Return the peak resident memory of the process in MB, or None if the
+    platform does not report it."""
+    try:
+        import resource
+    except ImportError:
+        # Not available on Windows
+        return None
+    peak = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+    # In bytes on macOS, in KB elsewhere
+    return round(peak / (1024 * 1024 if sys.platform == 'darwin' else 1024), 1)
+
+
 def get_area_10x(polygon):
     polygon_small = np.array([[point[0], point[1]] for point in polygon])
     area_um = cv2.contourArea(polygon_small)
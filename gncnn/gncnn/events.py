@@ -0,0 +1,67 @@
+"""Machine-readable events written by the gncnn commands, so the QuPath
+extension can follow their progress without parsing their regular output.
+
+Each event is a single line made of EVENT_PREFIX and a JSON object with an
+"event" field, e.g.
+GNCNN-EVENT {"event": "tile_finished", "done": 3, "total": 40, "seconds": 0.8}
+
+Events carrying "done" and "total" report the progress of the command. The
+events are only written when the GNCNN_EVENTS environment variable is set to
+1, so the output of the commands run from a shell does not change.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import functools
+import json
+import os
+import sys
+import threading
+
+EVENT_PREFIX = 'GNCNN-EVENT '
+EVENTS_VARIABLE = 'GNCNN_EVENTS'
+
+# The events may be written by several threads of a command
+_lock = threading.Lock()
+
+
+def enabled():
+    return os.environ.get(EVENTS_VARIABLE) == '1'
+
+
+def _to_json(value):
+    # NumPy scalars are not serializable by the json module
+    if hasattr(value, 'item'):
+        return value.item()
+    return str(value)
+
+
+def emit(event, **fields):
+    """Write an event, if the events are enabled."""
+    if not enabled():
+        return
+    fields = {'event': event, **fields}
+    # sys.stdout is looked up on each call, as the worker redirects it
+    line = EVENT_PREFIX + json.dumps(fields, default=_to_json) + '\n'
+    with _lock:
+        sys.stdout.write(line)
+        sys.stdout.flush()
+
+
+def report_error(error):
+    """Write an error event for an exception, only once per exception."""
+    if getattr(error, '_gncnn_reported', False):
+        return
+    error._gncnn_reported = True
+    emit('error', type=type(error).__name__, message=str(error))
+
+
+def report_errors(func):
+    """Write an error event for the exceptions raised by a command."""
+    @functools.wraps(func)
+    def wrapper(*args, **kwargs):
+        try:
+            return func(*args, **kwargs)
+        except Exception as e:
+            report_error(e)
+            raise
+    return wrapper
@@ -0,0 +1,85 @@
+"""Client of the loopback region server of the QuPath extension, which serves
+regions of the open images so the gncnn commands read only the regions they
+process, instead of image files exported for them.
+
+The address and the token of the server are given by the QuPath extension in
+the GNCNN_REGION_SERVER and GNCNN_REGION_TOKEN environment variables. The
+regions are returned as 8-bit BGR arrays, as cv2.imread does.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import http.client
+import os
+import threading
+import urllib.parse
+
+import numpy as np
+
+URL_VARIABLE = 'GNCNN_REGION_SERVER'
+TOKEN_VARIABLE = 'GNCNN_REGION_TOKEN'
+TOKEN_HEADER = 'X-GNCnn-Token'
+WIDTH_HEADER = 'X-GNCnn-Width'
+HEIGHT_HEADER = 'X-GNCnn-Height'
+
+# One keep-alive connection per thread
+_local = threading.local()
+
+
+def _get_connection():
+    connection = getattr(_local, 'connection', None)
+    if connection is None:
+        url = os.environ.get(URL_VARIABLE)
+        if not url:
+            raise RuntimeError(f"No region server available, {URL_VARIABLE} is not set")
+        address = urllib.parse.urlparse(url)
+        connection = http.client.HTTPConnection(address.hostname, address.port, timeout=300)
+        _local.connection = connection
+    return connection
+
+
+def read_region(image, x, y, width, height, downsample=1.0):
+    """Read a region of an open image, in full-resolution coordinates.
+
+    Returns the pixels as a BGR array of shape (height, width, 3), at the
+    given downsample.
+    """
+    query = urllib.parse.urlencode({'image': image, 'd': downsample, 'x': x, 'y': y, 'w': width, 'h': height})
+    headers = {TOKEN_HEADER: os.environ.get(TOKEN_VARIABLE, '')}
+    for attempt in range(2):
+        connection = _get_connection()
+        try:
+            connection.request('GET', '/region?' + query, headers=headers)
+            response = connection.getresponse()
+            body = response.read()
+            break
+        except (http.client.HTTPException, ConnectionError):
+            # The server may have closed the keep-alive connection
+            connection.close()
+            _local.connection = None
+            if attempt == 1:
+                raise
+    if response.status != 200:
+        raise RuntimeError(f"Region {query} could not be read: {response.status} {body.decode(errors='replace')}")
+    region_width = int(response.getheader(WIDTH_HEADER))
+    region_height = int(response.getheader(HEIGHT_HEADER))
+    return np.frombuffer(body, dtype=np.uint8).reshape(region_height, region_width, 3)
+
+
+def read_region_list(path):
+    """Read a list of regions written by the QuPath extension, with one
+    region per line: [name,] downsample, x, y, width and height, separated by
+    tabs.
+
+    Returns a list of (name, downsample, x, y, width, height), with None as
+    the name if the list does not have names.
+    """
+    regions = []
+    with open(path) as f:
+        for line in f:
+            fields = line.rstrip('\n').split('\t')
+            if len(fields) < 5:
+                continue
+            name = fields[0] if len(fields) > 5 else None
+            downsample, x, y, width, height = fields[-5:]
+            regions.append((name, float(downsample), int(x), int(y), int(width), int(height)))
+    return regions
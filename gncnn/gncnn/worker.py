@@ -0,0 +1,86 @@
+"""Long-lived worker which runs the gncnn commands without restarting the
+interpreter, so the libraries and the models are loaded only once.
+
+Jobs are read from stdin as JSON lines, e.g.
+{"id": 1, "command": "gncnn-segment", "args": ["--wsi", "..."]}, and a JSON
+line {"id": 1, "exit": 0} is written to stdout when each job finishes.
+Everything the commands print goes to stderr.
+
+Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+"""
+import json
+import logging
+import sys
+import traceback
+
+from gncnn import events
+
+# Models already loaded, by command and model arguments
+_MODELS = {}
+
+
+def _get_model(key, loader):
+    if key not in _MODELS:
+        logging.info(f"Loading model {key}")
+        _MODELS[key] = loader()
+    return _MODELS[key]
+
+
+def run_job(command, argv):
+    if command == 'gncnn-threshold':
+        from gncnn.detection.qupath import threshold
+        threshold.main(argv)
+    elif command == 'gncnn-segment':
+        from gncnn.detection.qupath import segment
+        args = segment.parse_args(argv)
+        predictor, device, path_to_weights = _get_model((command, args.model, args.train_config),
+                                                        lambda: segment.load_predictor(args.model,
+                                                                                       args.train_config))
+        segment.segment_wsi(predictor, device, args, path_to_weights)
+    elif command == 'gncnn-classify':
+        from gncnn.classification.inference import classify
+        args = classify.parse_args(argv)
+        if args.input_size:
+            classify.main(argv)
+            return
+        net_m = args.netM if args.multi else None
+        bin_model, mult_model, device = _get_model((command, args.root_path, args.netB, net_m),
+                                                   lambda: classify.load_models(args.root_path, args.netB, net_m))
+        classify.classify_wsis(bin_model, mult_model, device, args)
+    else:
+        raise ValueError(f"Unknown command: {command}")
+
+
+def main():
+    logging.basicConfig(level=logging.INFO)
+
+    # Keep stdout for the responses only
+    protocol = sys.stdout
+    sys.stdout = sys.stderr
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+
+        job_id = None
+        exit_code = 0
+        try:
+            job = json.loads(line)
+            job_id = job.get('id')
+            run_job(job['command'], job.get('args', []))
+        except SystemExit as e:
+            # Raised by argparse on invalid arguments
+            exit_code = e.code if isinstance(e.code, int) else (0 if e.code is None else 1)
+        except Exception as e:
+            traceback.print_exc()
+            events.report_error(e)
+            exit_code = 1
+
+        sys.stderr.flush()
+        protocol.write(json.dumps({'id': job_id, 'exit': exit_code}) + '\n')
+        protocol.flush()
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,441 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.controlsfx.control.PropertySheet;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.StringProperty;
+import qupath.fx.prefs.controlsfx.PropertyItemBuilder;
+import qupath.lib.gui.prefs.PathPrefs;
+
+/**
+ * Persistent preferences used to tune how the GNCnn tasks are run
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class GNCnnPreferences {
+
+    private static final String CATEGORY = "GNCnn";
+
+    private static final BooleanProperty pipelineModeProperty = PathPrefs.createPersistentPreference(
+            "gncnnPipelineMode", true);
+
+    private static final IntegerProperty javaThreadsProperty = PathPrefs.createPersistentPreference(
+            "gncnnJavaThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final IntegerProperty processThreadsProperty = PathPrefs.createPersistentPreference(
+            "gncnnProcessThreads", 1);
+
+    private static final BooleanProperty persistentWorkerProperty = PathPrefs.createPersistentPreference(
+            "gncnnPersistentWorker", true);
+
+    private static final DoubleProperty minTissueCoverageProperty = PathPrefs.createPersistentPreference(
+            "gncnnMinTissueCoverage", 0.02);
+
+    private static final DoubleProperty tilePrefilterProperty = PathPrefs.createPersistentPreference(
+            "gncnnTilePrefilter", 0.0);
+
+    private static final IntegerProperty tileOverlapProperty = PathPrefs.createPersistentPreference(
+            "gncnnTileOverlap", 2048);
+
+    private static final BooleanProperty modelResolutionTilingProperty = PathPrefs.createPersistentPreference(
+            "gncnnModelResolutionTiling", true);
+
+    private static final DoubleProperty detectorPixelSizeProperty = PathPrefs.createPersistentPreference(
+            "gncnnDetectorPixelSize", 0.0);
+
+    private static final BooleanProperty sharedMemoryTilesProperty = PathPrefs.createPersistentPreference(
+            "gncnnSharedMemoryTiles", true);
+
+    private static final BooleanProperty regionServerProperty = PathPrefs.createPersistentPreference(
+            "gncnnRegionServer", true);
+
+    private static final IntegerProperty detectorBatchSizeProperty = PathPrefs.createPersistentPreference(
+            "gncnnDetectorBatchSize", 2);
+
+    private static final BooleanProperty mergeDetectionsProperty = PathPrefs.createPersistentPreference(
+            "gncnnMergeDetections", true);
+
+    private static final IntegerProperty candidateCascadeProperty = PathPrefs.createPersistentPreference(
+            "gncnnCandidateCascade", 0);
+
+    private static final IntegerProperty detectionCacheSizeProperty = PathPrefs.createPersistentPreference(
+            "gncnnDetectionCacheSize", 512);
+
+    private static final BooleanProperty classifierResolutionExportProperty = PathPrefs.createPersistentPreference(
+            "gncnnClassifierResolutionExport", true);
+
+    private static final DoubleProperty cropPaddingMicronsProperty = PathPrefs.createPersistentPreference(
+            "gncnnCropPaddingMicrons", 75.0);
+
+    private static final IntegerProperty classifierBatchSizeProperty = PathPrefs.createPersistentPreference(
+            "gncnnClassifierBatchSize", 16);
+
+    private static final StringProperty cropFormatProperty = PathPrefs.createPersistentPreference(
+            "gncnnCropFormat", "png");
+
+    private static final DoubleProperty cropQualityProperty = PathPrefs.createPersistentPreference(
+            "gncnnCropQuality", 0.9);
+
+    /**
+     * Whether each image moves through the stages on its own, so that
+     * different images can be in different stages at the same time
+     *
+     * @return Pipeline mode property
+     */
+    public static BooleanProperty pipelineModeProperty() {
+        return pipelineModeProperty;
+    }
+
+    /**
+     * Maximum number of Java stages (tissue detection, tiling, annotation
+     * export) run at the same time
+     *
+     * @return Java threads property
+     */
+    public static IntegerProperty javaThreadsProperty() {
+        return javaThreadsProperty;
+    }
+
+    /**
+     * Maximum number of Python processes run at the same time in pipeline mode
+     *
+     * @return Process threads property
+     */
+    public static IntegerProperty processThreadsProperty() {
+        return processThreadsProperty;
+    }
+
+    /**
+     * Whether the Python commands are run by long-lived workers, which keep
+     * the models loaded during the run, instead of one process per command
+     *
+     * @return Persistent worker property
+     */
+    public static BooleanProperty persistentWorkerProperty() {
+        return persistentWorkerProperty;
+    }
+
+    /**
+     * Minimum fraction of a tile covered by tissue for the tile to be passed
+     * to the glomerulus detector
+     *
+     * @return Minimum tissue coverage property
+     */
+    public static DoubleProperty minTissueCoverageProperty() {
+        return minTissueCoverageProperty;
+    }
+
+    /**
+     * Minimum score of the tiles given to the glomerulus detector, according
+     * to their colour and texture, or 0 to detect in every tile with tissue
+     *
+     * @return Tile prefilter property
+     */
+    public static DoubleProperty tilePrefilterProperty() {
+        return tilePrefilterProperty;
+    }
+
+    /**
+     * Overlap between the tiles given to the glomerulus detector, in
+     * full-resolution pixels of the 4096 px tiles, up to half a tile
+     *
+     * @return Tile overlap property
+     */
+    public static IntegerProperty tileOverlapProperty() {
+        return tileOverlapProperty;
+    }
+
+    /**
+     * Whether the tiles are read at the input resolution of the glomerulus
+     * detector, instead of at full resolution
+     *
+     * @return Model resolution tiling property
+     */
+    public static BooleanProperty modelResolutionTilingProperty() {
+        return modelResolutionTilingProperty;
+    }
+
+    /**
+     * Pixel size, in um, of the tiles given to the glomerulus detector. If 0,
+     * the tiles cover the same region of the WSI as full-resolution tiles
+     *
+     * @return Detector pixel size property
+     */
+    public static DoubleProperty detectorPixelSizeProperty() {
+        return detectorPixelSizeProperty;
+    }
+
+    /**
+     * Whether the tiles are handed to the glomerulus detector through a
+     * memory-mapped ring buffer, instead of being saved as image files
+     *
+     * @return Shared memory tiles property
+     */
+    public static BooleanProperty sharedMemoryTilesProperty() {
+        return sharedMemoryTilesProperty;
+    }
+
+    /**
+     * Whether the Python commands read the regions they process from a
+     * loopback server, instead of image files exported for them
+     *
+     * @return Region server property
+     */
+    public static BooleanProperty regionServerProperty() {
+        return regionServerProperty;
+    }
+
+    /**
+     * Number of tiles given to the glomerulus detector in each forward pass
+     *
+     * @return Detector batch size property
+     */
+    public static IntegerProperty detectorBatchSizeProperty() {
+        return detectorBatchSizeProperty;
+    }
+
+    /**
+     * Whether the detections of the tiles are merged in QuPath, instead of by
+     * the detector
+     *
+     * @return Merge detections property
+     */
+    public static BooleanProperty mergeDetectionsProperty() {
+        return mergeDetectionsProperty;
+    }
+
+    /**
+     * Ratio between the side of the tiles of the candidate pass and of the
+     * tiles of the glomerulus detector, or 0 to run the detector on every
+     * tile
+     *
+     * @return Candidate cascade property
+     */
+    public static IntegerProperty candidateCascadeProperty() {
+        return candidateCascadeProperty;
+    }
+
+    /**
+     * Maximum size, in MB, of the cache of the detections of each tile, or 0
+     * to run the detector on every tile
+     *
+     * @return Detection cache size property
+     */
+    public static IntegerProperty detectionCacheSizeProperty() {
+        return detectionCacheSizeProperty;
+    }
+
+    /**
+     * Whether the glomerulus crops are read at the input resolution of the
+     * classifier, instead of at full resolution
+     *
+     * @return Classifier resolution export property
+     */
+    public static BooleanProperty classifierResolutionExportProperty() {
+        return classifierResolutionExportProperty;
+    }
+
+    /**
+     * Padding, in um, around the glomeruli in the exported crops. If 0, or
+     * the pixel size is unknown, the crops have a padding of 300 pixels
+     *
+     * @return Crop padding property
+     */
+    public static DoubleProperty cropPaddingMicronsProperty() {
+        return cropPaddingMicronsProperty;
+    }
+
+    /**
+     * Number of glomerulus crops classified in each forward pass of the
+     * classifiers
+     *
+     * @return Classifier batch size property
+     */
+    public static IntegerProperty classifierBatchSizeProperty() {
+        return classifierBatchSizeProperty;
+    }
+
+    /**
+     * Format of the glomerulus crops exported for the classifier (png or jpg)
+     *
+     * @return Crop format property
+     */
+    public static StringProperty cropFormatProperty() {
+        return cropFormatProperty;
+    }
+
+    /**
+     * Compression quality (0-1) of the exported glomerulus crops. For PNG,
+     * higher values compress less but faster
+     *
+     * @return Crop quality property
+     */
+    public static DoubleProperty cropQualityProperty() {
+        return cropQualityProperty;
+    }
+
+    /**
+     * Returns the items to be added to the QuPath preferences dialog
+     *
+     * @return Preference items
+     */
+    static List<PropertySheet.Item> getPropertyItems() {
+        List<PropertySheet.Item> items = new ArrayList<>();
+        items.add(new PropertyItemBuilder<>(pipelineModeProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Pipelined run")
+                .category(CATEGORY)
+                .description("Process each image through the stages on its own, overlapping tiling, "
+                        + "detection and classification of different images.")
+                .build());
+        items.add(new PropertyItemBuilder<>(javaThreadsProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Java worker threads")
+                .category(CATEGORY)
+                .description("Maximum number of images whose tissue is detected, or which are tiled or "
+                        + "exported, at the same time.")
+                .build());
+        items.add(new PropertyItemBuilder<>(processThreadsProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Python worker processes")
+                .category(CATEGORY)
+                .description("Maximum number of Python commands (glomerulus detection, classification) "
+                        + "run at the same time in a pipelined run.")
+                .build());
+        items.add(new PropertyItemBuilder<>(persistentWorkerProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Persistent Python worker")
+                .category(CATEGORY)
+                .description("Run the Python commands in long-lived workers, so the models are loaded once "
+                        + "per run instead of once per image.")
+                .build());
+        items.add(new PropertyItemBuilder<>(minTissueCoverageProperty, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Minimum tissue coverage")
+                .category(CATEGORY)
+                .description("Minimum fraction (0-1) of a tile covered by tissue for the glomeruli to be "
+                        + "detected in it. Tiles which are mostly background are skipped.")
+                .build());
+        items.add(new PropertyItemBuilder<>(tilePrefilterProperty, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Tile prefilter threshold")
+                .category(CATEGORY)
+                .description("Minimum score of the tiles given to the glomerulus detector, computed from the "
+                        + "nuclei, texture and tissue of a thumbnail of each tile. Tiles of fat, medulla or "
+                        + "capsule score low. 0 detects in every tile with tissue.")
+                .build());
+        items.add(new PropertyItemBuilder<>(tileOverlapProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Tile overlap (px)")
+                .category(CATEGORY)
+                .description("Overlap between the 4096 px tiles given to the glomerulus detector. Small overlaps "
+                        + "(256-512 px) detect each region fewer times; the glomeruli split between tiles are "
+                        + "stitched when the detections are merged in QuPath.")
+                .build());
+        items.add(new PropertyItemBuilder<>(modelResolutionTilingProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Tile at detector resolution")
+                .category(CATEGORY)
+                .description("Read the tiles from the pyramid level closest to the input size of the glomerulus "
+                        + "detector, instead of reading full-resolution tiles the detector resizes anyway.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectorPixelSizeProperty, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Detector pixel size (um)")
+                .category(CATEGORY)
+                .description("Pixel size of the tiles given to the glomerulus detector, when tiling at detector "
+                        + "resolution. If 0, or the pixel size of the image is unknown, the tiles cover the same "
+                        + "region as full-resolution tiles.")
+                .build());
+        items.add(new PropertyItemBuilder<>(sharedMemoryTilesProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Shared-memory tiles")
+                .category(CATEGORY)
+                .description("Hand the tiles to the glomerulus detector as raw pixels through a memory-mapped "
+                        + "file while it runs, instead of saving them as image files first.")
+                .build());
+        items.add(new PropertyItemBuilder<>(regionServerProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Loopback region server")
+                .category(CATEGORY)
+                .description("Let the glomerulus detector and classifier read the regions they process from a "
+                        + "local server, instead of image files exported for them. Shared-memory tiles are "
+                        + "used for the detector when both are enabled.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectorBatchSizeProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Detector batch size")
+                .category(CATEGORY)
+                .description("Number of tiles given to the glomerulus detector at once. Larger batches are "
+                        + "faster, but need more memory.")
+                .build());
+        items.add(new PropertyItemBuilder<>(mergeDetectionsProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Merge detections in QuPath")
+                .category(CATEGORY)
+                .description("Merge the glomeruli detected in overlapping tiles in QuPath, in parallel, instead "
+                        + "of in the detector once all the tiles are processed.")
+                .build());
+        items.add(new PropertyItemBuilder<>(candidateCascadeProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Candidate pass factor")
+                .category(CATEGORY)
+                .description("If 2 or more, the glomerulus detector first runs on tiles this many times larger, "
+                        + "at a lower resolution, and then only on the tiles around the glomeruli it finds. "
+                        + "0 runs the detector on every tile.")
+                .build());
+        items.add(new PropertyItemBuilder<>(detectionCacheSizeProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Detection cache size (MB)")
+                .category(CATEGORY)
+                .description("Keep the glomeruli detected in each tile in the project folder, so later runs "
+                        + "only run the detector on new or changed tiles. The least recently used tiles are "
+                        + "removed above this size. 0 disables the cache.")
+                .build());
+        items.add(new PropertyItemBuilder<>(classifierResolutionExportProperty, Boolean.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Crop at classifier resolution")
+                .category(CATEGORY)
+                .description("Read the glomerulus crops from the pyramid level closest to the input size of the "
+                        + "classifier, instead of reading full-resolution crops the classifier resizes anyway.")
+                .build());
+        items.add(new PropertyItemBuilder<>(cropPaddingMicronsProperty, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Glomerulus crop padding (um)")
+                .category(CATEGORY)
+                .description("Padding around the glomeruli in the crops given to the classifier. If 0, or the "
+                        + "pixel size of the image is unknown, the padding is 300 pixels.")
+                .build());
+        items.add(new PropertyItemBuilder<>(classifierBatchSizeProperty, Integer.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Classifier batch size")
+                .category(CATEGORY)
+                .description("Number of glomerulus crops classified at once. Larger batches are faster, "
+                        + "especially on a GPU, but need more memory.")
+                .build());
+        items.add(new PropertyItemBuilder<>(cropFormatProperty, String.class)
+                .propertyType(PropertyItemBuilder.PropertyType.CHOICE)
+                .choices(List.of("png", "jpg"))
+                .name("Glomerulus crop format")
+                .category(CATEGORY)
+                .description("Format of the glomerulus crops exported for the classifier, when they are not read "
+                        + "from the region server. JPEG is faster to encode, PNG is lossless.")
+                .build());
+        items.add(new PropertyItemBuilder<>(cropQualityProperty, Double.class)
+                .propertyType(PropertyItemBuilder.PropertyType.GENERAL)
+                .name("Glomerulus crop quality")
+                .category(CATEGORY)
+                .description("Compression quality (0-1) of the exported glomerulus crops. For PNG, higher values "
+                        + "compress less and faster, without losing quality.")
+                .build());
+        return items;
+    }
+}
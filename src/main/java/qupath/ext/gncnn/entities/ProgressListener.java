@@ -24,25 +24,38 @@ public class ProgressListener {
         this.progressStep = progressStep;
     }
 
-    public void updateProgress() {
+    public synchronized void updateProgress() {
         progress.set(progress.get() + progressStep);
         logger.info("Progress: " + progress.get());
     }
 
-    public void updateProgress(double currentProgress, double partialProgressStep) {
-        double newProgress = currentProgress + progressStep * partialProgressStep;
+    /**
+     * Adds a part of the progress step, e.g. as a command reports the tiles it
+     * has processed
+     * 
+     * @param steps Fraction of the progress step to add
+     */
+    public synchronized void addProgress(double steps) {
+        double newProgress = progress.get() + progressStep * steps;
         // If the new progress rounds to 1.0, set it to 0.99 to avoid the
-        // progress indicator to be full
-        // This fixes a bug when detecting glomeruli and not classifying them
+        // progress indicator to be full before the run finishes
         if (newProgress >= 0.994) {
             progress.set(0.99);
         } else {
             progress.set(newProgress);
         }
+        logger.debug("Progress: " + progress.get());
+    }
+
+    /**
+     * Fills the progress indicator, once the run has finished
+     */
+    public synchronized void complete() {
+        progress.set(1.0);
         logger.info("Progress: " + progress.get());
     }
 
-    public double getProgress() {
+    public synchronized double getProgress() {
         return progress.get();
     }
 
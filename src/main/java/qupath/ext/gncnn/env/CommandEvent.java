@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.env;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Event written by a gncnn command to report its progress, e.g. a tile
+ * finished or the glomeruli found in a WSI.
+ *
+ * Each event is an output line made of {@link #EVENT_PREFIX} and a JSON
+ * object with an "event" field. Events with "done" and "total" fields report
+ * the progress of the command.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class CommandEvent {
+
+    /**
+     * Prefix of the output lines which contain an event
+     */
+    public static final String EVENT_PREFIX = "GNCNN-EVENT ";
+
+    /**
+     * Environment variable which enables the events in the gncnn commands
+     */
+    public static final String EVENTS_VARIABLE = "GNCNN_EVENTS";
+
+    private final String type;
+
+    private final JsonObject fields;
+
+    private CommandEvent(String type, JsonObject fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    /**
+     * Parses an output line of a command
+     *
+     * @param line
+     * @return Event in the line, or null if the line is not an event
+     */
+    public static CommandEvent parse(String line) {
+        if (!line.startsWith(EVENT_PREFIX)) {
+            return null;
+        }
+        try {
+            JsonElement element = JsonParser.parseString(line.substring(EVENT_PREFIX.length()));
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            JsonObject fields = element.getAsJsonObject();
+            String type = fields.has("event") ? fields.get("event").getAsString() : null;
+            return type == null ? null : new CommandEvent(type, fields);
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns true if the event reports the progress of the command
+     *
+     * @return True if the event has "done" and "total" fields
+     */
+    public boolean hasProgress() {
+        return getDouble("total", 0) > 0 && fields.has("done");
+    }
+
+    /**
+     * Returns the fraction of the command work finished when the event was
+     * written
+     *
+     * @return Progress of the command, between 0 and 1
+     */
+    public double getProgress() {
+        double progress = getDouble("done", 0) / getDouble("total", 1);
+        return Math.max(0.0, Math.min(1.0, progress));
+    }
+
+    /**
+     * Returns a field of the event as a string
+     *
+     * @param name
+     * @param defaultValue Value returned if the event does not have the field
+     * @return Value of the field
+     */
+    public String getString(String name, String defaultValue) {
+        JsonElement element = fields.get(name);
+        if (element == null || element.isJsonNull()) {
+            return defaultValue;
+        }
+        return element.isJsonPrimitive() ? element.getAsString() : element.toString();
+    }
+
+    /**
+     * Returns a numeric field of the event
+     *
+     * @param name
+     * @param defaultValue Value returned if the event does not have the field
+     *                     or it is not a number
+     * @return Value of the field
+     */
+    public double getDouble(String name, double defaultValue) {
+        JsonElement element = fields.get(name);
+        if (element == null || !element.isJsonPrimitive() || !element.getAsJsonPrimitive().isNumber()) {
+            return defaultValue;
+        }
+        return element.getAsDouble();
+    }
+
+    @Override
+    public String toString() {
+        return fields.toString();
+    }
+}
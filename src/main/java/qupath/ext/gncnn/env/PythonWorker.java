@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.env;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * Long-lived Python process which runs the gncnn commands as jobs, so the
+ * interpreter, the libraries and the models are loaded only once instead of
+ * once per image.
+ *
+ * Jobs are sent to the worker stdin as JSON lines, and the worker answers on
+ * its stdout with a JSON line containing the exit value of each job. The
+ * output of the jobs is read from the worker stderr.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class PythonWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(PythonWorker.class);
+
+    public static final String WORKER_COMMAND = "gncnn-worker";
+
+    // Workers waiting for a job
+    private static final Deque<PythonWorker> idleWorkers = new ArrayDeque<>();
+
+    // Every worker alive, running a job or not
+    private static final List<PythonWorker> workers = new ArrayList<>();
+
+    private final Process process;
+
+    private final BufferedWriter stdin;
+
+    // Responses read from the worker stdout; an empty object means the
+    // worker exited
+    private final BlockingQueue<JsonObject> responses = new LinkedBlockingQueue<>();
+
+    // Receives the output of the current job
+    private volatile Consumer<String> outputConsumer;
+
+    private int nextJobId = 0;
+
+    // Set once the worker is stopped, as the process may still be alive for
+    // a while afterwards
+    private volatile boolean broken = false;
+
+    private PythonWorker() throws IOException {
+        List<String> shell = VirtualEnvironment.buildShellCommand(List.of(WORKER_COMMAND));
+        ProcessBuilder pb = new ProcessBuilder(shell);
+        VirtualEnvironment.configureEnvironment(pb.environment());
+        process = pb.start();
+        stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+        Thread stdoutThread = new Thread(this::readResponses, "GNCnn-worker-stdout-" + process.pid());
+        stdoutThread.setDaemon(true);
+        stdoutThread.start();
+
+        Thread stderrThread = new Thread(this::readOutput, "GNCnn-worker-stderr-" + process.pid());
+        stderrThread.setDaemon(true);
+        stderrThread.start();
+
+        logger.info("Started Python worker {} with {} threads", process.pid(),
+                VirtualEnvironment.getThreadsPerProcess());
+    }
+
+    /**
+     * Returns an idle worker, starting a new one if all of them are busy
+     *
+     * @return Worker to run a job
+     * @throws IOException
+     */
+    public static synchronized PythonWorker acquire() throws IOException {
+        while (!idleWorkers.isEmpty()) {
+            PythonWorker worker = idleWorkers.pop();
+            if (worker.isUsable()) {
+                return worker;
+            }
+            workers.remove(worker);
+        }
+        PythonWorker worker = new PythonWorker();
+        workers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Returns a worker to the pool once its job is finished. A worker stopped
+     * during the job is dropped, even if its process has not exited yet
+     *
+     * @param worker
+     */
+    public static synchronized void release(PythonWorker worker) {
+        if (worker.isUsable()) {
+            idleWorkers.push(worker);
+        } else {
+            workers.remove(worker);
+        }
+    }
+
+    /**
+     * Stops every worker, releasing the models they keep in memory
+     */
+    public static synchronized void shutdownAll() {
+        for (PythonWorker worker : workers) {
+            worker.destroy();
+        }
+        workers.clear();
+        idleWorkers.clear();
+    }
+
+    /**
+     * Runs a gncnn command in the worker and waits for it to finish
+     *
+     * @param arguments      Command and its arguments
+     * @param outputConsumer Receives each line of the command output
+     * @return Exit value of the command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int runJob(List<String> arguments, Consumer<String> outputConsumer)
+            throws IOException, InterruptedException {
+        int jobId = nextJobId++;
+        JsonObject job = new JsonObject();
+        job.addProperty("id", jobId);
+        job.addProperty("command", arguments.get(0));
+        job.add("args", GsonTools.getInstance().toJsonTree(arguments.subList(1, arguments.size())));
+
+        logger.info("Sending job to Python worker {}: {}", process.pid(), arguments);
+        this.outputConsumer = outputConsumer;
+        try {
+            stdin.write(job.toString());
+            stdin.newLine();
+            stdin.flush();
+
+            while (true) {
+                JsonObject response = responses.take();
+                if (!response.has("id")) {
+                    throw new IOException("Python worker exited while running " + arguments.get(0));
+                }
+                if (!response.get("id").isJsonNull() && response.get("id").getAsInt() == jobId) {
+                    return response.get("exit").getAsInt();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The job cannot be stopped on its own, so stop the worker
+            logger.warn("Thread interrupted, stopping Python worker {}", process.pid());
+            destroy();
+            throw e;
+        } catch (IOException e) {
+            // The worker cannot be sent more jobs, or exited
+            destroy();
+            throw e;
+        } finally {
+            this.outputConsumer = null;
+        }
+    }
+
+    private boolean isUsable() {
+        return !broken && process.isAlive();
+    }
+
+    private void destroy() {
+        broken = true;
+        // On Windows, the worker runs as a child of the shell
+        process.descendants().forEach(ProcessHandle::destroy);
+        process.destroy();
+    }
+
+    private void readResponses() {
+        try (BufferedReader stdout = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = stdout.readLine(); line != null; line = stdout.readLine()) {
+                try {
+                    responses.add(JsonParser.parseString(line).getAsJsonObject());
+                } catch (JsonParseException | IllegalStateException e) {
+                    logger.warn("Unexpected output from Python worker: {}", line);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn(e.getMessage());
+        }
+        responses.add(new JsonObject());
+    }
+
+    private void readOutput() {
+        try (BufferedReader stderr = new BufferedReader(
+                new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+            for (String line = stderr.readLine(); line != null; line = stderr.readLine()) {
+                Consumer<String> consumer = outputConsumer;
+                if (consumer != null) {
+                    consumer.accept(line);
+                } else {
+                    logger.info("Python worker {}: {}", process.pid(), line);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn(e.getMessage());
+        }
+    }
+}
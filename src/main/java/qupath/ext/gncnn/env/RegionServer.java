@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.env;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Loopback HTTP service which serves regions of the open images to the gncnn
+ * commands, so they read only the regions they process, straight from the
+ * ImageServer, instead of image files exported for them.
+ *
+ * A region is requested as
+ * {@code GET /region?image=<name>&d=<downsample>&x=<x>&y=<y>&w=<width>&h=<height>},
+ * in full-resolution coordinates, with the token of the server in the
+ * {@value #TOKEN_HEADER} header. The response has the 8-bit interleaved BGR
+ * pixels of the region, and its size in the {@value #WIDTH_HEADER} and
+ * {@value #HEIGHT_HEADER} headers. The address and the token are given to the
+ * commands through environment variables.
+ *
+ * The regions served last are kept in a cache bounded by
+ * {@link #MAX_CACHE_BYTES}, as a region may be requested again when a command
+ * is retried.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class RegionServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegionServer.class);
+
+    /**
+     * Environment variable with the address of the server
+     */
+    public static final String URL_VARIABLE = "GNCNN_REGION_SERVER";
+
+    /**
+     * Environment variable with the token of the server
+     */
+    public static final String TOKEN_VARIABLE = "GNCNN_REGION_TOKEN";
+
+    public static final String TOKEN_HEADER = "X-GNCnn-Token";
+
+    public static final String WIDTH_HEADER = "X-GNCnn-Width";
+
+    public static final String HEIGHT_HEADER = "X-GNCnn-Height";
+
+    /**
+     * Maximum size of the cached regions, in bytes
+     */
+    public static final long MAX_CACHE_BYTES = 256L * 1024 * 1024;
+
+    private static RegionServer instance;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final String token;
+
+    // Images whose regions can be requested, by name
+    private final Map<String, ImageServer<BufferedImage>> images = new ConcurrentHashMap<>();
+
+    // Regions served last, in access order
+    private final LinkedHashMap<String, Region> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long cacheBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private RegionServer() throws IOException {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        token = sb.toString();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/region", this::handleRegion);
+        executor = Executors.newFixedThreadPool(ThreadTools.getParallelism(),
+                ThreadTools.createThreadFactory("GNCnn-region-server-", true));
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Region server listening on {}", getAddress());
+    }
+
+    /**
+     * Returns the running server, starting it if needed
+     *
+     * @return Region server
+     * @throws IOException If the server cannot be started
+     */
+    public static synchronized RegionServer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new RegionServer();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the server, if it is running, and releases its cache
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.server.stop(0);
+            instance.executor.shutdownNow();
+            logger.info("Region server stopped [cache hits={},misses={}]", instance.hits, instance.misses);
+            instance = null;
+        }
+    }
+
+    /**
+     * Adds the address and the token of the server to the environment of a
+     * command
+     *
+     * @param environment
+     */
+    void configureEnvironment(Map<String, String> environment) {
+        environment.put(URL_VARIABLE, getAddress());
+        environment.put(TOKEN_VARIABLE, token);
+    }
+
+    private String getAddress() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Makes the regions of an image available to the commands
+     *
+     * @param imageName
+     * @param imageServer
+     */
+    public void register(String imageName, ImageServer<BufferedImage> imageServer) {
+        images.put(imageName, imageServer);
+    }
+
+    /**
+     * Stops serving the regions of an image, and removes them from the cache
+     *
+     * @param imageName
+     */
+    public void unregister(String imageName) {
+        images.remove(imageName);
+        synchronized (cache) {
+            Iterator<Map.Entry<String, Region>> it = cache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Region> entry = it.next();
+                if (entry.getValue().imageName.equals(imageName)) {
+                    cacheBytes -= entry.getValue().pixels.length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void handleRegion(HttpExchange exchange) throws IOException {
+        try {
+            if (!token.equals(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+                sendError(exchange, 403, "Invalid token");
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            ImageServer<BufferedImage> imageServer = images.get(query.getOrDefault("image", ""));
+            if (imageServer == null) {
+                sendError(exchange, 404, "Image not found: " + query.get("image"));
+                return;
+            }
+
+            Region region;
+            try {
+                region = getRegion(query.get("image"), imageServer, Double.parseDouble(query.get("d")),
+                        Integer.parseInt(query.get("x")), Integer.parseInt(query.get("y")),
+                        Integer.parseInt(query.get("w")), Integer.parseInt(query.get("h")));
+            } catch (NumberFormatException | NullPointerException e) {
+                sendError(exchange, 400, "Invalid region: " + exchange.getRequestURI().getRawQuery());
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set(WIDTH_HEADER, Integer.toString(region.width));
+            exchange.getResponseHeaders().set(HEIGHT_HEADER, Integer.toString(region.height));
+            int size = region.width * region.height * 3;
+            exchange.sendResponseHeaders(200, size);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(region.pixels, 0, size);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Region could not be served: {}", e.getMessage());
+            // The client is told why, unless the region was already being
+            // sent
+            if (exchange.getResponseCode() == -1) {
+                sendError(exchange, 500, String.valueOf(e.getMessage()));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns a region of an image, from the cache if possible
+     *
+     * @param imageName
+     * @param imageServer
+     * @param downsample
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @return Region
+     * @throws IOException
+     */
+    private Region getRegion(String imageName, ImageServer<BufferedImage> imageServer, double downsample, int x,
+            int y, int width, int height) throws IOException {
+        String key = String.format("%s/%s/%d/%d/%d/%d", imageName, downsample, x, y, width, height);
+        synchronized (cache) {
+            Region region = cache.get(key);
+            if (region != null) {
+                hits++;
+                return region;
+            }
+            misses++;
+        }
+
+        BufferedImage img = imageServer.readRegion(
+                RegionRequest.createInstance(imageServer.getPath(), downsample, x, y, width, height));
+        Region region = new Region(imageName, img.getWidth(), img.getHeight(), Utils.toBGR(img));
+
+        synchronized (cache) {
+            if (region.pixels.length <= MAX_CACHE_BYTES && cache.put(key, region) == null) {
+                cacheBytes += region.pixels.length;
+            }
+            Iterator<Region> it = cache.values().iterator();
+            while (cacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+                cacheBytes -= it.next().pixels.length;
+                it.remove();
+            }
+        }
+        return region;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int i = param.indexOf('=');
+            if (i > 0) {
+                params.put(URLDecoder.decode(param.substring(0, i), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(i + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Pixels of a region, as served
+     */
+    private static class Region {
+
+        private final String imageName;
+
+        private final int width;
+
+        private final int height;
+
+        private final byte[] pixels;
+
+        private Region(String imageName, int width, int height, byte[] pixels) {
+            this.imageName = imageName;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+}
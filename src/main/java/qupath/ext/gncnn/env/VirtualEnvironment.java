@@ -9,12 +9,15 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.controlsfx.tools.Platform;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.ext.gncnn.GNCnnPreferences;
 import qupath.ext.gncnn.entities.ProgressListener;
 
 /**
@@ -25,7 +28,15 @@ import qupath.ext.gncnn.entities.ProgressListener;
  */
 public class VirtualEnvironment {
 
-    private final Logger logger = LoggerFactory.getLogger(VirtualEnvironment.class);
+    private static final Logger logger = LoggerFactory.getLogger(VirtualEnvironment.class);
+
+    // Maximum number of output lines logged per second, so large slides do
+    // not flood the log
+    private static final int MAX_LOGGED_LINES_PER_SECOND = 20;
+
+    // Number of Python processes which may run at the same time, between
+    // which the cores are divided
+    private static volatile int processConcurrency = 1;
 
     private String name;
 
@@ -33,20 +44,62 @@ public class VirtualEnvironment {
 
     private ProgressListener progressListener;
 
+    // Progress steps accounted for by the command
+    private double progressSteps = 1.0;
+
+    // Fraction of the command reported by its events
+    private double reportedProgress = 0.0;
+
+    private long logWindowStart = 0;
+
+    private int loggedLines = 0;
+
+    private int suppressedLines = 0;
+
+    private Consumer<CommandEvent> eventListener;
+
     public VirtualEnvironment(String name, ProgressListener progressListener) {
         this.name = name;
         this.progressListener = progressListener;
     }
 
-    private double parseDetectionProgress(String line) {
-        String[] splitted = line.split("\\s+");
-        for (String s : splitted) {
-            if (s.contains("%")) {
-                // Remove the everything after the percentage sign (including the sign itself)
-                return Double.parseDouble(s.substring(0, s.indexOf("%"))) / 100.0;
-            }
+    /**
+     * Sets the number of Python processes which may run at the same time, so
+     * each of them uses its share of the cores instead of all of them
+     * 
+     * @param concurrency
+     */
+    public static void setProcessConcurrency(int concurrency) {
+        processConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Returns the number of threads each Python process may use
+     * 
+     * @return Threads per process
+     */
+    public static int getThreadsPerProcess() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / processConcurrency);
+    }
+
+    /**
+     * Sets the environment variables of a Python process: the events are
+     * enabled, the OpenMP, MKL and torch threads are limited to the share of
+     * the cores of the process, and the region server is made available if it
+     * is enabled
+     * 
+     * @param environment
+     * @throws IOException If the region server cannot be started
+     */
+    static void configureEnvironment(Map<String, String> environment) throws IOException {
+        String threads = Integer.toString(getThreadsPerProcess());
+        environment.put(CommandEvent.EVENTS_VARIABLE, "1");
+        environment.put("OMP_NUM_THREADS", threads);
+        environment.put("MKL_NUM_THREADS", threads);
+        environment.put("GNCNN_NUM_THREADS", threads);
+        if (GNCnnPreferences.regionServerProperty().get()) {
+            RegionServer.getInstance().configureEnvironment(environment);
         }
-        return -1.0;
     }
 
     /**
@@ -58,6 +111,35 @@ public class VirtualEnvironment {
         this.arguments = arguments;
     }
 
+    /**
+     * Sets an action run for each event of the command, e.g. to read the
+     * values it reports
+     * 
+     * @param eventListener
+     */
+    public void setEventListener(Consumer<CommandEvent> eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Sets the number of progress steps accounted for by the command, which
+     * are added as the command reports its progress (1 by default)
+     * 
+     * @param progressSteps
+     */
+    public void setProgressSteps(double progressSteps) {
+        this.progressSteps = progressSteps;
+    }
+
+    /**
+     * Adds the progress steps of the command not reported by its events, e.g.
+     * once the results of the command are read
+     */
+    public synchronized void completeProgress() {
+        progressListener.addProgress(progressSteps * (1.0 - reportedProgress));
+        reportedProgress = 1.0;
+    }
+
     /**
      * Builds the command to be run and executes it
      * 
@@ -67,53 +149,15 @@ public class VirtualEnvironment {
      *                              is started
      */
     public void runCommand() throws IOException, InterruptedException {
-        List<String> command = new ArrayList<>();
-
-        // Get the arguments specific to the command we want to run
-        command.addAll(arguments);
-
-        List<String> shell = new ArrayList<>();
-        switch (Platform.getCurrent()) {
-            // For UNIX, encapsulate the command in a single string
-            case UNIX:
-            case OSX:
-                shell.addAll(Arrays.asList("bash", "-c"));
-
-                // If there are spaces, encapsulate the command with quotes
-                command = command.stream().map(s -> {
-                    if (s.trim().contains(" "))
-                        return "\"" + s.trim() + "\"";
-                    return s;
-                }).collect(Collectors.toList());
-
-                // The last part needs to be sent as a single string, otherwise it does not run
-                String cmdString = command.toString().replace(",", "");
-
-                shell.add(cmdString.substring(1, cmdString.length() - 1));
-                break;
-
-            // For windows, continue appending the command;
-            case WINDOWS:
-            default:
-                shell.addAll(Arrays.asList("cmd.exe", "/C"));
-                shell.addAll(command);
-                break;
+        if (GNCnnPreferences.persistentWorkerProperty().get()) {
+            runInWorker();
+            return;
         }
 
-        // Make the command human readable
-        List<String> printable = shell.stream().map(s -> {
-            // Add quotes if there are spaces in the paths
-            if (s.contains(" "))
-                return "\"" + s + "\"";
-            else
-                return s;
-        }).collect(Collectors.toList());
-        String executionString = printable.toString().replace(",", "");
-
-        logger.info("Executing command:\n{}", executionString.substring(1, executionString.length() - 1));
-        logger.info("This command should run directly if copy-pasted into your shell");
+        List<String> shell = buildShellCommand(arguments);
 
         ProcessBuilder pb = new ProcessBuilder(shell).redirectErrorStream(true);
+        configureEnvironment(pb.environment());
 
         // Check if the thread has been interrupted before starting the process
         if (Thread.interrupted()) {
@@ -128,19 +172,8 @@ public class VirtualEnvironment {
             public void run() {
                 BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
                 try {
-                    double currentProgress = 0.0;
-                    if (name.equals("GlomerulusDetectionTask")) {
-                        currentProgress = progressListener.getProgress();
-                    }
-
                     for (String line = stdIn.readLine(); line != null;) {
-                        logger.info("{}: {}", name, line);
-                        if (name.equals("GlomerulusDetectionTask") && line.contains("%")) {
-                            double detectionProgress = parseDetectionProgress(line);
-                            if (detectionProgress != -1.0) {
-                                progressListener.updateProgress(currentProgress, detectionProgress);
-                            }
-                        }
+                        handleOutputLine(line);
                         line = stdIn.readLine();
                     }
                 } catch (IOException e) {
@@ -162,6 +195,10 @@ public class VirtualEnvironment {
             throw e;
         }
 
+        // Wait for the remaining output, so it is not mixed with the next
+        // command
+        t.join(1000);
+        logSuppressedLines();
         logger.info("Virtual Environment Runner Finished");
 
         int exitValue = p.exitValue();
@@ -172,6 +209,168 @@ public class VirtualEnvironment {
         }
     }
 
+    /**
+     * Runs the command as a job of a persistent Python worker, which keeps the
+     * libraries and the models loaded between commands
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runInWorker() throws IOException, InterruptedException {
+        // Check if the thread has been interrupted before sending the job
+        if (Thread.interrupted()) {
+            logger.warn("Thread interrupted");
+            return;
+        }
+
+        PythonWorker worker = PythonWorker.acquire();
+        int exitValue;
+        try {
+            exitValue = worker.runJob(arguments, this::handleOutputLine);
+        } finally {
+            PythonWorker.release(worker);
+        }
+
+        logSuppressedLines();
+        logger.info("Virtual Environment Worker Job Finished");
+
+        if (exitValue != 0) {
+            logger.error("Worker job '{}' exited with value {}. Please check output above for indications of the problem.",
+                    name, exitValue);
+        }
+    }
+
+    /**
+     * Handles a line of the command output: events update the progress and
+     * are logged by type, and the rest of the lines are logged up to a
+     * maximum rate
+     * 
+     * @param line
+     */
+    private synchronized void handleOutputLine(String line) {
+        CommandEvent event = CommandEvent.parse(line);
+        if (event == null) {
+            logOutputLine(line);
+            return;
+        }
+
+        if (event.hasProgress() && event.getProgress() > reportedProgress) {
+            progressListener.addProgress(progressSteps * (event.getProgress() - reportedProgress));
+            reportedProgress = event.getProgress();
+        }
+        if (eventListener != null) {
+            eventListener.accept(event);
+        }
+
+        switch (event.getType()) {
+            case "error":
+                logger.error("{}: {}: {}", name, event.getString("type", "Error"), event.getString("message", ""));
+                break;
+            case "detections":
+                logger.info("{}: {} {} detections", name, (long) event.getDouble("count", 0),
+                        event.getString("name", ""));
+                break;
+            case "start":
+            case "end":
+            case "timing":
+            case "cache":
+                logger.info("{}: {}", name, event);
+                break;
+            default:
+                // Events for each tile or crop
+                logger.debug("{}: {}", name, event);
+                break;
+        }
+    }
+
+    /**
+     * Logs a line of the command output, unless too many lines were logged in
+     * the last second
+     * 
+     * @param line
+     */
+    private void logOutputLine(String line) {
+        long now = System.currentTimeMillis();
+        if (now - logWindowStart >= 1000) {
+            logSuppressedLines();
+            logWindowStart = now;
+            loggedLines = 0;
+        }
+        if (loggedLines < MAX_LOGGED_LINES_PER_SECOND) {
+            logger.info("{}: {}", name, line);
+            loggedLines++;
+        } else {
+            logger.debug("{}: {}", name, line);
+            suppressedLines++;
+        }
+    }
+
+    /**
+     * Logs the number of output lines not logged because of the rate limit
+     */
+    private synchronized void logSuppressedLines() {
+        if (suppressedLines > 0) {
+            logger.info("{}: {} output lines not logged", name, suppressedLines);
+            suppressedLines = 0;
+        }
+    }
+
+    /**
+     * Wraps the command in the shell of the current platform
+     * 
+     * @param arguments Command and its arguments
+     * @return Shell command to be run
+     */
+    static List<String> buildShellCommand(List<String> arguments) {
+        List<String> command = new ArrayList<>();
+
+        // Get the arguments specific to the command we want to run
+        command.addAll(arguments);
+
+        List<String> shell = new ArrayList<>();
+        switch (Platform.getCurrent()) {
+            // For UNIX, encapsulate the command in a single string
+            case UNIX:
+            case OSX:
+                shell.addAll(Arrays.asList("bash", "-c"));
+
+                // If there are spaces, encapsulate the command with quotes
+                command = command.stream().map(s -> {
+                    if (s.trim().contains(" "))
+                        return "\"" + s.trim() + "\"";
+                    return s;
+                }).collect(Collectors.toList());
+
+                // The last part needs to be sent as a single string, otherwise it does not run
+                String cmdString = command.toString().replace(",", "");
+
+                shell.add(cmdString.substring(1, cmdString.length() - 1));
+                break;
+
+            // For windows, continue appending the command;
+            case WINDOWS:
+            default:
+                shell.addAll(Arrays.asList("cmd.exe", "/C"));
+                shell.addAll(command);
+                break;
+        }
+
+        // Make the command human readable
+        List<String> printable = shell.stream().map(s -> {
+            // Add quotes if there are spaces in the paths
+            if (s.contains(" "))
+                return "\"" + s + "\"";
+            else
+                return s;
+        }).collect(Collectors.toList());
+        String executionString = printable.toString().replace(",", "");
+
+        logger.info("Executing command:\n{}", executionString.substring(1, executionString.length() - 1));
+        logger.info("This command should run directly if copy-pasted into your shell");
+
+        return shell;
+    }
+
     /**
      * Interrupts the thread running the command
      */
@@ -6,10 +6,24 @@ package qupath.ext.gncnn.tasks;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,24 +32,35 @@ import javafx.concurrent.Task;
 import qupath.ext.gncnn.entities.ProgressListener;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.gui.QuPathGUI;
+import qupath.lib.geom.Point2;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
 
 /**
- * Class to export the annotations to images
+ * Class to export the annotations to images. If the classifier reads the
+ * crops from the {@link qupath.ext.gncnn.env.RegionServer}, only the list of
+ * crops is saved.
+ *
+ * The crops are sorted so that crops close in the WSI are read one after the
+ * other, reusing the tiles in the cache of the ImageServer, and they are read
+ * and encoded in parallel.
+ *
+ * If a classifier is given, each crop is read from the pyramid level closest
+ * to its input size, instead of at full resolution, as the classifier resizes
+ * the crops anyway. The padding can be given in um, so the crops have the same
+ * context whatever the pixel size of the scanner.
  */
 public class AnnotationExportTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(AnnotationExportTask.class);
 
-    private QuPathGUI qupath;
+    private RunContext context;
 
     private List<String> selectedImages;
 
@@ -43,28 +68,80 @@ public class AnnotationExportTask extends Task<Void> {
 
     private double downsample;
 
+    private double paddingMicrons;
+
+    private String classifierModelName;
+
+    // Read from the classifier config on first use
+    private int classifierInputSize = -1;
+
+    private boolean saveCropList;
+
+    private String cropFormat;
+
+    private float cropQuality;
+
+    private ImageSession session;
+
+    private StageJournal stageJournal;
+
     private ProgressListener progressListener;
 
-    public AnnotationExportTask(QuPathGUI quPath, List<String> selectedImages, int padding, double downsample,
-            ProgressListener progressListener) {
-        this.qupath = quPath;
+    /**
+     * @param context
+     * @param selectedImages
+     * @param padding             Padding of the crops, in full-resolution
+     *                            pixels, if paddingMicrons is 0 or the pixel
+     *                            size is unknown
+     * @param downsample          Minimum downsample of the crops
+     * @param paddingMicrons      Padding of the crops, in um, or 0 to use
+     *                            padding
+     * @param classifierModelName Binary classifier whose input size the
+     *                            crops are read at, or null to read them at
+     *                            the given downsample
+     * @param saveCropList        Whether only the list of crops is saved, for
+     *                            the region server
+     * @param cropFormat          png or jpg
+     * @param cropQuality         Compression quality, 0-1
+     * @param session
+     * @param journal
+     * @param progressListener
+     */
+    public AnnotationExportTask(RunContext context, List<String> selectedImages, int padding, double downsample,
+            double paddingMicrons, String classifierModelName, boolean saveCropList, String cropFormat,
+            float cropQuality, ImageSession session, RunJournal journal, ProgressListener progressListener) {
+        this.context = context;
         this.selectedImages = selectedImages;
         this.padding = padding;
         this.downsample = downsample;
+        this.paddingMicrons = paddingMicrons;
+        this.classifierModelName = classifierModelName;
+        this.saveCropList = saveCropList;
+        this.cropFormat = cropFormat;
+        this.cropQuality = cropQuality;
+        this.session = session;
         this.progressListener = progressListener;
+        this.stageJournal = new StageJournal(journal, getClass().getSimpleName(),
+                "Exporting annotations for {} already finished, skipping", this::getSettings, progressListener);
     }
 
     @Override
     protected Void call() throws Exception {
         try {
-            Project<BufferedImage> project = qupath.getProject();
-            String outputBaseDir = Utils.getBaseDir(qupath);
+            Project<BufferedImage> project = context.getProject();
+            String outputBaseDir = context.getBaseDir();
             if (project != null) {
-                exportAnnotationsProject(project, outputBaseDir);
+                exportAnnotationsProject(outputBaseDir);
             } else {
-                ImageData<BufferedImage> imageData = qupath.getImageData();
+                ImageData<BufferedImage> imageData = context.getImageData();
                 if (imageData != null) {
+                    String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+                    String annotationsFingerprint = getAnnotationsFingerprint(imageData);
+                    if (stageJournal.canSkip(imageName, annotationsFingerprint)) {
+                        return null;
+                    }
                     exportAnnotations(imageData, outputBaseDir);
+                    markFinished(imageName, outputBaseDir, annotationsFingerprint);
                 } else {
                     logger.error("No image or project is open");
                 }
@@ -78,6 +155,66 @@ public class AnnotationExportTask extends Task<Void> {
         return null;
     }
 
+    /**
+     * Returns the description of the parameters of this stage
+     * 
+     * @return Settings of the stage
+     */
+    private String getSettings() {
+        return String.format("padding=%d,downsample=%s,paddingMicrons=%s,classifier=%s,list=%s,format=%s,quality=%s",
+                padding, downsample, paddingMicrons, classifierModelName, saveCropList, cropFormat, cropQuality);
+    }
+
+    /**
+     * Returns a fingerprint of the regions of the annotations of an image,
+     * which the exported images depend on. The classes are left out, as the
+     * classification changes them
+     * 
+     * @param imageData
+     * @return Hash of the IDs and ROIs of the annotations
+     */
+    static String getAnnotationsFingerprint(ImageData<BufferedImage> imageData) {
+        List<PathObject> annotations = new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+        annotations.sort(Comparator.comparing(annotation -> annotation.getID().toString()));
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (PathObject annotation : annotations) {
+            ROI roi = annotation.getROI();
+            sb.setLength(0);
+            sb.append(annotation.getID()).append(';').append(roi.getRoiName()).append(';').append(roi.getZ())
+                    .append(';').append(roi.getT());
+            for (Point2 point : roi.getAllPoints()) {
+                sb.append(';').append(point.getX()).append(',').append(point.getY());
+            }
+            sb.append('\n');
+            digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Records in the run journal that the annotations of the image were
+     * exported, along with the folder of the exported images or their list
+     * 
+     * @param imageName
+     * @param outputBaseDir
+     * @param annotationsFingerprint
+     * @throws IOException
+     */
+    private void markFinished(String imageName, String outputBaseDir, String annotationsFingerprint)
+            throws IOException {
+        String outputPath = saveCropList ? TaskPaths.getCropListPath(outputBaseDir, imageName)
+                : TaskPaths.getAnnotationOutputDir(outputBaseDir, imageName);
+        stageJournal.markFinished(imageName, annotationsFingerprint,
+                new File(outputPath).exists() ? List.of(outputPath) : List.of());
+    }
+
     /**
      * Exports the annotations of a WSI to images
      * 
@@ -100,35 +237,57 @@ public class AnnotationExportTask extends Task<Void> {
 
         if (annotations.isEmpty()) {
             logger.info("No annotations found for {}", imageName);
+            progressListener.updateProgress();
             return;
-        } else {
+        } else if (!saveCropList) {
             // Create the output folder if it does not exist
             Utils.createFolder(outputPath);
         }
 
-        logger.info("Exporting {} annotations for {}", annotations.size(), imageName);
+        int cropPadding = getCropPadding(server);
+        int inputSize = getClassifierInputSize();
+        logger.info("Exporting {} annotations for {} [padding={},input size={}]", annotations.size(), imageName,
+                cropPadding, inputSize);
+        List<RegionRequest> regions = new ArrayList<>();
         for (PathObject annotation : annotations) {
-            // TODO: Update progress with each annotation
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
-            }
-
             ROI roi = annotation.getROI();
+            int width = (int) roi.getBoundsWidth() + cropPadding * 2;
+            int height = (int) roi.getBoundsHeight() + cropPadding * 2;
+            regions.add(RegionRequest.createInstance(server.getPath(),
+                    getCropDownsample(server, Math.min(width, height), inputSize),
+                    (int) roi.getBoundsX() - cropPadding, (int) roi.getBoundsY() - cropPadding, width, height,
+                    roi.getZ(), roi.getT()));
+        }
+        List<PathObject> annotationList = new ArrayList<>(annotations);
+        List<Integer> order = sortByTile(server, regions);
+
+        List<String> outputNames = new ArrayList<>();
+        List<RegionRequest> sortedRegions = new ArrayList<>();
+        for (int i : order) {
+            PathObject annotation = annotationList.get(i);
+            RegionRequest region = regions.get(i);
             String className = annotation.getPathClass().getName();
             String annotationId = annotation.getID().toString();
+            sortedRegions.add(region);
+            outputNames.add(String.format("%s_%s_%s_%d_%d_%d_%d.%s", imageName, className, annotationId,
+                    region.getX(), region.getY(), region.getWidth(), region.getHeight(), cropFormat));
+        }
+        regions = sortedRegions;
 
-            RegionRequest region = RegionRequest.createInstance(server.getPath(), downsample,
-                    (int) roi.getBoundsX() - padding, (int) roi.getBoundsY() - padding,
-                    (int) roi.getBoundsWidth() + padding * 2, (int) roi.getBoundsHeight() + padding * 2, roi.getZ(),
-                    roi.getT());
-
-            String outputName = String.format("%s_%s_%s_%d_%d_%d_%d.png", imageName, className, annotationId,
-                    region.getX(), region.getY(), region.getWidth(), region.getHeight());
-
-            BufferedImage img = server.readRegion(region);
-            File outputFile = new File(outputPath, outputName);
-
-            ImageIO.write(img, "PNG", outputFile);
+        if (saveCropList) {
+            // The classifier reads the crops from the region server
+            List<String> cropList = new ArrayList<>();
+            for (int i = 0; i < regions.size(); i++) {
+                RegionRequest region = regions.get(i);
+                cropList.add(String.format("%s\t%s\t%d\t%d\t%d\t%d", outputNames.get(i), region.getDownsample(),
+                        region.getX(), region.getY(), region.getWidth(), region.getHeight()));
+            }
+            Path cropListPath = Paths.get(TaskPaths.getCropListPath(outputBaseDir,
+                    GeneralTools.stripExtension(imageName)));
+            Files.createDirectories(cropListPath.getParent());
+            Files.write(cropListPath, cropList);
+        } else {
+            writeCrops(server, regions, outputNames, outputPath);
         }
         logger.info("Exporting annotations for {} finished", imageName);
 
@@ -136,24 +295,184 @@ public class AnnotationExportTask extends Task<Void> {
         progressListener.updateProgress();
     }
 
+    /**
+     * Returns the padding of the crops in full-resolution pixels, from the
+     * padding in um if the pixel size of the image is known
+     * 
+     * @param server
+     * @return Padding, in pixels
+     */
+    private int getCropPadding(ImageServer<BufferedImage> server) {
+        PixelCalibration cal = server.getPixelCalibration();
+        if (paddingMicrons > 0 && cal.hasPixelSizeMicrons()) {
+            return (int) Math.round(paddingMicrons / cal.getAveragedPixelSizeMicrons());
+        }
+        return padding;
+    }
+
+    /**
+     * Returns the input size of the classifier, reading it from its config
+     * the first time
+     * 
+     * @return Input size, or 0 if the crops are read at the given downsample
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private int getClassifierInputSize() throws IOException, InterruptedException {
+        if (classifierInputSize < 0) {
+            classifierInputSize = classifierModelName == null ? 0
+                    : ClassificationTask.getInputSize(classifierModelName, progressListener);
+        }
+        return classifierInputSize;
+    }
+
+    /**
+     * Returns the downsample a crop is read at: that of the highest-resolution
+     * pyramid level at which its shorter side is not below the input size of
+     * the classifier, so the crop is only resized by the classifier
+     * 
+     * @param server
+     * @param side      Shorter side of the crop, in full-resolution pixels
+     * @param inputSize Input size of the classifier, or 0
+     * @return Downsample of the crop
+     */
+    private double getCropDownsample(ImageServer<BufferedImage> server, int side, int inputSize) {
+        if (inputSize <= 0) {
+            return downsample;
+        }
+        double maxDownsample = (double) side / inputSize;
+        double cropDownsample = downsample;
+        for (double level : server.getPreferredDownsamples()) {
+            // Levels whose downsample is rounded in the metadata are allowed
+            if (level > cropDownsample && level <= maxDownsample * 1.01) {
+                cropDownsample = level;
+            }
+        }
+        return cropDownsample;
+    }
+
+    /**
+     * Sorts the crops by their pyramid level, and along a Z-order curve over
+     * the tiles of the level, so that consecutive crops mostly read the same
+     * tiles
+     * 
+     * @param server
+     * @param regions
+     * @return Indices of the crops, sorted
+     */
+    private static List<Integer> sortByTile(ImageServer<BufferedImage> server, List<RegionRequest> regions) {
+        int tileWidth = Math.max(1, server.getMetadata().getPreferredTileWidth());
+        int tileHeight = Math.max(1, server.getMetadata().getPreferredTileHeight());
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < regions.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.<Integer>comparingDouble(i -> regions.get(i).getDownsample())
+                .thenComparingLong(i -> {
+                    // Tile of the level read which contains the crop origin
+                    RegionRequest region = regions.get(i);
+                    return getZOrder((int) (Math.max(0, region.getX()) / (tileWidth * region.getDownsample())),
+                            (int) (Math.max(0, region.getY()) / (tileHeight * region.getDownsample())));
+                }));
+        return order;
+    }
+
+    /**
+     * Returns the position of a tile along a Z-order curve, interleaving the
+     * bits of its column and row
+     * 
+     * @param column
+     * @param row
+     * @return Z-order of the tile
+     */
+    private static long getZOrder(int column, int row) {
+        long z = 0;
+        for (int bit = 0; bit < 31; bit++) {
+            z |= (long) ((column >> bit) & 1) << (2 * bit);
+            z |= (long) ((row >> bit) & 1) << (2 * bit + 1);
+        }
+        return z;
+    }
+
+    /**
+     * Reads and encodes the crops in parallel on the pool shared by the
+     * images, in the given order
+     * 
+     * @param server
+     * @param regions
+     * @param outputNames
+     * @param outputPath
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeCrops(ImageServer<BufferedImage> server, List<RegionRequest> regions, List<String> outputNames,
+            String outputPath) throws IOException, InterruptedException {
+        List<Callable<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < regions.size(); i++) {
+            RegionRequest region = regions.get(i);
+            File outputFile = new File(outputPath, outputNames.get(i));
+            writes.add(() -> {
+                writeCrop(server.readRegion(region), outputFile);
+                return null;
+            });
+        }
+        RegionPool.invokeAll(writes);
+    }
+
+    /**
+     * Encodes a crop with the format and quality of the task. For PNG, the
+     * quality only trades compression for speed, as it is lossless
+     * 
+     * @param img
+     * @param outputFile
+     * @throws IOException
+     */
+    private void writeCrop(BufferedImage img, File outputFile) throws IOException {
+        if (img.getColorModel().hasAlpha()) {
+            // JPEG does not support transparency, and the crops are opaque
+            BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            rgb.getGraphics().drawImage(img, 0, 0, null);
+            img = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(cropFormat).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(cropQuality);
+        }
+        Files.deleteIfExists(outputFile.toPath());
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(outputFile)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
     /**
      * Export the annotations for each WSI in the project to images
      * 
-     * @param project
      * @param outputBaseDir
      * @throws InterruptedException
      * @throws IOException
      */
-    private void exportAnnotationsProject(Project<BufferedImage> project, String outputBaseDir)
-            throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+    private void exportAnnotationsProject(String outputBaseDir) throws IOException, InterruptedException {
         logger.info("Exporting annotations for {} images in the project", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                exportAnnotations(imageData, outputBaseDir);
+        for (String imageName : selectedImages) {
+            // The image is read before checking the journal, as the exported
+            // images depend on its annotations
+            ImageData<BufferedImage> imageData = session.getImageData(imageName);
+            if (imageData == null) {
+                logger.warn("Image {} not found in the project", imageName);
+                continue;
+            }
+            String annotationsFingerprint = getAnnotationsFingerprint(imageData);
+            if (stageJournal.canSkip(imageName, annotationsFingerprint)) {
+                continue;
             }
+            exportAnnotations(imageData, outputBaseDir);
+            markFinished(imageName, outputBaseDir, annotationsFingerprint);
         }
         logger.info("Exporting annotations for {} images in the project finished", selectedImages.size());
     }
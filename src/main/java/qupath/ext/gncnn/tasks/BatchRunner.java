@@ -0,0 +1,617 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.env.PythonWorker;
+import qupath.ext.gncnn.env.RegionServer;
+import qupath.ext.gncnn.env.VirtualEnvironment;
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerBuilder.UriImageSupport;
+import qupath.lib.images.servers.ImageServerProvider;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+import qupath.lib.scripting.QP;
+
+/**
+ * Runs the stages of the extension on a project without the GUI, e.g. from a
+ * QuPath script run with {@code QuPath script}, so projects can be processed
+ * on machines without a display. The stages are run one after the other for
+ * all the images, as in a run started from the GUI which is not pipelined, and
+ * they share the run journal with the GUI, so the images and stages which did
+ * not change are skipped.
+ *
+ * The results of the run are written as JSON, and {@link #main(String[])}
+ * exits with one of the {@code EXIT_} codes.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class BatchRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+    /**
+     * Every stage was finished for every image
+     */
+    public static final int EXIT_OK = 0;
+
+    /**
+     * Some stages were not finished for some images; running again resumes
+     * them
+     */
+    public static final int EXIT_INCOMPLETE = 1;
+
+    /**
+     * The arguments are not valid
+     */
+    public static final int EXIT_USAGE = 2;
+
+    /**
+     * The project could not be opened or the run could not be started
+     */
+    public static final int EXIT_ERROR = 3;
+
+    private static final String RESULTS_FILE = "gncnn-batch-results.json";
+
+    private static final String USAGE = String.join("\n",
+            "Usage: BatchRunner (--project=<file.qpproj> | --output=<dir> --slide=<path>...) [options]",
+            "  --project=<file>   Project to process",
+            "  --slide=<path>     Slide to process, added to the project in --output (repeatable)",
+            "  --output=<dir>     Directory of the project created for the slides",
+            "  --image=<name>     Only process this image of the project (repeatable)",
+            "  --stages=<stages>  all (default), detection or classification",
+            "  --multiclass       Classify the glomeruli into the 12 classes too",
+            "  --results=<file>   JSON file of the results (default: " + RESULTS_FILE
+                    + " in the project directory)",
+            "Sharded runs:",
+            "  --plan=<dir>       Split the images of --project into units of a job in <dir>",
+            "  --unit-size=<n>    Images of each unit (default: " + ShardedJob.DEFAULT_UNIT_SIZE + ")",
+            "  --lease-seconds=<n> Time after which a unit of a crashed worker is processed again (default: "
+                    + ShardedJob.DEFAULT_LEASE_SECONDS + ")",
+            "  --work=<dir>       Process the units of the job in <dir> until all are done",
+            "  --worker-id=<id>   ID of the worker (default: host name and process ID)",
+            "  --local-workers=<n> Start <n> worker processes on this machine",
+            "  --merge=<dir>      Apply the results of the job in <dir> to its project");
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Runs the stages with the given arguments, printing the results, and
+     * exits with the code of the run
+     *
+     * @param args See {@link #USAGE}
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the stages with the given arguments, writing the results to a JSON
+     * file and printing them
+     *
+     * @param args
+     * @return Exit code of the run
+     */
+    public static int run(String... args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        try {
+            if (options.work != null) {
+                return work(options) ? EXIT_OK : EXIT_INCOMPLETE;
+            }
+            if (options.merge != null) {
+                return ShardedJob.merge(Paths.get(options.merge)) ? EXIT_OK : EXIT_INCOMPLETE;
+            }
+
+            Project<BufferedImage> project = options.project != null
+                    ? ProjectIO.loadProject(new File(options.project), BufferedImage.class)
+                    : createProject(new File(options.output), options.slides);
+            List<String> projectImages = new ArrayList<>();
+            for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+                projectImages.add(GeneralTools.stripExtension(entry.getImageName()));
+            }
+            List<String> images = options.images.isEmpty() ? projectImages : options.images;
+            for (String imageName : images) {
+                if (!projectImages.contains(imageName)) {
+                    System.err.println("Image not found in the project: " + imageName);
+                    return EXIT_USAGE;
+                }
+            }
+
+            if (options.plan != null) {
+                ShardedJob.plan(Paths.get(options.plan), options.project, images, options.stages,
+                        options.multiclass, options.unitSize, options.leaseSeconds);
+                return EXIT_OK;
+            }
+
+            BatchResult result = run(project, images, options.stages, options.multiclass);
+
+            String json = GsonTools.getInstance(true).toJson(result);
+            Path resultsPath = options.results != null ? Paths.get(options.results)
+                    : Paths.get(RunContext.of(project).getBaseDir(), RESULTS_FILE);
+            if (resultsPath.getParent() != null) {
+                Files.createDirectories(resultsPath.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(resultsPath, StandardCharsets.UTF_8)) {
+                writer.write(json);
+            }
+            logger.info("Results written to {}", resultsPath);
+            System.out.println(json);
+            return result.complete ? EXIT_OK : EXIT_INCOMPLETE;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Batch run failed: {}", e.getMessage(), e);
+            return EXIT_ERROR;
+        } catch (InterruptedException e) {
+            logger.error("Batch run interrupted: {}", e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            return EXIT_ERROR;
+        }
+    }
+
+    /**
+     * Runs a worker of a sharded job, or starts the local workers. The worker
+     * processes started by this one get their ID from the environment
+     *
+     * @param options
+     * @return True if the units processed were complete
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static boolean work(Options options) throws IOException, InterruptedException {
+        Path jobDir = Paths.get(options.work);
+        String workerId = System.getenv(ShardedJob.WORKER_ID_VARIABLE);
+        if (workerId == null && options.localWorkers > 0) {
+            return ShardedJob.workLocal(jobDir, options.localWorkers);
+        }
+        return ShardedJob.work(jobDir, workerId != null ? workerId : options.workerId);
+    }
+
+    /**
+     * Runs the stages on images of a project, saving the images once all the
+     * stages have finished
+     *
+     * @param project
+     * @param images     Names of the images, without extension
+     * @param stages     all, detection or classification
+     * @param multiclass Whether to classify the glomeruli into the 12 classes
+     * @return Results of the run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static BatchResult run(Project<BufferedImage> project, List<String> images, String stages,
+            boolean multiclass) throws IOException, InterruptedException {
+        return run(RunContext.of(project), new ImageSession(project), images, stages, multiclass);
+    }
+
+    /**
+     * Runs the stages on images of a project, in the given context, saving the
+     * images with the given session once all the stages have finished
+     *
+     * @param context
+     * @param session
+     * @param images     Names of the images, without extension
+     * @param stages     all, detection or classification
+     * @param multiclass Whether to classify the glomeruli into the 12 classes
+     * @return Results of the run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static BatchResult run(RunContext context, ImageSession session, List<String> images, String stages,
+            boolean multiclass) throws IOException, InterruptedException {
+        String baseDir = context.getBaseDir();
+        RunJournal journal = RunJournal.open(baseDir);
+        journal.updateSources(session.getSourceFingerprints(images));
+        TaskFactory taskFactory = new TaskFactory(context, session, journal);
+
+        List<String> stageNames = getStageNames(stages);
+        ProgressListener progressListener = new ProgressListener(1.0 / (stageNames.size() * images.size()));
+        ObservableList<String> selectedImages = FXCollections.observableArrayList(images);
+        // Every task is created before the first one runs, so the journal
+        // knows the settings of every stage. The tasks are called in this
+        // thread, as there is no JavaFX application thread to report their
+        // state to
+        Map<String, Callable<Void>> tasks = new LinkedHashMap<>();
+        if (stageNames.contains(TissueDetectionTask.class.getSimpleName())) {
+            tasks.put(TissueDetectionTask.class.getSimpleName(),
+                    taskFactory.createTissueDetectionTask(selectedImages, progressListener)::call);
+            tasks.put(TilerTask.class.getSimpleName(),
+                    taskFactory.createTilerTask(selectedImages, progressListener)::call);
+            tasks.put(GlomerulusDetectionTask.class.getSimpleName(),
+                    taskFactory.createGlomerulusDetectionTask(selectedImages, progressListener)::call);
+        }
+        if (stageNames.contains(ClassificationTask.class.getSimpleName())) {
+            tasks.put(AnnotationExportTask.class.getSimpleName(),
+                    taskFactory.createAnnotationExportTask(selectedImages, progressListener)::call);
+            tasks.put(ClassificationTask.class.getSimpleName(),
+                    taskFactory.createClassificationTask(selectedImages, multiclass, progressListener)::call);
+        }
+
+        logger.info("Running {} stages for {} images of {}", tasks.size(), images.size(), baseDir);
+        VirtualEnvironment.setProcessConcurrency(1);
+        BatchResult result = new BatchResult(baseDir, stageNames);
+        try {
+            for (Map.Entry<String, Callable<Void>> task : tasks.entrySet()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                logger.info("Running {}", task.getKey());
+                // The stages log their own errors, and the journal tells which
+                // ones finished for each image
+                try {
+                    task.getValue().call();
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("{} failed: {}", task.getKey(), e.getMessage(), e);
+                }
+            }
+            // The glomeruli are counted before the images are released, and
+            // the stages once their records are saved along with the images
+            List<ImageResult> imageResults = new ArrayList<>();
+            for (String imageName : images) {
+                imageResults.add(countGlomeruli(imageName, session));
+            }
+            session.commit(images);
+            for (ImageResult imageResult : imageResults) {
+                setStages(imageResult, journal, stageNames);
+                result.images.add(imageResult);
+            }
+        } finally {
+            PythonWorker.shutdownAll();
+            RegionServer.shutdown();
+        }
+
+        result.setComplete(journal.isComplete(images, stageNames));
+        if (result.complete) {
+            File tempFolder = new File(QP.buildFilePath(baseDir, TaskPaths.TMP_FOLDER));
+            if (tempFolder.exists()) {
+                Utils.deleteFolder(tempFolder);
+            }
+        }
+        TissueMask.clearCache();
+        return result;
+    }
+
+    /**
+     * Returns the stages run for the given option, as in the buttons of the
+     * GUI
+     *
+     * @param stages all, detection or classification
+     * @return Names of the stages
+     */
+    private static List<String> getStageNames(String stages) {
+        switch (stages) {
+            case "all":
+                return RunJournal.STAGES;
+            case "detection":
+                return RunJournal.STAGES.subList(0, 3);
+            case "classification":
+                return RunJournal.STAGES.subList(3, 5);
+            default:
+                throw new IllegalArgumentException("Unknown stages: " + stages);
+        }
+    }
+
+    /**
+     * Returns the number of glomeruli of each class in an image, counting only
+     * the annotations detected or classified by the pipeline
+     *
+     * @param imageName
+     * @param session
+     * @return Result of the image, without its stages
+     * @throws IOException
+     */
+    private static ImageResult countGlomeruli(String imageName, ImageSession session) throws IOException {
+        ImageResult result = new ImageResult(imageName);
+        ImageData<BufferedImage> imageData = session.getImageData(imageName);
+        if (imageData != null) {
+            for (PathObject annotation : imageData.getHierarchy().getAnnotationObjects()) {
+                if (isGlomerulus(annotation)) {
+                    result.classes.merge(annotation.getPathClass().getName(), 1, Integer::sum);
+                    result.glomeruli++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if an annotation is a glomerulus detected by the pipeline,
+     * or classified by it, rather than e.g. a region drawn by hand
+     *
+     * @param annotation
+     * @return True if the annotation is a glomerulus of the pipeline
+     */
+    static boolean isGlomerulus(PathObject annotation) {
+        PathClass pathClass = annotation.getPathClass();
+        return pathClass != null
+                && (pathClass.getName().equals("Glomerulus") || ClassificationTask.isClassified(annotation));
+    }
+
+    /**
+     * Records the stages finished for an image, once its changes are saved
+     *
+     * @param result
+     * @param journal
+     * @param stageNames
+     */
+    private static void setStages(ImageResult result, RunJournal journal, List<String> stageNames) {
+        for (String stage : stageNames) {
+            result.stages.put(stage, journal.isComplete(List.of(result.name), List.of(stage)));
+        }
+        result.complete = !result.stages.containsValue(false);
+    }
+
+    /**
+     * Opens the project in a directory, or creates it, and adds the slides
+     * which are not in it yet
+     *
+     * @param dir
+     * @param slides Paths of the slides
+     * @return Project with the slides
+     * @throws IOException If the project cannot be created or a slide cannot
+     *                     be read
+     */
+    private static Project<BufferedImage> createProject(File dir, List<String> slides) throws IOException {
+        File file = new File(dir, ProjectIO.DEFAULT_PROJECT_NAME + "." + ProjectIO.DEFAULT_PROJECT_EXTENSION);
+        Project<BufferedImage> project = file.exists() ? ProjectIO.loadProject(file, BufferedImage.class)
+                : Projects.createProject(dir, BufferedImage.class);
+
+        Set<URI> projectURIs = new HashSet<>();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            projectURIs.addAll(entry.getURIs());
+        }
+        for (String slide : slides) {
+            if (projectURIs.contains(new File(slide).getAbsoluteFile().toURI())) {
+                continue;
+            }
+            UriImageSupport<BufferedImage> support = ImageServerProvider.getPreferredUriImageSupport(
+                    BufferedImage.class, slide);
+            if (support == null) {
+                throw new IOException("No image reader found for " + slide);
+            }
+            // A file may contain several images, e.g. the series of a
+            // multi-series file
+            for (ServerBuilder<BufferedImage> builder : support.getBuilders()) {
+                ProjectImageEntry<BufferedImage> entry = project.addImage(builder);
+                try (ImageServer<BufferedImage> server = builder.build()) {
+                    entry.setImageName(ServerTools.getDisplayableImageName(server));
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Image could not be opened: " + slide, e);
+                }
+                logger.info("Added {} to the project", entry.getImageName());
+            }
+        }
+        project.syncChanges();
+        return project;
+    }
+
+    /**
+     * Command-line options of the runner
+     */
+    private static class Options {
+
+        private String project;
+
+        private String output;
+
+        private List<String> slides = new ArrayList<>();
+
+        private List<String> images = new ArrayList<>();
+
+        private String stages = "all";
+
+        private boolean multiclass;
+
+        private String results;
+
+        private String plan;
+
+        private String work;
+
+        private String merge;
+
+        private int unitSize = ShardedJob.DEFAULT_UNIT_SIZE;
+
+        private long leaseSeconds = ShardedJob.DEFAULT_LEASE_SECONDS;
+
+        private String workerId;
+
+        private int localWorkers;
+
+        /**
+         * Parses the arguments, as {@code --name=value} or
+         * {@code --name value}
+         *
+         * @param args
+         * @return Options
+         * @throws IllegalArgumentException If the arguments are not valid
+         */
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--multiclass")) {
+                    options.multiclass = true;
+                    continue;
+                }
+                String name = arg;
+                String value;
+                int equals = arg.indexOf('=');
+                if (equals > 0) {
+                    name = arg.substring(0, equals);
+                    value = arg.substring(equals + 1);
+                } else if (i + 1 < args.length) {
+                    value = args[++i];
+                } else {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                switch (name) {
+                    case "--project":
+                        options.project = value;
+                        break;
+                    case "--output":
+                        options.output = value;
+                        break;
+                    case "--slide":
+                        options.slides.add(value);
+                        break;
+                    case "--image":
+                        options.images.add(value);
+                        break;
+                    case "--stages":
+                        getStageNames(value);
+                        options.stages = value;
+                        break;
+                    case "--results":
+                        options.results = value;
+                        break;
+                    case "--plan":
+                        options.plan = value;
+                        break;
+                    case "--work":
+                        options.work = value;
+                        break;
+                    case "--merge":
+                        options.merge = value;
+                        break;
+                    case "--unit-size":
+                        options.unitSize = parsePositive(name, value);
+                        break;
+                    case "--lease-seconds":
+                        options.leaseSeconds = parsePositive(name, value);
+                        break;
+                    case "--worker-id":
+                        options.workerId = value;
+                        break;
+                    case "--local-workers":
+                        options.localWorkers = parsePositive(name, value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            if (options.work != null || options.merge != null) {
+                // The job file has the project and the stages
+                return options;
+            }
+            if (options.plan != null && options.project == null) {
+                throw new IllegalArgumentException("--project is required with --plan");
+            }
+            if ((options.project == null) == options.slides.isEmpty()) {
+                throw new IllegalArgumentException("Either --project or --slide is required");
+            }
+            if (!options.slides.isEmpty() && options.output == null) {
+                throw new IllegalArgumentException("--output is required with --slide");
+            }
+            return options;
+        }
+
+        private static int parsePositive(String name, String value) {
+            try {
+                int n = Integer.parseInt(value);
+                if (n > 0) {
+                    return n;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Results of a batch run, written as JSON
+     */
+    public static class BatchResult {
+
+        private final String project;
+
+        private final List<String> stages;
+
+        private boolean complete;
+
+        private final List<ImageResult> images = new ArrayList<>();
+
+        BatchResult(String project, List<String> stages) {
+            this.project = project;
+            this.stages = stages;
+        }
+
+        /**
+         * @return True if every stage was finished for every image
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        void setComplete(boolean complete) {
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Results of an image, written as JSON
+     */
+    private static class ImageResult {
+
+        private final String name;
+
+        private boolean complete;
+
+        // Stage name -> whether it was finished
+        private final Map<String, Boolean> stages = new LinkedHashMap<>();
+
+        private int glomeruli;
+
+        // Class name -> number of glomeruli
+        private final Map<String, Integer> classes = new LinkedHashMap<>();
+
+        private ImageResult(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Tiles of the two passes of the candidate cascade: the detector is first run
+ * on coarse tiles, each covering the region of several tiles of the tiler at a
+ * lower resolution, and its detections are the candidate glomeruli. Then the
+ * detector is only run on the tiles of the tiler around the candidates, so the
+ * tiles without glomeruli are not run through it at full resolution.
+ *
+ * Every {@value #AUDIT_INTERVAL}th tile left out is detected anyway, so the
+ * glomeruli found in them give an estimate of the recall lost, logged once
+ * the image is detected.
+ *
+ * @author Israel Mateos Aparicio
+ */
+class CandidateCascade {
+
+    // Overlap between coarse tiles, as a fraction of their side, so a
+    // glomerulus cut by the edge of one is whole in the next
+    private static final double COARSE_OVERLAP = 0.25;
+
+    // One of this many tiles left out is detected anyway
+    static final int AUDIT_INTERVAL = 20;
+
+    private CandidateCascade() {
+    }
+
+    /**
+     * Returns the coarse tiles covering the given tiles: tiles of the same
+     * size in pixels, read at a downsample the given factor higher. The tiles
+     * at the image boundaries are cropped to the image
+     *
+     * @param server
+     * @param tiles  Tiles of the tiler
+     * @param factor Ratio between the side of the coarse tiles and of the
+     *               given ones
+     * @return Coarse tile requests, in full-resolution coordinates
+     */
+    static List<RegionRequest> createCoarseTiles(ImageServer<BufferedImage> server, List<RegionRequest> tiles,
+            double factor) {
+        if (tiles.isEmpty()) {
+            return List.of();
+        }
+        RegionRequest first = tiles.get(0);
+        double downsample = TilerTask.getPyramidDownsample(server, first.getDownsample() * factor);
+        // Side of the coarse tiles, in full-resolution pixels
+        int side = (int) Math.round(Math.max(first.getWidth(), first.getHeight()) * factor);
+        int step = Math.max(1, (int) Math.round(side * (1 - COARSE_OVERLAP)));
+
+        List<RegionRequest> coarseTiles = new ArrayList<>();
+        for (int y = 0; y < server.getHeight(); y += step) {
+            int height = Math.min(side, server.getHeight() - y);
+            for (int x = 0; x < server.getWidth(); x += step) {
+                int width = Math.min(side, server.getWidth() - x);
+                if (intersectsAny(tiles, x, y, x + width, y + height)) {
+                    coarseTiles.add(RegionRequest.createInstance(server.getPath(), downsample, x, y, width, height));
+                }
+                if (x + side >= server.getWidth()) {
+                    break;
+                }
+            }
+            if (y + side >= server.getHeight()) {
+                break;
+            }
+        }
+        return coarseTiles;
+    }
+
+    /**
+     * Returns the tiles around the candidate glomeruli: those which intersect
+     * a candidate box grown by half its side in each direction, as the boxes
+     * found at a low resolution are not exact
+     *
+     * @param tiles      Tiles of the tiler
+     * @param candidates Candidate boxes [x1, y1, x2, y2], in full-resolution
+     *                   pixels
+     * @return Tiles to run the detector on, in the order of the given ones
+     */
+    static List<RegionRequest> selectTiles(List<RegionRequest> tiles, List<double[]> candidates) {
+        List<RegionRequest> selected = new ArrayList<>();
+        for (RegionRequest tile : tiles) {
+            for (double[] box : candidates) {
+                double margin = Math.max(box[2] - box[0], box[3] - box[1]) / 2;
+                if (intersects(tile, box[0] - margin, box[1] - margin, box[2] + margin, box[3] + margin)) {
+                    selected.add(tile);
+                    break;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns a sample of the tiles left out, every
+     * {@value #AUDIT_INTERVAL}th of them, which are detected anyway to
+     * estimate the glomeruli the candidates miss
+     *
+     * @param tiles    Tiles of the tiler
+     * @param selected Tiles around the candidates
+     * @return Audited tiles, in the order of the given ones
+     */
+    static List<RegionRequest> sampleLeftOut(List<RegionRequest> tiles, List<RegionRequest> selected) {
+        Set<RegionRequest> selectedSet = new HashSet<>(selected);
+        List<RegionRequest> audited = new ArrayList<>();
+        int leftOut = 0;
+        for (RegionRequest tile : tiles) {
+            if (!selectedSet.contains(tile) && leftOut++ % AUDIT_INTERVAL == 0) {
+                audited.add(tile);
+            }
+        }
+        return audited;
+    }
+
+    private static boolean intersectsAny(List<RegionRequest> tiles, double x1, double y1, double x2, double y2) {
+        for (RegionRequest tile : tiles) {
+            if (intersects(tile, x1, y1, x2, y2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean intersects(RegionRequest tile, double x1, double y1, double x2, double y2) {
+        return tile.getX() < x2 && x1 < tile.getMaxX() && tile.getY() < y2 && y1 < tile.getMaxY();
+    }
+}
@@ -12,6 +12,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -21,16 +25,16 @@ import org.slf4j.LoggerFactory;
 
 import javafx.concurrent.Task;
 import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.env.RegionServer;
 import qupath.ext.gncnn.env.VirtualEnvironment;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.scripting.QP;
 
 /**
@@ -63,7 +67,10 @@ public class ClassificationTask extends Task<Void> {
         }
     };
 
-    private QuPathGUI qupath;
+    // Input size of each binary classifier, read from its config once
+    private static final Map<String, Integer> INPUT_SIZES = new ConcurrentHashMap<>();
+
+    private RunContext context;
 
     private List<String> selectedImages;
 
@@ -71,49 +78,77 @@ public class ClassificationTask extends Task<Void> {
 
     private String multiclassModelName;
 
+    private boolean regionServer;
+
+    // Crops classified in each forward pass
+    private int batchSize;
+
+    private ImageSession session;
+
+    private StageJournal stageJournal;
+
     private ProgressListener progressListener;
 
-    public ClassificationTask(QuPathGUI quPath, List<String> selectedImages, String binaryModelName,
+    public ClassificationTask(RunContext context, List<String> selectedImages, String binaryModelName,
+            boolean regionServer, int batchSize, ImageSession session, RunJournal journal,
             ProgressListener progressListener) {
-        this.qupath = quPath;
+        this.context = context;
         this.selectedImages = selectedImages;
         this.binaryModelName = binaryModelName;
         this.multiclassModelName = "None";
+        this.regionServer = regionServer;
+        this.batchSize = batchSize;
+        this.session = session;
         this.progressListener = progressListener;
+        this.stageJournal = new StageJournal(journal, getClass().getSimpleName(),
+                "Classification for {} already finished, skipping", this::getSettings, progressListener);
     }
 
-    public ClassificationTask(QuPathGUI quPath, List<String> selectedImages, String binaryModelName,
-            String multiclassModelName, ProgressListener progressListener) {
-        this.qupath = quPath;
+    public ClassificationTask(RunContext context, List<String> selectedImages, String binaryModelName,
+            String multiclassModelName, boolean regionServer, int batchSize, ImageSession session,
+            RunJournal journal, ProgressListener progressListener) {
+        this.context = context;
         this.selectedImages = selectedImages;
         this.binaryModelName = binaryModelName;
         this.multiclassModelName = multiclassModelName;
+        this.regionServer = regionServer;
+        this.batchSize = batchSize;
+        this.session = session;
         this.progressListener = progressListener;
+        this.stageJournal = new StageJournal(journal, getClass().getSimpleName(),
+                "Classification for {} already finished, skipping", this::getSettings, progressListener);
     }
 
     @Override
     protected Void call() throws Exception {
         try {
-            Project<BufferedImage> project = qupath.getProject();
-            String outputBaseDir = Utils.getBaseDir(qupath);
+            Project<BufferedImage> project = context.getProject();
+            String outputBaseDir = context.getBaseDir();
+            // Images already classified by a previous run are skipped
+            List<String> pendingImages = selectedImages.stream()
+                    .filter(imageName -> !stageJournal.isUpToDate(imageName))
+                    .collect(Collectors.toList());
             if (project != null) {
-                runClassification(outputBaseDir);
-                classifyGlomeruliProject(project, outputBaseDir);
+                if (!pendingImages.isEmpty()) {
+                    runClassification(outputBaseDir, pendingImages);
+                }
+                classifyGlomeruliProject(outputBaseDir, pendingImages);
             } else {
-                ImageData<BufferedImage> imageData = qupath.getImageData();
+                ImageData<BufferedImage> imageData = context.getImageData();
                 if (imageData != null) {
-                    runClassification(outputBaseDir);
+                    String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+                    if (!pendingImages.contains(imageName)) {
+                        logger.info("Classification for {} already finished, skipping", imageName);
+                        progressListener.updateProgress();
+                        return null;
+                    }
+                    runClassification(outputBaseDir, pendingImages);
                     classifyGlomeruli(imageData, outputBaseDir);
+                    stageJournal.markFinished(imageName, List.of());
                 } else {
                     logger.error("No image or project is open");
                 }
             }
-
-            // The temp folder is not needed anymore
-            File tempFolder = new File(QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER));
-            if (tempFolder.exists()) {
-                Utils.deleteFolder(tempFolder);
-            }
         } catch (IOException e) {
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
         } catch (InterruptedException e) {
@@ -124,14 +159,72 @@ public class ClassificationTask extends Task<Void> {
     }
 
     /**
-     * Runs the classification of glomeruli for all the annotations exported
-     * previously
+     * Returns the description of the parameters of this stage
+     * 
+     * @return Settings of the stage
+     */
+    private String getSettings() {
+        return "B-" + binaryModelName + "_M-" + multiclassModelName;
+    }
+
+    /**
+     * Returns true if an annotation was classified as a glomerulus by this
+     * stage, which records the probability of each class in its measurements
+     * 
+     * @param annotation
+     * @return True if the annotation has the probabilities of the classes
+     */
+    static boolean isClassified(PathObject annotation) {
+        return annotation.getMeasurementList().containsKey(CLASSES[0] + "-prob");
+    }
+
+    /**
+     * Returns the side of the images given to a binary classifier, read from
+     * the test pipeline of its config by the classification command
+     * 
+     * @param binaryModelName
+     * @param progressListener
+     * @return Input size, or 0 if the classifier does not resize its images
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static int getInputSize(String binaryModelName, ProgressListener progressListener)
+            throws IOException, InterruptedException {
+        Integer cached = INPUT_SIZES.get(binaryModelName);
+        if (cached != null) {
+            return cached;
+        }
+        VirtualEnvironment venv = new VirtualEnvironment(ClassificationTask.class.getSimpleName(), progressListener);
+        venv.setArguments(new ArrayList<>(Arrays.asList(TaskPaths.CLASSIFICATION_COMMAND, "--netB", binaryModelName,
+                "--input-size")));
+        venv.setProgressSteps(0);
+        AtomicInteger inputSize = new AtomicInteger(-1);
+        venv.setEventListener(event -> {
+            if (event.getType().equals("input_size")) {
+                inputSize.set((int) event.getDouble("size", 0));
+            }
+        });
+        venv.runCommand();
+        if (inputSize.get() < 0) {
+            // Not cached, so it is asked again in the next run
+            logger.warn("Input size of classifier {} could not be read", binaryModelName);
+            return 0;
+        }
+        logger.info("Input size of classifier {}: {}", binaryModelName, inputSize.get());
+        INPUT_SIZES.put(binaryModelName, inputSize.get());
+        return inputSize.get();
+    }
+
+    /**
+     * Runs the classification of glomeruli for the annotations exported
+     * previously for the given images
      * 
      * @param outputBaseDir
+     * @param imageNames
      * @throws InterruptedException
      * @throws IOException
      */
-    private void runClassification(String outputBaseDir)
+    private void runClassification(String outputBaseDir, List<String> imageNames)
             throws IOException, InterruptedException {
         VirtualEnvironment venv = new VirtualEnvironment(this.getClass().getSimpleName(), progressListener);
 
@@ -139,10 +232,21 @@ public class ClassificationTask extends Task<Void> {
         List<String> arguments = new ArrayList<String>();
         arguments.addAll(Arrays.asList(TaskPaths.CLASSIFICATION_COMMAND, "-e", QP.buildFilePath(outputBaseDir),
                 "--netB", binaryModelName));
+        // Only classify the selected images, as other images may still be
+        // exporting their annotations
+        arguments.add("--wsi");
+        arguments.addAll(imageNames);
         if (!multiclassModelName.equals("None")) {
             arguments.addAll(Arrays.asList("--netM", multiclassModelName, "--multi", "--topk", "3"));
         }
+        if (regionServer) {
+            arguments.add("--region-server");
+        }
+        arguments.addAll(Arrays.asList("--batch-size", Integer.toString(batchSize)));
         venv.setArguments(arguments);
+        // The command accounts for half of the progress of each image, and
+        // updating the annotations for the other half
+        venv.setProgressSteps(0.5 * imageNames.size());
 
         // Check if the thread has been interrupted before starting the process
         if (Thread.interrupted()) {
@@ -151,8 +255,48 @@ public class ClassificationTask extends Task<Void> {
 
         // Run the command
         logger.info("Running classification of glomeruli");
-        venv.runCommand();
+        if (regionServer) {
+            runWithRegionServer(venv, imageNames);
+        } else {
+            venv.runCommand();
+        }
         logger.info("Classification of glomeruli finished");
+        venv.completeProgress();
+    }
+
+    /**
+     * Runs the classification command while the images are served by the
+     * region server, so the command reads the crops listed by the annotation
+     * export from it
+     * 
+     * @param venv
+     * @param imageNames
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runWithRegionServer(VirtualEnvironment venv, List<String> imageNames)
+            throws IOException, InterruptedException {
+        RegionServer server = RegionServer.getInstance();
+        try {
+            if (context.getProject() != null) {
+                // The images are read once for the run, and their servers are
+                // released when they are saved
+                for (String imageName : imageNames) {
+                    ImageData<BufferedImage> imageData = session.getImageData(imageName);
+                    if (imageData != null) {
+                        server.register(imageName, imageData.getServer());
+                    }
+                }
+            } else {
+                ImageServer<BufferedImage> imageServer = context.getImageData().getServer();
+                server.register(GeneralTools.stripExtension(imageServer.getMetadata().getName()), imageServer);
+            }
+            venv.runCommand();
+        } finally {
+            for (String imageName : imageNames) {
+                server.unregister(imageName);
+            }
+        }
     }
 
     /**
@@ -172,6 +316,12 @@ public class ClassificationTask extends Task<Void> {
                 "B-" + binaryModelName + "_M-" + multiclassModelName,
                 GeneralTools.stripExtension(imageName) + ".csv");
 
+        if (!new File(reportPath).exists()) {
+            logger.info("No classification report found for {}", imageName);
+            progressListener.addProgress(0.5);
+            return;
+        }
+
         Collection<PathObject> annotations = imageData.getHierarchy().getAnnotationObjects();
         logger.info("Updating {} annotations for {}", annotations.size(), imageName);
 
@@ -219,31 +369,46 @@ public class ClassificationTask extends Task<Void> {
                 }
             }
         }
+
+        // The exported annotations are not needed anymore
+        Utils.deleteFolder(new File(TaskPaths.getAnnotationOutputDir(outputBaseDir,
+                GeneralTools.stripExtension(imageName))));
+        new File(TaskPaths.getCropListPath(outputBaseDir, GeneralTools.stripExtension(imageName))).delete();
+
         // Update progress
-        progressListener.updateProgress();
+        progressListener.addProgress(0.5);
     }
 
     /**
      * Classifies glomeruli in the WSIs in a project and updates the detected
      * objects in each image hierarchy
      * 
-     * @param project
      * @param outputBaseDir
+     * @param pendingImages Selected images not classified by a previous run
      * @throws InterruptedException
      * @throws IOException
      * @throws NumberFormatException
      */
-    private void classifyGlomeruliProject(Project<BufferedImage> project, String outputBaseDir)
+    private void classifyGlomeruliProject(String outputBaseDir, List<String> pendingImages)
             throws IOException, InterruptedException, NumberFormatException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
         logger.info("Running classification for {} images", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                classifyGlomeruli(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
+        for (String imageName : selectedImages) {
+            if (!pendingImages.contains(imageName)) {
+                logger.info("Classification for {} already finished, skipping", imageName);
+                progressListener.updateProgress();
+                continue;
+            }
+            ImageData<BufferedImage> imageData = session.getImageData(imageName);
+            if (imageData == null) {
+                logger.warn("Image {} not found in the project", imageName);
+                progressListener.addProgress(0.5);
+                continue;
             }
+            classifyGlomeruli(imageData, outputBaseDir);
+            // The classification is only saved in the journal once the image is
+            // saved, but the next stages already follow it
+            stageJournal.markFinishedOnSave(session, imageName);
         }
         logger.info("Classification for {} images in the project finished", selectedImages.size());
     }
@@ -0,0 +1,483 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import qupath.lib.common.ColorTools;
+import qupath.lib.geom.Point2;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Merges the raw detections of the tiles of an image, written by the detector
+ * with {@code --raw-detections}, into one glomerulus per object. Detections of
+ * overlapping tiles are suppressed as the NMS of the detector does: they are
+ * visited by decreasing score² × box area, and a detection is dropped if the
+ * intersection of its box with the box of a kept one, over their union (IoU)
+ * or over the smaller box (IoM), reaches the thresholds. Then the glomeruli
+ * below the minimum area are dropped.
+ *
+ * Before that, the parts of a glomerulus split between tiles are stitched:
+ * detections of different tiles which touch the edges of their tiles and
+ * whose polygons intersect are joined into one. This lets the tiles overlap
+ * less than a glomerulus, as a glomerulus no tile contains whole is still
+ * detected whole. A part which lies inside the tile of the other part is not
+ * stitched, as that tile saw all of it: with an overlap larger than a
+ * glomerulus the parts are then suppressed as by the NMS of the detector,
+ * and touching glomeruli are not joined.
+ *
+ * The boxes are put in a grid, so only boxes in the same cells are compared,
+ * and the groups of boxes which overlap each other are suppressed in
+ * parallel, as a box never suppresses one it does not overlap.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class DetectionMerger {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionMerger.class);
+
+    private static final PathClass GLOMERULUS_CLASS = PathClass.fromString("Glomerulus",
+            ColorTools.packRGB(0, 0, 255));
+
+    private final double iouThreshold;
+
+    private final double iomThreshold;
+
+    /**
+     * @param iouThreshold Intersection over union from which a detection is
+     *                     suppressed
+     * @param iomThreshold Intersection over the smaller box from which a
+     *                     detection is suppressed
+     */
+    public DetectionMerger(double iouThreshold, double iomThreshold) {
+        this.iouThreshold = iouThreshold;
+        this.iomThreshold = iomThreshold;
+    }
+
+    /**
+     * Reads the raw detections of an image and merges them
+     *
+     * @param path Raw detections, as JSON lines
+     * @return Glomerulus annotations
+     * @throws IOException
+     */
+    public List<PathObject> merge(Path path) throws IOException {
+        long startTime = System.currentTimeMillis();
+        double minArea = 0;
+        double pixelSize = 1;
+        List<Detection> detections = new ArrayList<>();
+        for (JsonObject json : readLines(path)) {
+            if (json.has("min_area_um")) {
+                minArea = json.get("min_area_um").getAsDouble();
+                if (json.has("pixel_size")) {
+                    pixelSize = json.get("pixel_size").getAsDouble();
+                }
+            } else {
+                detections.add(Detection.fromJson(json));
+            }
+        }
+
+        List<Detection> kept = suppress(detections, pixelSize);
+        List<PathObject> glomeruli = new ArrayList<>();
+        int stitched = 0;
+        for (Detection detection : kept) {
+            if (detection.area > minArea) {
+                glomeruli.add(PathObjects.createAnnotationObject(detection.getROI(), GLOMERULUS_CLASS));
+            }
+            if (detection.geometry != null) {
+                stitched++;
+            }
+        }
+        logger.info("Merged {} detections into {} glomeruli [after suppression={},stitched={},time={} ms]",
+                detections.size(), glomeruli.size(), kept.size(), stitched, System.currentTimeMillis() - startTime);
+        return glomeruli;
+    }
+
+    /**
+     * Reads the boxes of the raw detections of an image, without merging
+     * them, e.g. to find the regions with glomeruli
+     *
+     * @param path Raw detections, as JSON lines
+     * @return Boxes [x1, y1, x2, y2], in full-resolution pixels
+     * @throws IOException
+     */
+    public static List<double[]> readBoxes(Path path) throws IOException {
+        List<double[]> boxes = new ArrayList<>();
+        for (JsonObject json : readLines(path)) {
+            if (!json.has("box")) {
+                continue;
+            }
+            try {
+                JsonArray box = json.getAsJsonArray("box");
+                boxes.add(new double[] { box.get(0).getAsDouble(), box.get(1).getAsDouble(),
+                        box.get(2).getAsDouble(), box.get(3).getAsDouble() });
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid detection: " + json, e);
+            }
+        }
+        return boxes;
+    }
+
+    private static List<JsonObject> readLines(Path path) throws IOException {
+        List<JsonObject> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    lines.add(JsonParser.parseString(line).getAsJsonObject());
+                } catch (JsonParseException | IllegalStateException e) {
+                    throw new IOException("Invalid detection in " + path + ": " + line, e);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Stitches the detections split between tiles, and suppresses the
+     * detections overlapping others with a higher priority
+     *
+     * @param detections
+     * @param pixelSize  Pixel size of the image, in um, for the area of the
+     *                   stitched detections
+     * @return Kept detections, by decreasing priority within each group of
+     *         overlapping detections
+     */
+    List<Detection> suppress(List<Detection> detections, double pixelSize) {
+        if (detections.isEmpty()) {
+            return List.of();
+        }
+        int[] groups = groupOverlapping(detections);
+        Map<Integer, List<Detection>> byGroup = new HashMap<>();
+        for (int i = 0; i < detections.size(); i++) {
+            byGroup.computeIfAbsent(groups[i], k -> new ArrayList<>()).add(detections.get(i));
+        }
+        return byGroup.values().parallelStream()
+                .flatMap(group -> suppressGroup(stitch(group, pixelSize)).stream())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Joins the detections of different tiles which touch the edges of their
+     * tiles and whose polygons intersect, directly or through others, unless
+     * one of them lies inside the tile of the other
+     *
+     * @param group     Overlapping detections
+     * @param pixelSize
+     * @return Detections, with the joined ones replaced by their union
+     */
+    private static List<Detection> stitch(List<Detection> group, double pixelSize) {
+        List<Detection> cut = new ArrayList<>();
+        List<Detection> stitched = new ArrayList<>();
+        for (Detection detection : group) {
+            (detection.cut ? cut : stitched).add(detection);
+        }
+        if (cut.size() < 2) {
+            return group;
+        }
+
+        int[] parents = new int[cut.size()];
+        Arrays.setAll(parents, i -> i);
+        for (int i = 0; i < cut.size(); i++) {
+            Detection a = cut.get(i);
+            for (int j = i + 1; j < cut.size(); j++) {
+                Detection b = cut.get(j);
+                if (!a.isSameTile(b) && a.intersection(b) > 0 && !a.isInsideTileOf(b) && !b.isInsideTileOf(a)
+                        && a.getGeometry().intersects(b.getGeometry())) {
+                    parents[find(parents, i)] = find(parents, j);
+                }
+            }
+        }
+        Map<Integer, List<Detection>> parts = new HashMap<>();
+        for (int i = 0; i < cut.size(); i++) {
+            parts.computeIfAbsent(find(parents, i), k -> new ArrayList<>()).add(cut.get(i));
+        }
+        if (parts.size() == cut.size()) {
+            return group;
+        }
+        for (List<Detection> glomerulus : parts.values()) {
+            stitched.add(glomerulus.size() == 1 ? glomerulus.get(0) : Detection.union(glomerulus, pixelSize));
+        }
+        return stitched;
+    }
+
+    /**
+     * Greedy suppression within a group, as the NMS of the detector
+     *
+     * @param group
+     * @return Kept detections
+     */
+    private List<Detection> suppressGroup(List<Detection> group) {
+        List<Detection> sorted = new ArrayList<>(group);
+        // Ties keep the order of the detections, as a stable sort
+        sorted.sort((a, b) -> Double.compare(b.priority, a.priority));
+        List<Detection> kept = new ArrayList<>();
+        for (Detection detection : sorted) {
+            boolean suppressed = false;
+            for (Detection other : kept) {
+                double intersection = detection.intersection(other);
+                if (intersection <= 0) {
+                    continue;
+                }
+                double iou = intersection / (detection.boxArea + other.boxArea - intersection);
+                double iom = intersection / Math.min(detection.boxArea, other.boxArea);
+                if (iou >= iouThreshold || iom >= iomThreshold) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                kept.add(detection);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Groups the detections whose boxes overlap, directly or through others,
+     * using a grid of cells about twice the size of the boxes
+     *
+     * @param detections
+     * @return Group of each detection
+     */
+    private static int[] groupOverlapping(List<Detection> detections) {
+        double meanSide = detections.stream().mapToDouble(d -> Math.max(d.x2 - d.x1, d.y2 - d.y1)).average()
+                .orElse(1);
+        double cellSize = Math.max(1, 2 * meanSide);
+        Map<Long, List<Integer>> grid = new HashMap<>();
+        for (int i = 0; i < detections.size(); i++) {
+            Detection d = detections.get(i);
+            for (long cell : getCells(d, cellSize)) {
+                grid.computeIfAbsent(cell, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        // The overlapping pairs are found in parallel, and joined afterwards
+        List<int[]> neighbours = IntStream.range(0, detections.size()).parallel()
+                .mapToObj(i -> {
+                    Detection d = detections.get(i);
+                    return getCells(d, cellSize).stream()
+                            .flatMap(cell -> grid.get(cell).stream())
+                            .filter(j -> j > i && d.intersection(detections.get(j)) > 0)
+                            .mapToInt(Integer::intValue)
+                            .distinct()
+                            .toArray();
+                })
+                .collect(Collectors.toList());
+
+        int[] parents = new int[detections.size()];
+        Arrays.setAll(parents, i -> i);
+        for (int i = 0; i < detections.size(); i++) {
+            for (int j : neighbours.get(i)) {
+                parents[find(parents, i)] = find(parents, j);
+            }
+        }
+        int[] groups = new int[detections.size()];
+        Arrays.setAll(groups, i -> find(parents, i));
+        return groups;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static List<Long> getCells(Detection d, double cellSize) {
+        List<Long> cells = new ArrayList<>();
+        long column1 = (long) Math.floor(d.x1 / cellSize);
+        long column2 = (long) Math.floor(d.x2 / cellSize);
+        long row1 = (long) Math.floor(d.y1 / cellSize);
+        long row2 = (long) Math.floor(d.y2 / cellSize);
+        for (long row = row1; row <= row2; row++) {
+            for (long column = column1; column <= column2; column++) {
+                cells.add((row << 32) ^ (column & 0xffffffffL));
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Detection of a tile, with its box in the WSI, as the detector computes
+     * it, and its polygon, or the union of the detections of several tiles
+     */
+    static class Detection {
+
+        private final double x1;
+
+        private final double y1;
+
+        private final double x2;
+
+        private final double y2;
+
+        // Box area, counting the pixels of both edges as the detector does
+        private final double boxArea;
+
+        private final double priority;
+
+        // Area of the polygon, in um^2
+        private final double area;
+
+        private final double score;
+
+        private final List<Point2> polygon;
+
+        // Region of the tile in the WSI, to tell the tiles apart
+        private final double tileX;
+
+        private final double tileY;
+
+        private final double tileWidth;
+
+        private final double tileHeight;
+
+        // Whether the polygon touches the edge of the tile
+        private final boolean cut;
+
+        // Union of stitched detections, or polygon read when first needed
+        private Geometry geometry;
+
+        Detection(double x1, double y1, double x2, double y2, double score, double area, List<Point2> polygon,
+                double tileX, double tileY, double tileWidth, double tileHeight, boolean cut) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.boxArea = (x2 - x1 + 1) * (y2 - y1 + 1);
+            this.score = score;
+            this.priority = score * score * boxArea;
+            this.area = area;
+            this.polygon = polygon;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.cut = cut;
+        }
+
+        /**
+         * Returns the union of detections of several tiles, with the highest
+         * of their scores
+         *
+         * @param parts
+         * @param pixelSize
+         * @return Stitched detection
+         */
+        private static Detection union(List<Detection> parts, double pixelSize) {
+            Geometry geometry = GeometryTools.union(
+                    parts.stream().map(Detection::getGeometry).collect(Collectors.toList()));
+            Envelope envelope = geometry.getEnvelopeInternal();
+            double score = parts.stream().mapToDouble(d -> d.score).max().orElse(0);
+            // The box ends one pixel past the polygon, as the boxes of the
+            // detector do
+            Detection detection = new Detection(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX() + 1,
+                    envelope.getMaxY() + 1, score, geometry.getArea() * pixelSize * pixelSize, null, Double.NaN,
+                    Double.NaN, Double.NaN, Double.NaN, false);
+            detection.geometry = geometry;
+            return detection;
+        }
+
+        private boolean isSameTile(Detection other) {
+            return tileX == other.tileX && tileY == other.tileY;
+        }
+
+        /**
+         * Checks if the box lies inside the tile of another detection, so that
+         * tile saw the whole part and detected it as it is
+         *
+         * @param other
+         * @return True if the box is inside the tile of the other detection
+         */
+        private boolean isInsideTileOf(Detection other) {
+            return x1 >= other.tileX && y1 >= other.tileY && x2 <= other.tileX + other.tileWidth
+                    && y2 <= other.tileY + other.tileHeight;
+        }
+
+        private Geometry getGeometry() {
+            if (geometry == null) {
+                return getROI().getGeometry();
+            }
+            return geometry;
+        }
+
+        private ROI getROI() {
+            if (geometry != null) {
+                return GeometryTools.geometryToROI(geometry, ImagePlane.getDefaultPlane());
+            }
+            return ROIs.createPolygonROI(polygon, ImagePlane.getDefaultPlane());
+        }
+
+        private static Detection fromJson(JsonObject json) throws IOException {
+            try {
+                JsonArray box = json.getAsJsonArray("box");
+                List<Point2> polygon = new ArrayList<>();
+                for (JsonElement point : json.getAsJsonArray("polygon")) {
+                    JsonArray xy = point.getAsJsonArray();
+                    polygon.add(new Point2(xy.get(0).getAsDouble(), xy.get(1).getAsDouble()));
+                }
+                // Detections without a tile, or without its size, are never
+                // stitched
+                JsonArray tile = json.has("tile") ? json.getAsJsonArray("tile") : null;
+                if (tile != null && tile.size() < 4) {
+                    tile = null;
+                }
+                boolean cut = tile != null && json.has("cut") && json.get("cut").getAsBoolean();
+                return new Detection(box.get(0).getAsDouble(), box.get(1).getAsDouble(), box.get(2).getAsDouble(),
+                        box.get(3).getAsDouble(), json.get("score").getAsDouble(), json.get("area_um").getAsDouble(),
+                        polygon, tile != null ? tile.get(0).getAsDouble() : Double.NaN,
+                        tile != null ? tile.get(1).getAsDouble() : Double.NaN,
+                        tile != null ? tile.get(2).getAsDouble() : Double.NaN,
+                        tile != null ? tile.get(3).getAsDouble() : Double.NaN, cut);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid detection: " + json, e);
+            }
+        }
+
+        /**
+         * Returns the intersection of the boxes, counting the pixels of both
+         * edges as the detector does
+         *
+         * @param other
+         * @return Intersection area, or 0 if the boxes do not overlap
+         */
+        private double intersection(Detection other) {
+            double w = Math.min(x2, other.x2) - Math.max(x1, other.x1) + 1;
+            double h = Math.min(y2, other.y2) - Math.max(y1, other.y1) + 1;
+            return w > 0 && h > 0 ? w * h : 0;
+        }
+    }
+}
@@ -7,8 +7,17 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,16 +25,18 @@ import org.slf4j.LoggerFactory;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.env.RegionServer;
 import qupath.ext.gncnn.env.VirtualEnvironment;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.gui.QuPathGUI;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.scripting.QP;
 
 /**
@@ -36,7 +47,29 @@ public class GlomerulusDetectionTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(GlomerulusDetectionTask.class);
 
-    private QuPathGUI qupath;
+    // IoU and IoM from which a detection is suppressed, as in the detector
+    private static final double NMS_THRESHOLD = 0.4;
+
+    /**
+     * Where the detector reads the tiles from
+     */
+    public enum TileSource {
+        /**
+         * Image files saved by the tiler
+         */
+        FILES,
+        /**
+         * A {@link TileRingBuffer} written while the detector runs
+         */
+        RING_BUFFER,
+        /**
+         * The {@link RegionServer}, which the detector requests each tile of
+         * the tile list from
+         */
+        REGION_SERVER
+    }
+
+    private RunContext context;
 
     private ObservableList<String> selectedImages;
 
@@ -46,45 +79,69 @@ public class GlomerulusDetectionTask extends Task<Void> {
 
     private int undersampling;
 
+    private TileSource tileSource;
+
+    // Tiles given to the detector in each forward pass
+    private int batchSize;
+
+    // Whether the detections of the tiles are merged here, instead of by the
+    // detector
+    private boolean mergeDetections;
+
+    // Ratio between the side of the tiles of the candidate pass and of the
+    // tiles of the tiler, or 0 to run the detector on every tile
+    private int cascadeFactor;
+
+    // Maximum size of the cache of the detections of each tile, in MB, or 0
+    // to run the detector on every tile
+    private int cacheSizeMb;
+
+    private ImageSession session;
+
+    private StageJournal stageJournal;
+
     private ProgressListener progressListener;
 
-    public GlomerulusDetectionTask(QuPathGUI quPath, ObservableList<String> selectedImages, String modelName,
-            String trainConfig, int undersampling, ProgressListener progressListener) {
-        this.qupath = quPath;
+    public GlomerulusDetectionTask(RunContext context, ObservableList<String> selectedImages, String modelName,
+            String trainConfig, int undersampling, TileSource tileSource, int batchSize, boolean mergeDetections,
+            int cascadeFactor, int cacheSizeMb, ImageSession session, RunJournal journal,
+            ProgressListener progressListener) {
+        this.context = context;
         this.selectedImages = selectedImages;
         this.modelName = modelName;
         this.trainConfig = trainConfig;
         this.undersampling = undersampling;
+        this.tileSource = tileSource;
+        this.batchSize = batchSize;
+        this.mergeDetections = mergeDetections;
+        this.cascadeFactor = cascadeFactor;
+        this.cacheSizeMb = cacheSizeMb;
+        this.session = session;
         this.progressListener = progressListener;
+        this.stageJournal = new StageJournal(journal, getClass().getSimpleName(),
+                "Detection for {} already finished, skipping", this::getSettings, progressListener);
     }
 
     @Override
     protected Void call() throws Exception {
         try {
-            Project<BufferedImage> project = qupath.getProject();
-            String outputBaseDir = Utils.getBaseDir(qupath);
+            Project<BufferedImage> project = context.getProject();
+            String outputBaseDir = context.getBaseDir();
             if (project != null) {
-                detectGlomeruliProject(project, outputBaseDir);
+                detectGlomeruliProject(outputBaseDir);
             } else {
-                ImageData<BufferedImage> imageData = qupath.getImageData();
+                ImageData<BufferedImage> imageData = context.getImageData();
                 if (imageData != null) {
+                    String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+                    if (stageJournal.canSkip(imageName)) {
+                        return null;
+                    }
                     detectGlomeruli(imageData, outputBaseDir);
+                    stageJournal.markFinished(imageName, List.of());
                 } else {
                     logger.error("No image or project is open");
                 }
             }
-
-            // Tiles are not needed anymore
-            File tilerOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.TILER_OUTPUT_FOLDER));
-            if (tilerOutputFolder.exists())
-                Utils.deleteFolder(tilerOutputFolder);
-
-            // Detections are already added to the image hierarchy, so they are not needed
-            File segmentOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.SEGMENT_OUTPUT_FOLDER));
-            if (segmentOutputFolder.exists())
-                Utils.deleteFolder(segmentOutputFolder);
         } catch (IOException e) {
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
         } catch (InterruptedException e) {
@@ -94,6 +151,16 @@ public class GlomerulusDetectionTask extends Task<Void> {
         return null;
     }
 
+    /**
+     * Returns the description of the parameters of this stage
+     * 
+     * @return Settings of the stage
+     */
+    private String getSettings() {
+        return String.format("model=%s,config=%s,undersampling=%d,tiles=%s,merge=%b,cascade=%d", modelName,
+                trainConfig, undersampling, tileSource, mergeDetections, cascadeFactor);
+    }
+
     /**
      * Detects glomeruli in the WSI and adds the detected objects to the image
      * hierarchy
@@ -111,26 +178,81 @@ public class GlomerulusDetectionTask extends Task<Void> {
         double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
 
         // This is the list of commands after the 'python' call
-        List<String> arguments = Arrays.asList(TaskPaths.SEGMENT_COMMAND, "--wsi", imageName, "--export",
+        List<String> arguments = new ArrayList<>(List.of(TaskPaths.SEGMENT_COMMAND, "--wsi", imageName, "--export",
                 QP.buildFilePath(outputBaseDir),
                 "--model",
                 modelName, "--train-config", trainConfig, "--undersampling", Integer.toString(undersampling),
-                "--pixel-size", Double.toString(pixelSize));
-        venv.setArguments(arguments);
+                "--pixel-size", Double.toString(pixelSize), "--batch-size", Integer.toString(batchSize)));
+        if (mergeDetections) {
+            arguments.add("--raw-detections");
+        }
+        if (cacheSizeMb > 0) {
+            arguments.addAll(List.of("--cache", TaskPaths.getDetectionCachePath(outputBaseDir), "--cache-size-mb",
+                    Integer.toString(cacheSizeMb)));
+        }
 
         // Check if the thread has been interrupted before starting the process
         if (Thread.interrupted()) {
             throw new InterruptedException();
         }
 
+        // The tiles without candidate glomeruli are left out, if the tiles
+        // are listed instead of saved as files
+        List<RegionRequest> tiles = null;
+        if (cascadeFactor > 1 && tileSource != TileSource.FILES) {
+            tiles = findCandidateTiles(arguments, imageData.getServer(), outputBaseDir, imageName);
+        } else if (cascadeFactor > 1) {
+            logger.warn("The candidate pass needs the tiles to be listed, detecting in every tile of {}", imageName);
+        }
+
         // Run the command
         logger.info("Running detection for {}", imageName);
-        venv.runCommand();
+        if (tileSource == TileSource.RING_BUFFER) {
+            if (tiles == null) {
+                tiles = readTileList(imageData.getServer(), outputBaseDir, imageName);
+            }
+            runWithTileRing(venv, arguments, imageData.getServer(), tiles, outputBaseDir, imageName);
+        } else if (tileSource == TileSource.REGION_SERVER) {
+            RegionServer regionServer = RegionServer.getInstance();
+            regionServer.register(imageName, imageData.getServer());
+            try {
+                arguments.add("--region-server");
+                if (tiles != null) {
+                    arguments.addAll(List.of("--tile-list", TaskPaths.getCandidateTileListPath(outputBaseDir,
+                            imageName)));
+                }
+                venv.setArguments(arguments);
+                venv.runCommand();
+            } finally {
+                regionServer.unregister(imageName);
+            }
+        } else {
+            venv.setArguments(arguments);
+            venv.runCommand();
+        }
         logger.info("Detection for {} finished", imageName);
 
-        // Read the annotations from the GeoJSON file
-        String geoJSONPath = TaskPaths.getDetectionResultsPath(outputBaseDir, imageName);
-        List<PathObject> detectedObjects = PathIO.readObjects(Paths.get(geoJSONPath));
+        // Read the annotations from the GeoJSON file, or merge the detections
+        // of the tiles
+        List<PathObject> detectedObjects;
+        if (mergeDetections) {
+            detectedObjects = new DetectionMerger(NMS_THRESHOLD, NMS_THRESHOLD)
+                    .merge(Paths.get(TaskPaths.getRawDetectionsPath(outputBaseDir, imageName)));
+        } else {
+            String geoJSONPath = TaskPaths.getDetectionResultsPath(outputBaseDir, imageName);
+            detectedObjects = PathIO.readObjects(Paths.get(geoJSONPath));
+        }
+
+        // The tile list is only kept when the tiles are not saved as files
+        TilePrefilter.logRecall("Prefilter", imageData.getServer(),
+                TaskPaths.getPrefilterAuditPath(outputBaseDir, imageName),
+                tileSource != TileSource.FILES ? TaskPaths.getTileListPath(outputBaseDir, imageName) : null,
+                detectedObjects, imageName);
+        if (cascadeFactor > 1 && tileSource != TileSource.FILES) {
+            TilePrefilter.logRecall("Candidate pass", imageData.getServer(),
+                    TaskPaths.getCandidateAuditPath(outputBaseDir, imageName),
+                    TaskPaths.getCandidateTileListPath(outputBaseDir, imageName), detectedObjects, imageName);
+        }
 
         // Check if the thread has been interrupted before adding the detected
         // objects to the image hierarchy
@@ -138,14 +260,169 @@ public class GlomerulusDetectionTask extends Task<Void> {
             throw new InterruptedException();
         }
 
-        // Add the detected objects to the image hierarchy
-        PathObjectHierarchy hierarchy = imageData.getHierarchy();
-        hierarchy.addObjects(detectedObjects);
-        logger.info("Added {} detected objects to {}", detectedObjects.size(), imageName);
+        // Replace the glomeruli of an earlier run with the detected objects
+        int removed = replaceGlomeruli(imageData.getHierarchy(), detectedObjects);
+        logger.info("Added {} detected objects to {} [removed={}]", detectedObjects.size(), imageName, removed);
+
+        // The tiles are not needed anymore, and the detections are already
+        // added to the image hierarchy. Only this image's files are removed, so
+        // other images can be tiled at the same time
+        Utils.deleteFolder(new File(TaskPaths.getTilerOutputDir(outputBaseDir, imageName)));
+        new File(TaskPaths.getTileListPath(outputBaseDir, imageName)).delete();
+        new File(TaskPaths.getCandidateTileListPath(outputBaseDir, imageName)).delete();
+        new File(TaskPaths.getCandidateAuditPath(outputBaseDir, imageName)).delete();
+        new File(TaskPaths.getPrefilterAuditPath(outputBaseDir, imageName)).delete();
+        Utils.deleteFolder(new File(TaskPaths.getDetectionOutputDir(outputBaseDir, imageName)));
 
-        // Update progress
-        if (progressListener.getProgress() >= 0.99) {
-            progressListener.updateProgress();
+        // Update progress with the part not reported by the command
+        venv.completeProgress();
+    }
+
+    /**
+     * Removes the glomeruli of the pipeline from the hierarchy, detected or
+     * classified by an earlier run, and adds the given annotations. Other
+     * annotations, e.g. regions drawn by hand, are kept
+     *
+     * @param hierarchy
+     * @param annotations
+     * @return Number of glomeruli removed
+     */
+    static int replaceGlomeruli(PathObjectHierarchy hierarchy, Collection<PathObject> annotations) {
+        List<PathObject> stale = new ArrayList<>();
+        for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+            if (BatchRunner.isGlomerulus(annotation)) {
+                stale.add(annotation);
+            }
+        }
+        hierarchy.removeObjects(stale, true);
+        hierarchy.addObjects(annotations);
+        return stale.size();
+    }
+
+    /**
+     * Runs the detector on coarse tiles covering the tiles of the tiler, and
+     * returns the tiles around the glomeruli it detects, which the detector is
+     * then run on, and a sample of the other tiles to audit the recall. The
+     * tiles are also written to the candidate tile list. The coarse pass does
+     * not count in the progress
+     * 
+     * @param arguments     Arguments of the detection command
+     * @param server
+     * @param outputBaseDir
+     * @param imageName
+     * @return Tiles with candidate glomeruli, and the audited ones
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<RegionRequest> findCandidateTiles(List<String> arguments, ImageServer<BufferedImage> server,
+            String outputBaseDir, String imageName) throws IOException, InterruptedException {
+        List<RegionRequest> tiles = readTileList(server, outputBaseDir, imageName);
+        List<RegionRequest> coarseTiles = CandidateCascade.createCoarseTiles(server, tiles, cascadeFactor);
+
+        long startTime = System.currentTimeMillis();
+        VirtualEnvironment coarseVenv = new VirtualEnvironment(this.getClass().getSimpleName(), progressListener);
+        coarseVenv.setProgressSteps(0);
+        // Every detection is a candidate, without merging them. The coarse
+        // tiles are not cached, so they do not evict the tiles of the tiler
+        List<String> coarseArguments = new ArrayList<>(arguments);
+        for (String option : List.of("--cache", "--cache-size-mb")) {
+            int index = coarseArguments.indexOf(option);
+            if (index >= 0) {
+                coarseArguments.subList(index, index + 2).clear();
+            }
+        }
+        if (!coarseArguments.contains("--raw-detections")) {
+            coarseArguments.add("--raw-detections");
+        }
+        // Written apart, so they are never read as the detections of the
+        // tiles of the tiler
+        String coarseDetectionsPath = TaskPaths.getCoarseDetectionsPath(outputBaseDir, imageName);
+        coarseArguments.addAll(List.of("--raw-detections-path", coarseDetectionsPath));
+        runWithTileRing(coarseVenv, coarseArguments, server, coarseTiles, outputBaseDir, imageName);
+        List<double[]> candidates = DetectionMerger.readBoxes(Paths.get(coarseDetectionsPath));
+
+        List<RegionRequest> selected = CandidateCascade.selectTiles(tiles, candidates);
+        List<RegionRequest> audited = CandidateCascade.sampleLeftOut(tiles, selected);
+        TilePrefilter.writeAudit(TaskPaths.getCandidateAuditPath(outputBaseDir, imageName),
+                tiles.size() - selected.size(), audited);
+        Set<RegionRequest> detected = new HashSet<>(selected);
+        detected.addAll(audited);
+        List<RegionRequest> candidateTiles = new ArrayList<>();
+        for (RegionRequest tile : tiles) {
+            if (detected.contains(tile)) {
+                candidateTiles.add(tile);
+            }
+        }
+        TilerTask.writeTileList(candidateTiles, TaskPaths.getCandidateTileListPath(outputBaseDir, imageName));
+        logger.info("Candidate pass for {}: {} candidates in {} coarse tiles, detecting in {} of {} tiles, {} of "
+                + "them audited [time={} ms]", imageName, candidates.size(), coarseTiles.size(),
+                candidateTiles.size(), tiles.size(), audited.size(), System.currentTimeMillis() - startTime);
+        return candidateTiles;
+    }
+
+    /**
+     * Reads the list of tiles written by the tiler
+     * 
+     * @param server
+     * @param outputBaseDir
+     * @param imageName
+     * @return Tile requests, in full-resolution coordinates
+     * @throws IOException
+     */
+    private static List<RegionRequest> readTileList(ImageServer<BufferedImage> server, String outputBaseDir,
+            String imageName) throws IOException {
+        String tileListPath = TaskPaths.getTileListPath(outputBaseDir, imageName);
+        if (!new File(tileListPath).exists()) {
+            throw new IOException("No tile list found for " + imageName + ", the image must be tiled first");
+        }
+        return TilerTask.readTileList(server, tileListPath);
+    }
+
+    /**
+     * Runs the detection command while the tiles are read from the image and
+     * written to a ring buffer, which the command reads them from. The writer
+     * waits for the command when the buffer is full
+     * 
+     * @param venv
+     * @param arguments
+     * @param server
+     * @param tiles
+     * @param outputBaseDir
+     * @param imageName
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runWithTileRing(VirtualEnvironment venv, List<String> arguments, ImageServer<BufferedImage> server,
+            List<RegionRequest> tiles, String outputBaseDir, String imageName)
+            throws IOException, InterruptedException {
+        ExecutorService writer = Executors.newSingleThreadExecutor(
+                ThreadTools.createThreadFactory("GNCnn-tile-ring-", true));
+        try (TileRingBuffer ring = TileRingBuffer.create(TaskPaths.getTileRingPath(outputBaseDir, imageName), tiles,
+                TileRingBuffer.DEFAULT_SLOTS)) {
+            Future<?> written = writer.submit(() -> {
+                ring.writeTiles(server, tiles);
+                return null;
+            });
+            List<String> ringArguments = new ArrayList<>(arguments);
+            ringArguments.addAll(List.of("--ring", ring.getPath()));
+            venv.setArguments(ringArguments);
+            venv.runCommand();
+
+            // The writer is only still running if the command stopped before
+            // reading all the tiles
+            try {
+                written.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Detection for {} stopped before reading all the tiles", imageName);
+                written.cancel(true);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            writer.shutdownNow();
         }
     }
 
@@ -153,22 +430,26 @@ public class GlomerulusDetectionTask extends Task<Void> {
      * Detects glomeruli in the WSIs in a project and adds the detected objects to
      * the each image hierarchy
      * 
-     * @param project
      * @param outputBaseDir
      * @throws InterruptedException
      * @throws IOException
      */
-    private void detectGlomeruliProject(Project<BufferedImage> project, String outputBaseDir)
-            throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+    private void detectGlomeruliProject(String outputBaseDir) throws IOException, InterruptedException {
         logger.info("Running detection for {} images", selectedImages.size());
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                detectGlomeruli(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
+        for (String imageName : selectedImages) {
+            if (stageJournal.canSkip(imageName)) {
+                continue;
+            }
+            ImageData<BufferedImage> imageData = session.getImageData(imageName);
+            if (imageData == null) {
+                logger.warn("Image {} not found in the project", imageName);
+                continue;
             }
+            detectGlomeruli(imageData, outputBaseDir);
+            // The detection is only saved in the journal once the image is
+            // saved, but the next stages already follow it
+            stageJournal.markFinishedOnSave(session, imageName);
         }
         logger.info("Detection for {} images in the project finished", selectedImages.size());
     }
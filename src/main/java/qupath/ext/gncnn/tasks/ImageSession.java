@@ -0,0 +1,384 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Images of the project used by the current run, shared by all its stages.
+ * The entries are resolved by name once, and the data of each image is read
+ * once, when a stage first needs it. The stages which modify an image only
+ * record it, and the image is saved once, when all its stages have finished.
+ *
+ * As the stages are recorded as finished in the run journal only once their
+ * changes are saved, a run stopped before saving an image redoes them when it
+ * is resumed.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ImageSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageSession.class);
+
+    /**
+     * Action run once the changes of a stage to an image are saved
+     */
+    public interface SaveListener {
+        void saved() throws IOException;
+    }
+
+    /**
+     * Wait for the stages of a run to stop, e.g. once they are cancelled
+     */
+    public interface StageWaiter {
+        /**
+         * @return True if the stages stopped, false if they are still running
+         * @throws InterruptedException
+         */
+        boolean await() throws InterruptedException;
+    }
+
+    /**
+     * Destination of the images modified by the stages
+     */
+    public interface ImageSaver {
+        void save(String imageName, ProjectImageEntry<BufferedImage> entry, ImageData<BufferedImage> imageData)
+                throws IOException;
+    }
+
+    private final Project<BufferedImage> project;
+
+    private final ImageSaver saver;
+
+    // Project entries by image name, resolved on first use
+    private Map<String, ProjectImageEntry<BufferedImage>> entries;
+
+    // Names with no project entry, so the entries are only searched once for
+    // each of them, instead of once for each stage of the image
+    private final Set<String> missing = new HashSet<>();
+
+    private final Map<String, ImageData<BufferedImage>> images = new HashMap<>();
+
+    // Modified images, with the actions to run once they are saved
+    private final Map<String, List<SaveListener>> pendingSaves = new HashMap<>();
+
+    /**
+     * @param project Project of the run, or null if a single image is open
+     */
+    public ImageSession(Project<BufferedImage> project) {
+        this(project, (imageName, entry, imageData) -> entry.saveImageData(imageData));
+    }
+
+    /**
+     * @param project Project of the run
+     * @param saver   Destination of the modified images, instead of the
+     *                project
+     */
+    public ImageSession(Project<BufferedImage> project, ImageSaver saver) {
+        this.project = project;
+        this.saver = saver;
+    }
+
+    /**
+     * Returns the data of an image of the project, reading it only the first
+     * time
+     *
+     * @param imageName Name of the image, without extension
+     * @return Image data, or null if the project has no image with that name
+     * @throws IOException
+     */
+    public ImageData<BufferedImage> getImageData(String imageName) throws IOException {
+        ProjectImageEntry<BufferedImage> entry;
+        synchronized (this) {
+            ImageData<BufferedImage> imageData = images.get(imageName);
+            if (imageData != null) {
+                return imageData;
+            }
+            entry = getEntries().get(imageName);
+        }
+        if (entry == null) {
+            entry = findEntry(imageName);
+            if (entry == null) {
+                return null;
+            }
+        }
+        // Each entry is read by a single thread
+        synchronized (entry) {
+            synchronized (this) {
+                if (images.containsKey(imageName)) {
+                    return images.get(imageName);
+                }
+            }
+            ImageData<BufferedImage> imageData = entry.readImageData();
+            synchronized (this) {
+                images.put(imageName, imageData);
+            }
+            return imageData;
+        }
+    }
+
+    /**
+     * Returns fingerprints of the files of images of the project, without
+     * reading the images
+     *
+     * @param imageNames Names of the images, without extension
+     * @return Fingerprint of the files of each image with a project entry
+     * @throws IOException
+     */
+    public Map<String, String> getSourceFingerprints(List<String> imageNames) throws IOException {
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (String imageName : imageNames) {
+            ProjectImageEntry<BufferedImage> entry;
+            synchronized (this) {
+                entry = getEntries().get(imageName);
+            }
+            if (entry != null) {
+                sources.put(imageName, getSourceFingerprint(entry.getURIs()));
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Returns a fingerprint of the files of an image: their URIs, and the
+     * size and modification time of the local ones
+     *
+     * @param uris
+     * @return Fingerprint of the files
+     * @throws IOException
+     */
+    public static String getSourceFingerprint(Collection<URI> uris) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (URI uri : uris) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(uri);
+            if ("file".equals(uri.getScheme())) {
+                Path path = Paths.get(uri);
+                if (Files.exists(path)) {
+                    sb.append(',').append(Files.size(path)).append(',')
+                            .append(Files.getLastModifiedTime(path).toMillis());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the project entries by the names of their images, without
+     * extension
+     *
+     * @return Project entries
+     */
+    private Map<String, ProjectImageEntry<BufferedImage>> getEntries() {
+        if (entries == null) {
+            entries = new HashMap<>();
+            if (project == null) {
+                return entries;
+            }
+            for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+                entries.putIfAbsent(GeneralTools.stripExtension(entry.getImageName()), entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the entry of an image whose name differs from the entry name, e.g.
+     * because the name has an extension or the entry was renamed, by the
+     * original names of the entries and the names of their files. Neither the
+     * servers nor the data of the other entries are read, as they may be
+     * images which are not part of the run
+     *
+     * @param imageName
+     * @return Project entry, or null if the project has no image with that name
+     * @throws IOException
+     */
+    private ProjectImageEntry<BufferedImage> findEntry(String imageName) throws IOException {
+        String strippedName = GeneralTools.stripExtension(imageName);
+        synchronized (this) {
+            if (missing.contains(imageName)) {
+                return null;
+            }
+            ProjectImageEntry<BufferedImage> entry = getEntries().get(strippedName);
+            if (entry == null && project != null) {
+                for (ProjectImageEntry<BufferedImage> projectEntry : project.getImageList()) {
+                    if (strippedName.equals(GeneralTools.stripExtension(projectEntry.getOriginalImageName()))
+                            || hasFileNamed(projectEntry, strippedName)) {
+                        entry = projectEntry;
+                        break;
+                    }
+                }
+            }
+            if (entry == null) {
+                missing.add(imageName);
+                return null;
+            }
+            entries.put(imageName, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Checks if one of the local files of an entry has the given name,
+     * without extension
+     *
+     * @param entry
+     * @param strippedName
+     * @return True if a file of the entry has that name
+     * @throws IOException
+     */
+    private static boolean hasFileNamed(ProjectImageEntry<BufferedImage> entry, String strippedName)
+            throws IOException {
+        for (URI uri : entry.getURIs()) {
+            if ("file".equals(uri.getScheme())
+                    && strippedName.equals(GeneralTools.stripExtension(Paths.get(uri).getFileName().toString()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that a stage modified an image, so it is saved when its stages
+     * finish
+     *
+     * @param imageName
+     * @param listener  Action to run once the image is saved, e.g. recording
+     *                  the stage as finished
+     */
+    public synchronized void saveLater(String imageName, SaveListener listener) {
+        pendingSaves.computeIfAbsent(imageName, k -> new ArrayList<>()).add(listener);
+    }
+
+    /**
+     * Saves the images modified by the stages, if any, and releases them
+     *
+     * @param imageNames
+     * @throws IOException
+     */
+    public void commit(List<String> imageNames) throws IOException {
+        for (String imageName : imageNames) {
+            ImageData<BufferedImage> imageData;
+            List<SaveListener> listeners;
+            ProjectImageEntry<BufferedImage> entry;
+            synchronized (this) {
+                imageData = images.remove(imageName);
+                listeners = pendingSaves.remove(imageName);
+                entry = entries == null ? null : entries.get(imageName);
+            }
+            if (imageData == null) {
+                continue;
+            }
+            if (listeners != null && entry != null) {
+                saver.save(imageName, entry, imageData);
+                logger.info("Saved {}", imageName);
+                for (SaveListener listener : listeners) {
+                    listener.saved();
+                }
+            }
+            try {
+                imageData.getServer().close();
+            } catch (Exception e) {
+                logger.warn("Image {} could not be closed: {}", imageName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates a task to save the images modified by the stages, once all their
+     * stages have finished
+     *
+     * @param imageNames
+     * @return Save task
+     */
+    public Task<Void> createSaveTask(List<String> imageNames) {
+        return new ImageSaveTask(this, new ArrayList<>(imageNames));
+    }
+
+    /**
+     * Saves every image modified by the stages in the background, e.g. when
+     * the run is cancelled, and releases all the images. The images are only
+     * saved once the stages have stopped, as cancelled stages may still be
+     * modifying their hierarchies, and not at all if they do not stop
+     *
+     * @param stages Wait for the stages of the run to stop
+     */
+    public void close(StageWaiter stages) {
+        List<String> imageNames;
+        synchronized (this) {
+            imageNames = new ArrayList<>(images.keySet());
+        }
+        if (imageNames.isEmpty()) {
+            return;
+        }
+        // Not a daemon thread, so the images are saved even if QuPath is
+        // closing
+        Thread thread = ThreadTools.createThreadFactory("GNCnn-save-", false).newThread(() -> {
+            try {
+                if (!stages.await()) {
+                    // The changes are lost, and the stages not recorded as
+                    // finished are run again by the next run
+                    logger.warn("The stages did not stop, {} images are not saved", imageNames.size());
+                    return;
+                }
+                commit(imageNames);
+            } catch (IOException e) {
+                logger.error("Images could not be saved: {}", e.getMessage(), e);
+            } catch (InterruptedException e) {
+                logger.warn("Saving the images was interrupted: {}", e.getMessage());
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Task which saves the modified images once their stages have finished
+     */
+    static class ImageSaveTask extends Task<Void> {
+
+        private final ImageSession session;
+
+        private final List<String> imageNames;
+
+        private ImageSaveTask(ImageSession session, List<String> imageNames) {
+            this.session = session;
+            this.imageNames = imageNames;
+        }
+
+        @Override
+        protected Void call() throws Exception {
+            try {
+                session.commit(imageNames);
+            } catch (IOException e) {
+                logger.error("Error with I/O of files: {}", e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+}
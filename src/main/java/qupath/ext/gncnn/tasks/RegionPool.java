@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Pool shared by the stages to read and write the regions of the images in
+ * parallel, e.g. tiles, crops and thumbnails. The stages run on several images
+ * at the same time, so a pool of their own for each image would read as many
+ * regions at once as there are processors for each of them
+ *
+ * @author Israel Mateos Aparicio
+ */
+class RegionPool {
+
+    private static final ThreadPoolExecutor pool = createPool();
+
+    private RegionPool() {
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        int size = Math.max(1, ThreadTools.getParallelism());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), ThreadTools.createThreadFactory("GNCnn-region-", true));
+        // Release the threads when there is nothing to run
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Runs the tasks on the pool and waits for all of them. If one fails or
+     * the thread is interrupted, the rest are cancelled
+     *
+     * @param tasks
+     * @throws IOException          If a task fails
+     * @throws InterruptedException
+     */
+    static void invokeAll(List<Callable<Void>> tasks) throws IOException, InterruptedException {
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (Callable<Void> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.Projects;
+
+/**
+ * Project or image processed by a run, and the directory its outputs are
+ * written to. The tasks read them from here instead of from the QuPath GUI, so
+ * the same stages can run without a GUI
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class RunContext {
+
+    private final QuPathGUI qupath;
+
+    private final Project<BufferedImage> project;
+
+    private final String baseDir;
+
+    private RunContext(QuPathGUI qupath, Project<BufferedImage> project, String baseDir) {
+        this.qupath = qupath;
+        this.project = project;
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Returns the context of a run started from the GUI, i.e. the project or
+     * image open in QuPath
+     *
+     * @param qupath
+     * @return Run context
+     */
+    public static RunContext of(QuPathGUI qupath) {
+        return new RunContext(qupath, null, null);
+    }
+
+    /**
+     * Returns the context of a run on a project, without a GUI
+     *
+     * @param project
+     * @return Run context
+     */
+    public static RunContext of(Project<BufferedImage> project) {
+        return new RunContext(null, project, Projects.getBaseDirectory(project).getAbsolutePath());
+    }
+
+    /**
+     * Returns the context of a run on a project, without a GUI, which writes
+     * its outputs to another directory, e.g. a worker of a sharded job which
+     * must not write to a shared project
+     *
+     * @param project
+     * @param baseDir
+     * @return Run context
+     */
+    public static RunContext of(Project<BufferedImage> project, String baseDir) {
+        return new RunContext(null, project, baseDir);
+    }
+
+    /**
+     * @return Project of the run, or null if a single image is open
+     */
+    public Project<BufferedImage> getProject() {
+        return qupath != null ? qupath.getProject() : project;
+    }
+
+    /**
+     * @return Image open in QuPath, used when there is no project
+     */
+    public ImageData<BufferedImage> getImageData() {
+        return qupath != null ? qupath.getImageData() : null;
+    }
+
+    /**
+     * @return Base directory of the project or the image, where the outputs
+     *         are written
+     */
+    public String getBaseDir() {
+        return qupath != null ? Utils.getBaseDir(qupath) : baseDir;
+    }
+}
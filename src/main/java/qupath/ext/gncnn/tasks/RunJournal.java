@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * Persistent record of the stages finished for each image, and of the
+ * temporary files they left for the next stage. It is kept in the project
+ * directory, so a cancelled or failed run can be resumed without repeating
+ * the finished work, and a later run only repeats the stages whose inputs
+ * changed.
+ *
+ * Each record is a fingerprint of the stage for the image: the settings of
+ * the stage (parameters and models), the inputs it read from the image (e.g.
+ * the annotations it exported) and the record of the previous stage it
+ * followed. The image itself is identified by the URIs and sizes of its files,
+ * and all its records are dropped when they change. A stage is run again when
+ * its fingerprint differs, which in turn invalidates the following stages
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class RunJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunJournal.class);
+
+    /**
+     * Stages in the order they are run for an image
+     */
+    public static final List<String> STAGES = List.of(
+            TissueDetectionTask.class.getSimpleName(),
+            TilerTask.class.getSimpleName(),
+            GlomerulusDetectionTask.class.getSimpleName(),
+            AnnotationExportTask.class.getSimpleName(),
+            ClassificationTask.class.getSimpleName());
+
+    private static final Type JOURNAL_TYPE = new TypeToken<LinkedHashMap<String, ImageRecord>>() {
+    }.getType();
+
+    private final Path path;
+
+    // Image name -> records of the image
+    private Map<String, ImageRecord> images = new LinkedHashMap<>();
+
+    // Records of the current run not saved yet, by image and stage name
+    private final Map<String, Map<String, StageRecord>> pendingRecords = new LinkedHashMap<>();
+
+    // Settings each stage is run with in the current run, by stage name
+    private final Map<String, String> expectedSettings = new LinkedHashMap<>();
+
+    private RunJournal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens the journal of the given base directory, reading the records left
+     * by a previous run if there are any
+     *
+     * @param baseDir
+     * @return Journal of the base directory
+     */
+    public static RunJournal open(String baseDir) {
+        RunJournal journal = new RunJournal(Paths.get(TaskPaths.getRunJournalPath(baseDir)));
+        if (Files.exists(journal.path)) {
+            try (Reader reader = Files.newBufferedReader(journal.path, StandardCharsets.UTF_8)) {
+                Map<String, ImageRecord> images = GsonTools.getInstance().fromJson(reader, JOURNAL_TYPE);
+                if (images != null) {
+                    journal.images = images;
+                }
+                logger.info("Run journal with {} images: {}", journal.images.size(), journal.path);
+            } catch (IOException | JsonParseException e) {
+                logger.warn("Run journal could not be read, starting from scratch: {}", e.getMessage());
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Records the settings a stage is run with in the current run, so the
+     * previous stage knows whether its temporary files will be needed
+     *
+     * @param stage
+     * @param settings Description of the parameters of the stage
+     */
+    public synchronized void expect(String stage, String settings) {
+        expectedSettings.put(stage, settings);
+    }
+
+    /**
+     * Records the fingerprints of the files of the images, dropping the
+     * records of the images whose files changed since they were recorded
+     *
+     * @param sources Fingerprint of the files of each image
+     * @throws IOException
+     */
+    public synchronized void updateSources(Map<String, String> sources) throws IOException {
+        boolean changed = false;
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            ImageRecord image = images.computeIfAbsent(source.getKey(), k -> new ImageRecord());
+            if (source.getValue().equals(image.source)) {
+                continue;
+            }
+            if (image.source != null && !image.getStages().isEmpty()) {
+                logger.info("{} changed since it was last processed, running all its stages again",
+                        source.getKey());
+                image.getStages().clear();
+            }
+            image.source = source.getValue();
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Returns true if the stage was finished for the image with the same
+     * settings, after the current record of the previous stage, and its
+     * temporary files are still there or were already used by the next stage
+     *
+     * @param imageName
+     * @param stage
+     * @param settings  Description of the parameters of the stage
+     * @return True if the stage does not need to be run again for the image
+     */
+    public boolean canSkip(String imageName, String stage, String settings) {
+        return canSkip(imageName, stage, settings, null);
+    }
+
+    /**
+     * Returns true if the stage was finished for the image with the same
+     * settings and inputs, after the current record of the previous stage,
+     * and its temporary files are still there or were already used by the
+     * next stage
+     *
+     * @param imageName
+     * @param stage
+     * @param settings  Description of the parameters of the stage
+     * @param input     Fingerprint of the inputs read from the image, or null
+     * @return True if the stage does not need to be run again for the image
+     */
+    public synchronized boolean canSkip(String imageName, String stage, String settings, String input) {
+        StageRecord record = getRecord(imageName, stage);
+        if (record == null || !settings.equals(record.settings) || !Objects.equals(input, record.input)
+                || !followsPrevious(imageName, stage, record)) {
+            return false;
+        }
+        int next = STAGES.indexOf(stage) + 1;
+        if (next < STAGES.size()) {
+            // The temporary files are not needed if the next stage will be
+            // skipped too
+            String nextStage = STAGES.get(next);
+            StageRecord nextRecord = getRecord(imageName, nextStage);
+            if (nextRecord != null && nextRecord.upstream == record.finished
+                    && nextRecord.settings.equals(expectedSettings.get(nextStage))) {
+                return true;
+            }
+        }
+        return record.artifacts == null
+                || record.artifacts.stream().allMatch(artifact -> new File(artifact).exists());
+    }
+
+    /**
+     * Returns true if the stage was finished for the image, whatever its
+     * settings
+     *
+     * @param imageName
+     * @param stage
+     * @return True if the stage was finished for the image
+     */
+    public synchronized boolean isFinished(String imageName, String stage) {
+        return getRecord(imageName, stage) != null;
+    }
+
+    /**
+     * Records that the stage was finished for the image, and saves the journal
+     *
+     * @param imageName
+     * @param stage
+     * @param settings  Description of the parameters of the stage
+     * @param artifacts Temporary files left for the next stage
+     * @throws IOException
+     */
+    public void markFinished(String imageName, String stage, String settings, Collection<String> artifacts)
+            throws IOException {
+        markFinished(imageName, stage, settings, null, artifacts);
+    }
+
+    /**
+     * Records that the stage was finished for the image, after the current
+     * record of the previous stage, and saves the journal
+     *
+     * @param imageName
+     * @param stage
+     * @param settings  Description of the parameters of the stage
+     * @param input     Fingerprint of the inputs read from the image, or null
+     * @param artifacts Temporary files left for the next stage
+     * @throws IOException
+     */
+    public synchronized void markFinished(String imageName, String stage, String settings, String input,
+            Collection<String> artifacts) throws IOException {
+        StageRecord record = createRecord(imageName, stage, settings, input, artifacts);
+        removePending(imageName, stage);
+        images.computeIfAbsent(imageName, k -> new ImageRecord()).getStages().put(stage, record);
+        save();
+    }
+
+    /**
+     * Records that the stage was finished for the image, after the current
+     * record of the previous stage, without saving it until
+     * {@link #commitPending(String, String)}, e.g. until the changes of the
+     * stage to the image are saved. The next stages of the run already follow
+     * the pending record, so they match it once it is saved
+     *
+     * @param imageName
+     * @param stage
+     * @param settings  Description of the parameters of the stage
+     * @param input     Fingerprint of the inputs read from the image, or null
+     * @param artifacts Temporary files left for the next stage
+     */
+    public synchronized void markPending(String imageName, String stage, String settings, String input,
+            Collection<String> artifacts) {
+        StageRecord record = createRecord(imageName, stage, settings, input, artifacts);
+        pendingRecords.computeIfAbsent(imageName, k -> new LinkedHashMap<>()).put(stage, record);
+    }
+
+    /**
+     * Saves the pending record of the stage for the image, if any
+     *
+     * @param imageName
+     * @param stage
+     * @throws IOException
+     */
+    public synchronized void commitPending(String imageName, String stage) throws IOException {
+        StageRecord record = removePending(imageName, stage);
+        if (record != null) {
+            images.computeIfAbsent(imageName, k -> new ImageRecord()).getStages().put(stage, record);
+            save();
+        }
+    }
+
+    private StageRecord removePending(String imageName, String stage) {
+        Map<String, StageRecord> pending = pendingRecords.get(imageName);
+        if (pending == null) {
+            return null;
+        }
+        StageRecord record = pending.remove(stage);
+        if (pending.isEmpty()) {
+            pendingRecords.remove(imageName);
+        }
+        return record;
+    }
+
+    private StageRecord createRecord(String imageName, String stage, String settings, String input,
+            Collection<String> artifacts) {
+        int previous = STAGES.indexOf(stage) - 1;
+        StageRecord previousRecord = previous >= 0 ? getRecord(imageName, STAGES.get(previous)) : null;
+        StageRecord record = new StageRecord(settings, input, new ArrayList<>(artifacts),
+                previousRecord == null ? 0 : previousRecord.finished);
+        // Two records of an image are never finished at the same time, so a
+        // record always tells which one of the previous stage it followed
+        if (previousRecord != null && record.finished <= previousRecord.finished) {
+            record.finished = previousRecord.finished + 1;
+        }
+        StageRecord oldRecord = getRecord(imageName, stage);
+        if (oldRecord != null && record.finished <= oldRecord.finished) {
+            record.finished = oldRecord.finished + 1;
+        }
+        return record;
+    }
+
+    /**
+     * Forgets that the stage was finished for the image, e.g. because its
+     * results were removed from the image
+     *
+     * @param imageName
+     * @param stage
+     * @throws IOException
+     */
+    public synchronized void invalidate(String imageName, String stage) throws IOException {
+        removePending(imageName, stage);
+        ImageRecord image = images.get(imageName);
+        if (image != null && image.getStages().remove(stage) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Returns true if all the given stages were finished for all the images
+     * with the settings of the current run, each after the current record of
+     * the previous stage, and none of them is still pending
+     *
+     * @param imageNames
+     * @param stages
+     * @return True if there is nothing left to resume
+     */
+    public synchronized boolean isComplete(Collection<String> imageNames, Collection<String> stages) {
+        for (String imageName : imageNames) {
+            Map<String, StageRecord> pending = pendingRecords.getOrDefault(imageName, Map.of());
+            for (String stage : stages) {
+                if (pending.containsKey(stage)) {
+                    return false;
+                }
+                StageRecord record = getRecord(imageName, stage);
+                String expected = expectedSettings.get(stage);
+                if (record == null || (expected != null && !expected.equals(record.settings))
+                        || !followsPrevious(imageName, stage, record)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the record of a stage was finished after the current
+     * record of the previous stage, or the previous stage was not recorded
+     * for the image, e.g. because its annotations were drawn by hand
+     *
+     * @param imageName
+     * @param stage
+     * @param record
+     * @return True if the previous stage was not run again since the record
+     */
+    private boolean followsPrevious(String imageName, String stage, StageRecord record) {
+        int previous = STAGES.indexOf(stage) - 1;
+        StageRecord previousRecord = previous >= 0 ? getRecord(imageName, STAGES.get(previous)) : null;
+        return previousRecord == null || previousRecord.finished == record.upstream;
+    }
+
+    private StageRecord getRecord(String imageName, String stage) {
+        Map<String, StageRecord> pending = pendingRecords.get(imageName);
+        if (pending != null && pending.containsKey(stage)) {
+            return pending.get(stage);
+        }
+        ImageRecord image = images.get(imageName);
+        return image == null ? null : image.getStages().get(stage);
+    }
+
+    private void save() throws IOException {
+        // Write to a temporary file first, so a crash does not leave a
+        // truncated journal
+        Files.createDirectories(path.getParent());
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            GsonTools.getInstance(true).toJson(images, JOURNAL_TYPE, writer);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Fingerprint of the files of an image, and the stages finished for it
+     */
+    private static class ImageRecord {
+
+        private String source;
+
+        private LinkedHashMap<String, StageRecord> stages;
+
+        private Map<String, StageRecord> getStages() {
+            // Journals written before the images had a fingerprint have no
+            // stages in this form, so they are started from scratch
+            if (stages == null) {
+                stages = new LinkedHashMap<>();
+            }
+            return stages;
+        }
+    }
+
+    /**
+     * Stage finished for an image
+     */
+    private static class StageRecord {
+
+        private String settings;
+
+        private String input;
+
+        private List<String> artifacts;
+
+        // Time the record of the previous stage was finished, if any
+        private long upstream;
+
+        private long finished;
+
+        private StageRecord(String settings, String input, List<String> artifacts, long upstream) {
+            this.settings = settings;
+            this.input = input;
+            this.artifacts = artifacts;
+            this.upstream = upstream;
+            this.finished = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,573 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.tasks.BatchRunner.BatchResult;
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.io.GsonTools;
+import qupath.lib.io.PathIO;
+import qupath.lib.io.PathIO.GeoJsonExportOptions;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Job which splits the images of a project into work units, processed by
+ * several workers, e.g. on several machines sharing the job directory. The
+ * workers only read the project: each one writes the annotations of the
+ * images it processed to result files, which a single merge step applies to
+ * the image hierarchies of the project, so they are never written by two
+ * processes at once.
+ *
+ * The job directory contains:
+ *
+ * <pre>
+ * job.json                  project, stages and work units
+ * leases/unit-N.G.lease     lease of unit N, generation G
+ * results/image.geojson     annotations of an image after the stages
+ * done/unit-N.json          results of a finished unit
+ * merged/image              images whose results are in the project
+ * work/worker/              temporary files and journal of a worker
+ * </pre>
+ *
+ * A worker claims a unit by creating the lease file of its next generation,
+ * which only one worker can do, and keeps it alive by touching it. A lease not
+ * touched for the lease time, e.g. because its worker crashed, is stale, and
+ * the unit can be claimed again with the next generation. A worker only writes
+ * the results of a unit while its generation is the last one.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class ShardedJob {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedJob.class);
+
+    /**
+     * Environment variable with the ID of a worker started by
+     * {@link #workLocal(Path, int)}
+     */
+    public static final String WORKER_ID_VARIABLE = "GNCNN_WORKER_ID";
+
+    public static final int DEFAULT_UNIT_SIZE = 10;
+
+    public static final long DEFAULT_LEASE_SECONDS = 600;
+
+    private static final String JOB_FILE = "job.json";
+
+    private static final String LEASES_FOLDER = "leases";
+
+    private static final String RESULTS_FOLDER = "results";
+
+    private static final String DONE_FOLDER = "done";
+
+    private static final String MERGED_FOLDER = "merged";
+
+    private static final String WORK_FOLDER = "work";
+
+    // Longest wait for the units leased by other workers, in ms
+    private static final long MAX_POLL_MILLIS = 30000;
+
+    /**
+     * Runs the stages on the images of a unit, as
+     * {@link BatchRunner#run(RunContext, ImageSession, List, String, boolean)}
+     */
+    interface UnitRunner {
+        BatchResult run(RunContext context, ImageSession session, List<String> images, String stages,
+                boolean multiclass) throws IOException, InterruptedException;
+    }
+
+    private ShardedJob() {
+    }
+
+    /**
+     * Writes the spec of a job which processes images of a project in units
+     *
+     * @param jobDir
+     * @param projectPath  Path of the project file
+     * @param images       Names of the images, without extension
+     * @param stages       all, detection or classification
+     * @param multiclass   Whether to classify the glomeruli into the 12
+     *                     classes
+     * @param unitSize     Number of images of each unit
+     * @param leaseSeconds Time after which the lease of a unit is stale if
+     *                     its worker does not renew it
+     * @throws IOException If the job directory already has a job
+     */
+    public static void plan(Path jobDir, String projectPath, List<String> images, String stages,
+            boolean multiclass, int unitSize, long leaseSeconds) throws IOException {
+        Path jobFile = jobDir.resolve(JOB_FILE);
+        if (Files.exists(jobFile)) {
+            throw new IOException("There is already a job in " + jobDir);
+        }
+        JobSpec spec = new JobSpec();
+        spec.project = new File(projectPath).getAbsolutePath();
+        spec.stages = stages;
+        spec.multiclass = multiclass;
+        spec.leaseSeconds = leaseSeconds;
+        for (int i = 0; i < images.size(); i += unitSize) {
+            spec.units.add(new ArrayList<>(images.subList(i, Math.min(images.size(), i + unitSize))));
+        }
+        for (String folder : List.of(LEASES_FOLDER, RESULTS_FOLDER, DONE_FOLDER, MERGED_FOLDER, WORK_FOLDER)) {
+            Files.createDirectories(jobDir.resolve(folder));
+        }
+        writeJson(jobFile, spec);
+        logger.info("Planned {} units of up to {} images in {}", spec.units.size(), unitSize, jobDir);
+    }
+
+    /**
+     * Processes the units of a job until every unit is done, or the remaining
+     * ones failed in this worker
+     *
+     * @param jobDir
+     * @param workerId ID of the worker, or null to use the host name and the
+     *                 process ID
+     * @return True if every unit processed by this worker was complete
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static boolean work(Path jobDir, String workerId) throws IOException, InterruptedException {
+        return work(jobDir, workerId, BatchRunner::run);
+    }
+
+    /**
+     * Processes the units of a job with the given runner until every unit is
+     * done, or the remaining ones failed in this worker
+     *
+     * @param jobDir
+     * @param workerId ID of the worker, or null to use the host name and the
+     *                 process ID
+     * @param runner   Runner of the stages on the images of each unit
+     * @return True if every unit processed by this worker was complete
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static boolean work(Path jobDir, String workerId, UnitRunner runner) throws IOException, InterruptedException {
+        JobSpec spec = readJson(jobDir.resolve(JOB_FILE), JobSpec.class);
+        if (workerId == null) {
+            workerId = InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+        }
+        Project<BufferedImage> project = ProjectIO.loadProject(new File(spec.project), BufferedImage.class);
+        String baseDir = jobDir.resolve(WORK_FOLDER).resolve(workerId).toString();
+        long leaseMillis = spec.leaseSeconds * 1000;
+        logger.info("Worker {} processing {} units of {}", workerId, spec.units.size(), spec.project);
+
+        Set<Integer> failed = new HashSet<>();
+        boolean complete = true;
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(
+                ThreadTools.createThreadFactory("GNCnn-lease-", true));
+        try {
+            while (true) {
+                boolean claimed = false;
+                boolean pending = false;
+                for (int unit = 0; unit < spec.units.size(); unit++) {
+                    if (isDone(jobDir, unit) || failed.contains(unit)) {
+                        continue;
+                    }
+                    Optional<Lease> lease = Lease.claim(jobDir, unit, workerId, leaseMillis);
+                    if (lease.isEmpty()) {
+                        pending = true;
+                        continue;
+                    }
+                    // Another worker may have finished the unit since it was
+                    // checked, and released its lease
+                    if (isDone(jobDir, unit)) {
+                        lease.get().release();
+                        continue;
+                    }
+                    claimed = true;
+                    long renewMillis = Math.max(1000, leaseMillis / 4);
+                    var renewal = heartbeat.scheduleAtFixedRate(lease.get()::renew, renewMillis, renewMillis,
+                            TimeUnit.MILLISECONDS);
+                    try {
+                        if (!processUnit(jobDir, spec, unit, project, baseDir, lease.get(), runner)) {
+                            failed.add(unit);
+                            complete = false;
+                        }
+                    } finally {
+                        renewal.cancel(false);
+                        lease.get().release();
+                    }
+                }
+                if (!pending) {
+                    break;
+                }
+                if (!claimed) {
+                    // Wait for the other workers, or for their leases to be
+                    // stale
+                    Thread.sleep(Math.min(MAX_POLL_MILLIS, Math.max(1000, leaseMillis / 2)));
+                }
+            }
+        } finally {
+            heartbeat.shutdownNow();
+        }
+        logger.info("Worker {} finished [failed units={}]", workerId, failed.size());
+        return complete;
+    }
+
+    /**
+     * Processes the units of a job with several worker processes on this
+     * machine, started with the same command line as this process
+     *
+     * @param jobDir
+     * @param workers Number of worker processes
+     * @return True if every worker finished its units
+     * @throws IOException          If the worker processes cannot be started
+     * @throws InterruptedException
+     */
+    public static boolean workLocal(Path jobDir, int workers) throws IOException, InterruptedException {
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        if (info.command().isEmpty() || info.arguments().isEmpty()) {
+            throw new IOException("The command line of this process is not available to start the workers");
+        }
+        List<String> command = new ArrayList<>();
+        command.add(info.command().get());
+        command.addAll(List.of(info.arguments().get()));
+
+        String host = InetAddress.getLocalHost().getHostName();
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                ProcessBuilder pb = new ProcessBuilder(command).inheritIO();
+                pb.environment().put(WORKER_ID_VARIABLE, host + "-" + ProcessHandle.current().pid() + "-" + i);
+                processes.add(pb.start());
+            }
+            logger.info("Started {} workers for {}", workers, jobDir);
+            boolean complete = true;
+            for (Process process : processes) {
+                complete &= process.waitFor() == BatchRunner.EXIT_OK;
+            }
+            return complete;
+        } finally {
+            processes.forEach(Process::destroy);
+        }
+    }
+
+    /**
+     * Applies the results of the finished units to the project, each image
+     * once. The annotations of the results replace those with the same ID in
+     * the image hierarchy, the rest are added, and the glomeruli of earlier
+     * runs which are not in the results are removed
+     *
+     * @param jobDir
+     * @return True if every unit is done and merged
+     * @throws IOException
+     */
+    public static boolean merge(Path jobDir) throws IOException {
+        JobSpec spec = readJson(jobDir.resolve(JOB_FILE), JobSpec.class);
+        Project<BufferedImage> project = ProjectIO.loadProject(new File(spec.project), BufferedImage.class);
+        Map<String, ProjectImageEntry<BufferedImage>> entries = new HashMap<>();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            entries.putIfAbsent(GeneralTools.stripExtension(entry.getImageName()), entry);
+        }
+
+        boolean complete = true;
+        int merged = 0;
+        for (int unit = 0; unit < spec.units.size(); unit++) {
+            if (!isDone(jobDir, unit)) {
+                complete = false;
+                continue;
+            }
+            for (String imageName : spec.units.get(unit)) {
+                Path results = getResultsPath(jobDir, imageName);
+                Path marker = jobDir.resolve(MERGED_FOLDER).resolve(imageName);
+                if (!Files.exists(results) || (Files.exists(marker)
+                        && Files.getLastModifiedTime(marker).compareTo(Files.getLastModifiedTime(results)) >= 0)) {
+                    continue;
+                }
+                ProjectImageEntry<BufferedImage> entry = entries.get(imageName);
+                if (entry == null) {
+                    logger.warn("Image {} not found in the project", imageName);
+                    continue;
+                }
+                mergeImage(entry, PathIO.readObjects(results.toFile()));
+                Files.write(marker, new byte[0]);
+                Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+                merged++;
+            }
+        }
+        logger.info("Merged the results of {} images into {}", merged, spec.project);
+        return complete;
+    }
+
+    /**
+     * Replaces the annotations of an image with the same ID as the given ones,
+     * and adds the rest, saving the image. The glomeruli of the pipeline which
+     * are not among the given annotations are from an earlier run, and are
+     * removed, while other annotations, e.g. drawn by hand, are kept
+     *
+     * @param entry
+     * @param annotations All the annotations of the image after the stages
+     * @throws IOException
+     */
+    private static void mergeImage(ProjectImageEntry<BufferedImage> entry, List<PathObject> annotations)
+            throws IOException {
+        ImageData<BufferedImage> imageData = entry.readImageData();
+        try {
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+            Set<String> ids = new HashSet<>();
+            for (PathObject annotation : annotations) {
+                ids.add(annotation.getID().toString());
+            }
+            List<PathObject> replaced = new ArrayList<>();
+            for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+                if (ids.contains(annotation.getID().toString())) {
+                    replaced.add(annotation);
+                }
+            }
+            hierarchy.removeObjects(replaced, true);
+            int stale = GlomerulusDetectionTask.replaceGlomeruli(hierarchy, annotations);
+            entry.saveImageData(imageData);
+            logger.info("Merged {} annotations into {} [replaced={},removed={}]", annotations.size(),
+                    entry.getImageName(), replaced.size(), stale);
+        } finally {
+            try {
+                imageData.getServer().close();
+            } catch (Exception e) {
+                logger.warn("Image {} could not be closed: {}", entry.getImageName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the stages on the images of a unit, writing the annotations of each
+     * image to its result file and the results of the unit to its done file,
+     * while the lease is held
+     *
+     * @param jobDir
+     * @param spec
+     * @param unit
+     * @param project
+     * @param baseDir Directory of the temporary files of the worker
+     * @param lease
+     * @param runner
+     * @return True if every stage was finished for every image of the unit
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static boolean processUnit(Path jobDir, JobSpec spec, int unit, Project<BufferedImage> project,
+            String baseDir, Lease lease, UnitRunner runner) throws IOException, InterruptedException {
+        List<String> images = spec.units.get(unit);
+        logger.info("Processing unit {} ({} images)", unit, images.size());
+        // The images are written to result files instead of the project
+        ImageSession session = new ImageSession(project, (imageName, entry, imageData) -> {
+            lease.check();
+            Path results = getResultsPath(jobDir, imageName);
+            Path tmpPath = results.resolveSibling(results.getFileName() + "." + lease.workerId + ".tmp");
+            PathIO.exportObjectsAsGeoJSON(tmpPath.toFile(), imageData.getHierarchy().getAnnotationObjects(),
+                    GeoJsonExportOptions.FEATURE_COLLECTION);
+            Files.move(tmpPath, results, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        });
+        // The result is complete once every image is saved, as the stages
+        // recorded as pending until then are saved in the journal along with
+        // the images
+        BatchResult result = runner.run(RunContext.of(project, baseDir), session, images, spec.stages,
+                spec.multiclass);
+        if (!result.isComplete()) {
+            logger.warn("Unit {} did not finish for every image, it is left for another run", unit);
+            return false;
+        }
+        lease.check();
+        writeJson(getDonePath(jobDir, unit), result);
+        // The journal of the worker is not needed once the unit is done
+        Utils.deleteFolder(new File(baseDir));
+        logger.info("Unit {} done", unit);
+        return true;
+    }
+
+    private static boolean isDone(Path jobDir, int unit) {
+        return Files.exists(getDonePath(jobDir, unit));
+    }
+
+    private static Path getDonePath(Path jobDir, int unit) {
+        return jobDir.resolve(DONE_FOLDER).resolve(String.format("unit-%05d.json", unit));
+    }
+
+    private static Path getResultsPath(Path jobDir, String imageName) {
+        return jobDir.resolve(RESULTS_FOLDER).resolve(imageName + ".geojson");
+    }
+
+    private static <T> T readJson(Path path, Class<T> type) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return GsonTools.getInstance().fromJson(reader, type);
+        }
+    }
+
+    /**
+     * Writes an object as JSON, through a temporary file so other workers
+     * never read a partial file
+     *
+     * @param path
+     * @param object
+     * @throws IOException
+     */
+    private static void writeJson(Path path, Object object) throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            GsonTools.getInstance(true).toJson(object, writer);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Spec of a job, as written to its job file
+     */
+    private static class JobSpec {
+
+        private String project;
+
+        private String stages;
+
+        private boolean multiclass;
+
+        private long leaseSeconds;
+
+        private List<List<String>> units = new ArrayList<>();
+    }
+
+    /**
+     * Lease of a unit held by a worker. Each claim of the unit creates the
+     * lease file of the next generation, so two workers never hold it at once
+     */
+    private static class Lease {
+
+        private final Path path;
+
+        private final Path leasesDir;
+
+        private final String prefix;
+
+        private final int generation;
+
+        private final String workerId;
+
+        private Lease(Path path, Path leasesDir, String prefix, int generation, String workerId) {
+            this.path = path;
+            this.leasesDir = leasesDir;
+            this.prefix = prefix;
+            this.generation = generation;
+            this.workerId = workerId;
+        }
+
+        /**
+         * Claims a unit, if it is not leased or its lease is stale
+         *
+         * @param jobDir
+         * @param unit
+         * @param workerId
+         * @param leaseMillis
+         * @return Lease, or empty if another worker holds the unit
+         * @throws IOException
+         */
+        private static Optional<Lease> claim(Path jobDir, int unit, String workerId, long leaseMillis)
+                throws IOException {
+            Path leasesDir = jobDir.resolve(LEASES_FOLDER);
+            String prefix = String.format("unit-%05d.", unit);
+            int generation = getLastGeneration(leasesDir, prefix);
+            if (generation >= 0) {
+                Path lastPath = leasesDir.resolve(prefix + generation + ".lease");
+                try {
+                    long age = System.currentTimeMillis() - Files.getLastModifiedTime(lastPath).toMillis();
+                    if (age < leaseMillis) {
+                        return Optional.empty();
+                    }
+                    logger.info("Lease {} is stale, claiming it again", lastPath.getFileName());
+                } catch (NoSuchFileException e) {
+                    return Optional.empty();
+                }
+            }
+            Path path = leasesDir.resolve(prefix + (generation + 1) + ".lease");
+            try {
+                Files.write(Files.createFile(path), workerId.getBytes(StandardCharsets.UTF_8));
+            } catch (FileAlreadyExistsException e) {
+                // Another worker claimed it first
+                return Optional.empty();
+            }
+            return Optional.of(new Lease(path, leasesDir, prefix, generation + 1, workerId));
+        }
+
+        private static int getLastGeneration(Path leasesDir, String prefix) throws IOException {
+            int last = -1;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(leasesDir, prefix + "*.lease")) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    try {
+                        last = Math.max(last, Integer.parseInt(
+                                name.substring(prefix.length(), name.length() - ".lease".length())));
+                    } catch (NumberFormatException e) {
+                        logger.warn("Unexpected lease file: {}", name);
+                    }
+                }
+            }
+            return last;
+        }
+
+        /**
+         * Keeps the lease alive
+         */
+        private void renew() {
+            try {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                logger.warn("Lease {} could not be renewed: {}", path.getFileName(), e.getMessage());
+            }
+        }
+
+        /**
+         * Checks that no other worker claimed the unit since, e.g. because
+         * this worker did not renew the lease in time
+         *
+         * @throws IOException If the lease was lost
+         */
+        private void check() throws IOException {
+            if (getLastGeneration(leasesDir, prefix) != generation) {
+                throw new IOException("Lease " + path.getFileName() + " was claimed by another worker");
+            }
+        }
+
+        /**
+         * Makes the lease stale, so the unit can be claimed again if it was
+         * not done
+         */
+        private void release() {
+            try {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(0));
+            } catch (IOException e) {
+                logger.warn("Lease {} could not be released: {}", path.getFileName(), e.getMessage());
+            }
+        }
+    }
+}
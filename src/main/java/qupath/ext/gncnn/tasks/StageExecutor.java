@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Bounded pools to run the tasks of the pipeline, one for each kind of stage:
+ * Java stages, which read and write images, and process stages, which run the
+ * Python commands through the virtual environment.
+ *
+ * Within a pool, the tasks of later stages are run first, so the images
+ * already in the pipeline are finished before new images are started.
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class StageExecutor {
+
+    /**
+     * Kind of work done by a stage, which determines the pool it runs on
+     */
+    public enum StageType {
+        JAVA, PROCESS
+    }
+
+    private final ThreadPoolExecutor javaPool = createPool("GNCnn-java-");
+
+    private final ThreadPoolExecutor processPool = createPool("GNCnn-process-");
+
+    // Keeps the submission order for tasks with the same priority
+    private final AtomicLong sequence = new AtomicLong();
+
+    private static ThreadPoolExecutor createPool(String prefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), ThreadTools.createThreadFactory(prefix, true));
+        // Release the threads when there is nothing to run
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Sets the maximum number of tasks run at the same time in each pool
+     *
+     * @param javaThreads
+     * @param processThreads
+     */
+    public void setConcurrency(int javaThreads, int processThreads) {
+        resize(javaPool, Math.max(1, javaThreads));
+        resize(processPool, Math.max(1, processThreads));
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int size) {
+        // The core size cannot be greater than the maximum size at any time
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Submits a task to the pool of its stage type
+     *
+     * @param type
+     * @param task
+     * @param stageIndex Position of the stage in the pipeline
+     * @param imageIndex Position of the image in the run
+     */
+    public void submit(StageType type, Runnable task, int stageIndex, int imageIndex) {
+        ThreadPoolExecutor pool = type == StageType.JAVA ? javaPool : processPool;
+        pool.execute(new PrioritizedTask(task, stageIndex, imageIndex, sequence.getAndIncrement()));
+    }
+
+    /**
+     * Stops the running tasks and discards the queued ones
+     */
+    public void shutdownNow() {
+        javaPool.shutdownNow();
+        processPool.shutdownNow();
+    }
+
+    /**
+     * Waits for the running tasks to stop after {@link #shutdownNow()}
+     *
+     * @param timeout
+     * @param unit
+     * @return True if both pools terminated before the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return javaPool.awaitTermination(timeout, unit)
+                && processPool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isShutdown() {
+        return javaPool.isShutdown() || processPool.isShutdown();
+    }
+
+    /**
+     * Task ordered by stage (later stages first), then by image and submission
+     * order
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        private final Runnable task;
+
+        private final int stageIndex;
+
+        private final int imageIndex;
+
+        private final long sequence;
+
+        private PrioritizedTask(Runnable task, int stageIndex, int imageIndex, long sequence) {
+            this.task = task;
+            this.stageIndex = stageIndex;
+            this.imageIndex = imageIndex;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (stageIndex != other.stageIndex) {
+                return Integer.compare(other.stageIndex, stageIndex);
+            }
+            if (imageIndex != other.imageIndex) {
+                return Integer.compare(imageIndex, other.imageIndex);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
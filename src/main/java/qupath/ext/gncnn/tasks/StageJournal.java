@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.entities.ProgressListener;
+
+/**
+ * Records of one stage in the run journal, as each stage task keeps them:
+ * whether an image can be skipped because a previous run already finished the
+ * stage for it, and that the stage was finished for an image, either at once
+ * or once the image is saved
+ *
+ * @author Israel Mateos Aparicio
+ */
+class StageJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(StageJournal.class);
+
+    private final RunJournal journal;
+
+    private final String stage;
+
+    private final String skipMessage;
+
+    private final Supplier<String> settings;
+
+    private final ProgressListener progressListener;
+
+    /**
+     * Creates the records of a stage, and tells the journal the settings the
+     * stage runs with
+     *
+     * @param journal
+     * @param stage            Name of the stage
+     * @param skipMessage      Message logged when an image is skipped, with a
+     *                         placeholder for the image name
+     * @param settings         Description of the parameters of the stage
+     * @param progressListener Progress updated when an image is skipped
+     */
+    StageJournal(RunJournal journal, String stage, String skipMessage, Supplier<String> settings,
+            ProgressListener progressListener) {
+        this.journal = journal;
+        this.stage = stage;
+        this.skipMessage = skipMessage;
+        this.settings = settings;
+        this.progressListener = progressListener;
+        journal.expect(stage, settings.get());
+    }
+
+    /**
+     * Returns true if the stage was already finished for the image by a
+     * previous run, updating the progress in that case
+     *
+     * @param imageName
+     * @return True if the image can be skipped
+     */
+    boolean canSkip(String imageName) {
+        return canSkip(imageName, null);
+    }
+
+    /**
+     * Returns true if the stage was already finished for the image with the
+     * same inputs by a previous run, updating the progress in that case
+     *
+     * @param imageName
+     * @param input     Fingerprint of the inputs read from the image, or null
+     * @return True if the image can be skipped
+     */
+    boolean canSkip(String imageName, String input) {
+        if (isUpToDate(imageName, input)) {
+            logger.info(skipMessage, imageName);
+            progressListener.updateProgress();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the stage was already finished for the image by a
+     * previous run, without updating the progress
+     *
+     * @param imageName
+     * @return True if the stage does not need to be run again for the image
+     */
+    boolean isUpToDate(String imageName) {
+        return isUpToDate(imageName, null);
+    }
+
+    private boolean isUpToDate(String imageName, String input) {
+        return journal.canSkip(imageName, stage, settings.get(), input);
+    }
+
+    /**
+     * Records that the stage was finished for the image
+     *
+     * @param imageName
+     * @param artifacts Temporary files left for the next stage
+     * @throws IOException
+     */
+    void markFinished(String imageName, Collection<String> artifacts) throws IOException {
+        markFinished(imageName, null, artifacts);
+    }
+
+    /**
+     * Records that the stage was finished for the image with the given inputs
+     *
+     * @param imageName
+     * @param input     Fingerprint of the inputs read from the image, or null
+     * @param artifacts Temporary files left for the next stage
+     * @throws IOException
+     */
+    void markFinished(String imageName, String input, Collection<String> artifacts) throws IOException {
+        journal.markFinished(imageName, stage, settings.get(), input, artifacts);
+    }
+
+    /**
+     * Records that the stage was finished for the image once the session
+     * saves it, as the stage modified it. The next stages already follow the
+     * record
+     *
+     * @param session
+     * @param imageName
+     */
+    void markFinishedOnSave(ImageSession session, String imageName) {
+        journal.markPending(imageName, stage, settings.get(), null, List.of());
+        session.saveLater(imageName, () -> journal.commitPending(imageName, stage));
+    }
+}
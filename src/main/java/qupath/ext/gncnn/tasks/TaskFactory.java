@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.util.List;
+
+import javafx.collections.ObservableList;
+import qupath.ext.gncnn.GNCnnPreferences;
+import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.tasks.GlomerulusDetectionTask.TileSource;
+
+/**
+ * Creates the task of each stage of a run, with the parameters of the
+ * extension and the preferences, so runs started from the GUI and headless
+ * runs process the images the same way
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TaskFactory {
+
+    // Side of the tiles given to the glomerulus detector, in full-resolution
+    // pixels
+    private static final int TILE_SIZE = 4096;
+
+    // Shortest side of the images given to the glomerulus detector
+    // (MIN_SIZE_TEST of Detectron2)
+    private static final int DETECTOR_INPUT_SIZE = 800;
+
+    // Sclerotic vs. non-sclerotic classifier, which the crops are exported
+    // for
+    private static final String BINARY_CLASSIFIER = "swin_transformer";
+
+    private final RunContext context;
+
+    private final ImageSession session;
+
+    private final RunJournal journal;
+
+    public TaskFactory(RunContext context, ImageSession session, RunJournal journal) {
+        this.context = context;
+        this.session = session;
+        this.journal = journal;
+    }
+
+    /**
+     * Creates the task to apply the threshold to separate the foreground from
+     * the background
+     * 
+     * @param selectedImages
+     * @param progressListener
+     * @return Tissue detection task
+     */
+    public TissueDetectionTask createTissueDetectionTask(ObservableList<String> selectedImages,
+            ProgressListener progressListener) {
+        return new TissueDetectionTask(context, selectedImages, 20, session, journal, progressListener);
+    }
+
+    /**
+     * Creates the task to tile each WSI and save the tiles in a temporary folder
+     * 
+     * @param selectedImages
+     * @param progressListener
+     * @return Tiler task
+     */
+    public TilerTask createTilerTask(ObservableList<String> selectedImages, ProgressListener progressListener) {
+        int modelInputSize = GNCnnPreferences.modelResolutionTilingProperty().get() ? DETECTOR_INPUT_SIZE : 0;
+        // At most half a tile, so the tiles still advance when they are
+        // resized to the detector resolution
+        int overlap = Math.max(0, Math.min(GNCnnPreferences.tileOverlapProperty().get(), TILE_SIZE / 2));
+        return new TilerTask(context, selectedImages, TILE_SIZE, overlap, 1, ".jpeg", modelInputSize,
+                GNCnnPreferences.detectorPixelSizeProperty().get(),
+                GNCnnPreferences.minTissueCoverageProperty().get(), GNCnnPreferences.tilePrefilterProperty().get(),
+                getTileSource() != TileSource.FILES, session, journal, progressListener);
+    }
+
+    /**
+     * Creates the task to detect glomeruli in the WSI patches
+     * 
+     * @param selectedImages
+     * @param progressListener
+     * @return Glomerulus detection task
+     */
+    public GlomerulusDetectionTask createGlomerulusDetectionTask(ObservableList<String> selectedImages,
+            ProgressListener progressListener) {
+        return new GlomerulusDetectionTask(context, selectedImages, "cascade_R_50_FPN_1x", "external", 1,
+                getTileSource(), GNCnnPreferences.detectorBatchSizeProperty().get(),
+                GNCnnPreferences.mergeDetectionsProperty().get(), GNCnnPreferences.candidateCascadeProperty().get(),
+                GNCnnPreferences.detectionCacheSizeProperty().get(), session, journal, progressListener);
+    }
+
+    /**
+     * Returns where the detector reads the tiles from, according to the
+     * preferences. Shared memory is preferred, as the tiles are read ahead of
+     * the detector
+     * 
+     * @return Tile source
+     */
+    static TileSource getTileSource() {
+        if (GNCnnPreferences.sharedMemoryTilesProperty().get()) {
+            return TileSource.RING_BUFFER;
+        }
+        if (GNCnnPreferences.regionServerProperty().get()) {
+            return TileSource.REGION_SERVER;
+        }
+        return TileSource.FILES;
+    }
+
+    /**
+     * Creates the task to export the annotations of each WSI to images
+     * 
+     * @param selectedImages
+     * @param progressListener
+     * @return Annotation export task
+     */
+    public AnnotationExportTask createAnnotationExportTask(List<String> selectedImages,
+            ProgressListener progressListener) {
+        String classifier = GNCnnPreferences.classifierResolutionExportProperty().get() ? BINARY_CLASSIFIER : null;
+        return new AnnotationExportTask(context, selectedImages, 300, 1,
+                GNCnnPreferences.cropPaddingMicronsProperty().get(), classifier,
+                GNCnnPreferences.regionServerProperty().get(), GNCnnPreferences.cropFormatProperty().get(),
+                (float) GNCnnPreferences.cropQualityProperty().get(), session, journal, progressListener);
+    }
+
+    /**
+     * Creates the task to classify annotated glomeruli
+     * 
+     * @param selectedImages
+     * @param multiclass
+     * @param progressListener
+     * @return Classification task
+     */
+    public ClassificationTask createClassificationTask(List<String> selectedImages, Boolean multiclass,
+            ProgressListener progressListener) {
+        if (multiclass) {
+            return new ClassificationTask(context, selectedImages, BINARY_CLASSIFIER, "convnext",
+                    GNCnnPreferences.regionServerProperty().get(), GNCnnPreferences.classifierBatchSizeProperty().get(),
+                    session, journal, progressListener);
+        }
+        return new ClassificationTask(context, selectedImages, BINARY_CLASSIFIER,
+                GNCnnPreferences.regionServerProperty().get(), GNCnnPreferences.classifierBatchSizeProperty().get(),
+                session, journal, progressListener);
+    }
+}
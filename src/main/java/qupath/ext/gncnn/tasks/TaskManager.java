@@ -6,11 +6,15 @@ package qupath.ext.gncnn.tasks;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,29 +30,40 @@ import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
+import qupath.ext.gncnn.GNCnnPreferences;
 import qupath.ext.gncnn.entities.ProgressListener;
+import qupath.ext.gncnn.env.PythonWorker;
+import qupath.ext.gncnn.env.RegionServer;
+import qupath.ext.gncnn.env.VirtualEnvironment;
+import qupath.ext.gncnn.tasks.StageExecutor.StageType;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.fx.dialogs.Dialogs;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.events.PathObjectSelectionModel;
-import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.scripting.QP;
 
 public class TaskManager {
 
     private static final Logger logger = LoggerFactory.getLogger(TaskManager.class);
 
+    // Longest wait for the cancelled stages to stop before saving the images
+    private static final long STOP_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
     private QuPathGUI qupath;
 
     private final ExecutorService pool = Executors
             .newSingleThreadExecutor(ThreadTools.createThreadFactory("GNCnn", true));
 
+    // Stage-typed pools used when running in pipeline mode
+    private StageExecutor stageExecutor;
+
     private final HashMap<String, String> PROGRESS_MESSAGES = new HashMap<String, String>() {
         {
             put("TissueDetectionTask", "Detecting tissue...");
@@ -56,6 +71,7 @@ public class TaskManager {
             put("GlomerulusDetectionTask", "Detecting glomeruli... (this may take a while)");
             put("AnnotationExportTask", "Exporting glomerular annotations...");
             put("ClassificationTask", "Classifying glomeruli...");
+            put("ImageSaveTask", "Saving images...");
         }
     };
 
@@ -73,6 +89,18 @@ public class TaskManager {
 
     private double progressStep = 0;
 
+    // Journal of the stages finished for each image of the current run
+    private RunJournal journal;
+
+    // Images of the project read by the stages of the current run
+    private ImageSession session;
+
+    private TaskFactory taskFactory;
+
+    private List<String> runImages = new ArrayList<>();
+
+    private List<String> runStages = new ArrayList<>();
+
     public TaskManager(QuPathGUI qupath) {
         this.qupath = qupath;
 
@@ -120,6 +148,13 @@ public class TaskManager {
         if (currentTasks.isEmpty()) {
             return null;
         }
+        // In pipeline mode several tasks are queued at once, so prefer the
+        // first one which is actually running
+        for (Task<?> task : currentTasks) {
+            if (task.getState() == Worker.State.RUNNING) {
+                return task.getClass().getSimpleName();
+            }
+        }
         return currentTasks.get(0).getClass().getSimpleName();
     }
 
@@ -129,6 +164,61 @@ public class TaskManager {
      * @param task
      */
     private void submitTask(Task<?> task) {
+        configureTask(task, true);
+        pool.submit(task);
+        currentTasks.add(task);
+    }
+
+    /**
+     * Submits the task of the given stage of a per-image pipeline to the pool
+     * of its stage type. When it succeeds, the next stage of the same image is
+     * submitted; otherwise, the remaining stages of the image are cancelled
+     * 
+     * @param stages
+     * @param tasks      Tasks of every stage for the image
+     * @param stageIndex
+     * @param imageIndex
+     * @param imageName
+     */
+    private void submitPipelineTask(List<PipelineStage> stages, List<Task<?>> tasks, int stageIndex,
+            int imageIndex, String imageName) {
+        Task<?> task = tasks.get(stageIndex);
+        if (stageIndex + 1 < tasks.size()) {
+            task.stateProperty().addListener((observable, oldState, newState) -> {
+                if (newState == Worker.State.SUCCEEDED) {
+                    submitPipelineTask(stages, tasks, stageIndex + 1, imageIndex, imageName);
+                } else if (newState == Worker.State.FAILED || newState == Worker.State.CANCELLED) {
+                    logger.warn("Skipping the remaining stages for {} as {} did not finish", imageName,
+                            task.getClass().getSimpleName());
+                    tasks.subList(stageIndex + 1, tasks.size()).forEach(Task::cancel);
+                }
+            });
+        }
+        stageExecutor.submit(stages.get(stageIndex).type, task, stageIndex, imageIndex);
+    }
+
+    /**
+     * Submits the tasks of every stage to the thread pool, followed by the
+     * task which saves the images modified by them
+     * 
+     * @param images
+     * @param tasks  Tasks of the stages, in order
+     */
+    private void submitTasks(List<String> images, List<Task<?>> tasks) {
+        tasks.forEach(this::submitTask);
+        Task<Void> saveTask = session.createSaveTask(images);
+        configureTask(saveTask, false);
+        pool.submit(saveTask);
+        currentTasks.add(saveTask);
+    }
+
+    /**
+     * Sets the handlers of a task and keeps track of it while it is running
+     * 
+     * @param task
+     * @param notify Whether to show a notification when the task succeeds
+     */
+    private void configureTask(Task<?> task, boolean notify) {
         task.setOnSucceeded(e -> {
             if (task instanceof GlomerulusDetectionTask || task instanceof ClassificationTask) {
                 // If there is an image selected, select an object from the
@@ -145,20 +235,86 @@ public class TaskManager {
                     }
                 }
             }
-            logger.info("Task succeeded");
-            Dialogs.showInfoNotification("Task succeeded", task.getClass().getSimpleName() + " succeeded");
+            logger.info("{} succeeded", task.getClass().getSimpleName());
+            if (notify) {
+                Dialogs.showInfoNotification("Task succeeded", task.getClass().getSimpleName() + " succeeded");
+            }
         });
         task.setOnFailed(e -> {
             logger.error("Task failed", e.getSource().getException());
             Dialogs.showErrorMessage("Task failed", e.getSource().getException());
         });
         task.stateProperty().addListener((Observable o) -> {
-            if (task.isDone()) {
-                currentTasks.remove(task);
+            if (task.isDone() && currentTasks.remove(task) && currentTasks.isEmpty()) {
+                finishRun();
             }
         });
-        pool.submit(task);
-        currentTasks.add(task);
+    }
+
+    /**
+     * Starts a new run, opening the journal left by the previous runs so the
+     * finished stages are not repeated for the images which did not change
+     * 
+     * @param images
+     * @param stages Names of the stages run for each image
+     * @throws IOException
+     */
+    private void startRun(List<String> images, List<String> stages) throws IOException {
+        journal = RunJournal.open(Utils.getBaseDir(qupath));
+        session = new ImageSession(qupath.getProject());
+        Map<String, String> sources = session.getSourceFingerprints(images);
+        if (qupath.getProject() == null && qupath.getImageData() != null) {
+            ImageServer<BufferedImage> server = qupath.getImageData().getServer();
+            sources.put(GeneralTools.stripExtension(server.getMetadata().getName()),
+                    ImageSession.getSourceFingerprint(server.getURIs()));
+        }
+        journal.updateSources(sources);
+        taskFactory = new TaskFactory(RunContext.of(qupath), session, journal);
+        runImages = new ArrayList<>(images);
+        runStages = stages;
+        // Each Python process may use all the cores, unless the run is
+        // pipelined
+        VirtualEnvironment.setProcessConcurrency(1);
+    }
+
+    /**
+     * Finishes the current run. If every stage was finished for every image,
+     * the temporary files are deleted; otherwise, they are kept so the run can
+     * be resumed. The journal is kept, so the next run skips the stages whose
+     * inputs did not change
+     */
+    private void finishRun() {
+        // Release the models kept by the Python workers, and the regions
+        // cached for them
+        PythonWorker.shutdownAll();
+        RegionServer.shutdown();
+
+        if (journal == null) {
+            return;
+        }
+        if (journal.isComplete(runImages, runStages)) {
+            // Each task removes the temporary files of the images it has
+            // processed, so only the empty folders are left at this point
+            cleanTemporaryFiles();
+            if (progressListener != null) {
+                progressListener.complete();
+            }
+        } else {
+            logger.warn("The run did not finish for every image; run it again to resume from {}",
+                    TaskPaths.getRunJournalPath(Utils.getBaseDir(qupath)));
+        }
+    }
+
+    /**
+     * Deletes the temporary folder
+     */
+    private void cleanTemporaryFiles() {
+        String outputBaseDir = Utils.getBaseDir(qupath);
+        File tempFolder = new File(QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER));
+        if (tempFolder.exists()) {
+            Utils.deleteFolder(tempFolder);
+        }
+        TissueMask.clearCache();
     }
 
     /**
@@ -170,49 +326,29 @@ public class TaskManager {
     public void cancelAllTasks(ObservableList<String> selectedImages) throws IOException {
         logger.info("Cancelling all tasks");
         pool.shutdownNow();
+        if (stageExecutor != null) {
+            stageExecutor.shutdownNow();
+        }
+        PythonWorker.shutdownAll();
+        RegionServer.shutdown();
         currentTasks.clear();
 
-        // Clean the temporary files
-        logger.info("Cleaning temporary files");
-        String outputBaseDir = Utils.getBaseDir(qupath);
-        File tempFolder = new File(QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER));
-        if (tempFolder.exists()) {
-            Utils.deleteFolder(tempFolder);
+        // The changes of the stages which finished are kept, once the
+        // cancelled ones have stopped
+        if (session != null) {
+            StageExecutor cancelledExecutor = stageExecutor;
+            session.close(() -> {
+                long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+                return pool.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        && (cancelledExecutor == null || cancelledExecutor.awaitTermination(
+                                Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            });
         }
 
-        // Clean the temporary annotations, i.e. "Tissue"
-        logger.info("Cleaning temporary annotations");
-        Project<BufferedImage> project = qupath.getProject();
-        if (project != null) {
-            // Check for "Tissue" annotations in selected images
-            List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
-            for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-                String imageName = GeneralTools.stripExtension(imageEntry.getImageName());
-                if (selectedImages.contains(imageName)) {
-                    ImageData<BufferedImage> imageData = imageEntry.readImageData();
-
-                    // Remove all "Tissue" annotations in the image hierarchy
-                    imageData.getHierarchy().getAnnotationObjects().stream()
-                            .filter(annotation -> annotation.getPathClass().getName().equals("Tissue"))
-                            .forEach(annotation -> imageData.getHierarchy().removeObject(annotation, false));
-
-                    imageEntry.saveImageData(imageData);
-                    logger.info("Removed 'Tissue' annotations from {}", imageEntry.getImageName());
-                }
-            }
-        } else {
-            // Check for "Tissue" annotations in the current image
-            ImageData<BufferedImage> imageData = qupath.getImageData();
-            if (imageData != null) {
-                // Remove all "Tissue" annotations in the image hierarchy
-                imageData.getHierarchy().getAnnotationObjects().stream()
-                        .filter(annotation -> annotation.getPathClass().getName().equals("Tissue"))
-                        .forEach(annotation -> imageData.getHierarchy().removeObject(annotation, false));
-                logger.info("Removed 'Tissue' annotations from {}", imageData.getServer().getMetadata().getName());
-            } else {
-                logger.error("No project or image is open");
-            }
-        }
+        // The temporary files are kept, as the run journal refers to them to
+        // resume the run. The tissue masks are not in the image hierarchies,
+        // so the images are not modified
+        TissueMask.clearCache();
     }
 
     /**
@@ -229,12 +365,30 @@ public class TaskManager {
 
         progressListener = new ProgressListener(progressStep);
         progressProperty.bind(progressListener.progressProperty());
-
-        detectTissue(selectedImages, progressListener);
-        tileWSIs(selectedImages, progressListener);
-        detectGlomeruli(selectedImages, progressListener);
-        exportAnnotations(selectedImages, progressListener);
-        classifyGlomeruli(selectedImages, multiclass, progressListener);
+        startRun(selectedImages, RunJournal.STAGES);
+
+        if (GNCnnPreferences.pipelineModeProperty().get()) {
+            runPipeline(selectedImages, List.of(
+                    new PipelineStage(StageType.JAVA,
+                            images -> taskFactory.createTissueDetectionTask(images, progressListener)),
+                    new PipelineStage(StageType.JAVA,
+                            images -> taskFactory.createTilerTask(images, progressListener)),
+                    new PipelineStage(StageType.PROCESS,
+                            images -> taskFactory.createGlomerulusDetectionTask(images, progressListener)),
+                    new PipelineStage(StageType.JAVA,
+                            images -> taskFactory.createAnnotationExportTask(images, progressListener)),
+                    new PipelineStage(StageType.PROCESS,
+                            images -> taskFactory.createClassificationTask(images, multiclass, progressListener))));
+        } else {
+            // Every task is created before the first one runs, so the journal
+            // knows the settings of every stage
+            submitTasks(selectedImages, List.of(
+                    taskFactory.createTissueDetectionTask(selectedImages, progressListener),
+                    taskFactory.createTilerTask(selectedImages, progressListener),
+                    taskFactory.createGlomerulusDetectionTask(selectedImages, progressListener),
+                    taskFactory.createAnnotationExportTask(selectedImages, progressListener),
+                    taskFactory.createClassificationTask(selectedImages, multiclass, progressListener)));
+        }
     }
 
     /**
@@ -250,10 +404,22 @@ public class TaskManager {
 
         progressListener = new ProgressListener(progressStep);
         progressProperty.bind(progressListener.progressProperty());
-
-        detectTissue(selectedImages, progressListener);
-        tileWSIs(selectedImages, progressListener);
-        detectGlomeruli(selectedImages, progressListener);
+        startRun(selectedImages, RunJournal.STAGES.subList(0, 3));
+
+        if (GNCnnPreferences.pipelineModeProperty().get()) {
+            runPipeline(selectedImages, List.of(
+                    new PipelineStage(StageType.JAVA,
+                            images -> taskFactory.createTissueDetectionTask(images, progressListener)),
+                    new PipelineStage(StageType.JAVA,
+                            images -> taskFactory.createTilerTask(images, progressListener)),
+                    new PipelineStage(StageType.PROCESS,
+                            images -> taskFactory.createGlomerulusDetectionTask(images, progressListener))));
+        } else {
+            submitTasks(selectedImages, List.of(
+                    taskFactory.createTissueDetectionTask(selectedImages, progressListener),
+                    taskFactory.createTilerTask(selectedImages, progressListener),
+                    taskFactory.createGlomerulusDetectionTask(selectedImages, progressListener)));
+        }
     }
 
     /**
@@ -270,74 +436,83 @@ public class TaskManager {
 
         progressListener = new ProgressListener(progressStep);
         progressProperty.bind(progressListener.progressProperty());
-
-        exportAnnotations(imgsWithGlomeruli, progressListener);
-        classifyGlomeruli(imgsWithGlomeruli, multiclass, progressListener);
+        startRun(imgsWithGlomeruli, RunJournal.STAGES.subList(3, 5));
+
+        if (GNCnnPreferences.pipelineModeProperty().get()) {
+            runPipeline(imgsWithGlomeruli, List.of(
+                    new PipelineStage(StageType.JAVA,
+                            images -> taskFactory.createAnnotationExportTask(images, progressListener)),
+                    new PipelineStage(StageType.PROCESS,
+                            images -> taskFactory.createClassificationTask(images, multiclass, progressListener))));
+        } else {
+            submitTasks(imgsWithGlomeruli, List.of(
+                    taskFactory.createAnnotationExportTask(imgsWithGlomeruli, progressListener),
+                    taskFactory.createClassificationTask(imgsWithGlomeruli, multiclass, progressListener)));
+        }
     }
 
     /**
-     * Apply the threshold to separate the foreground from the background
+     * Runs the given stages for each image on its own, so an image can be in
+     * one stage while the next image is in the previous one, e.g. an image is
+     * tiled while the previous one is in the glomerulus detector. Java and
+     * process stages run on separate pools, bounded by the preferences. Each
+     * image is saved once its last stage is done, or once a stage fails
      * 
      * @param selectedImages
-     * @param progressListener
-     * @throws IOException
+     * @param stages
      */
-    private void detectTissue(ObservableList<String> selectedImages, ProgressListener progressListener)
-            throws IOException {
-        submitTask(new TissueDetectionTask(qupath, selectedImages, 20, ".jpeg", progressListener));
+    private void runPipeline(List<String> selectedImages, List<PipelineStage> stages) {
+        if (stageExecutor == null || stageExecutor.isShutdown()) {
+            stageExecutor = new StageExecutor();
+        }
+        int javaThreads = GNCnnPreferences.javaThreadsProperty().get();
+        int processThreads = GNCnnPreferences.processThreadsProperty().get();
+        stageExecutor.setConcurrency(javaThreads, processThreads);
+        // Divide the cores between the Python processes run at the same time
+        VirtualEnvironment.setProcessConcurrency(processThreads);
+        logger.info("Running {} stages for {} images in pipeline mode [java={},process={}]", stages.size(),
+                selectedImages.size(), javaThreads, processThreads);
+
+        for (int i = 0; i < selectedImages.size(); i++) {
+            String imageName = selectedImages.get(i);
+            // Create every task beforehand, so the run is not considered
+            // finished between two stages of an image
+            List<Task<?>> tasks = new ArrayList<>();
+            for (PipelineStage stage : stages) {
+                Task<?> task = stage.factory.apply(FXCollections.observableArrayList(imageName));
+                configureTask(task, false);
+                currentTasks.add(task);
+                tasks.add(task);
+            }
+            Task<Void> saveTask = session.createSaveTask(List.of(imageName));
+            configureTask(saveTask, false);
+            currentTasks.add(saveTask);
+            // The remaining stages are cancelled when a stage fails, so the
+            // last one is always done eventually
+            int imageIndex = i;
+            Task<?> lastTask = tasks.get(tasks.size() - 1);
+            lastTask.stateProperty().addListener((observable, oldState, newState) -> {
+                if (lastTask.isDone() && !stageExecutor.isShutdown()) {
+                    stageExecutor.submit(StageType.JAVA, saveTask, stages.size(), imageIndex);
+                }
+            });
+            submitPipelineTask(stages, tasks, 0, i, imageName);
+        }
     }
 
     /**
-     * Tiles each WSI and saves them in a temporary folder
-     * 
-     * @param selectedImages
-     * @param progressListener
-     * @throws IOException // In case there is an issue reading the image
+     * Stage of a per-image pipeline, i.e. the kind of work it does and how to
+     * create its task for an image
      */
-    private void tileWSIs(ObservableList<String> selectedImages, ProgressListener progressListener) throws IOException {
-        submitTask(new TilerTask(qupath, selectedImages, 4096, 2048, 1, ".jpeg", progressListener));
-    }
+    private static class PipelineStage {
 
-    /**
-     * Detects glomeruli in the WSI patches
-     * 
-     * @param selectedImages
-     * @param progressListener
-     * @throws IOException
-     */
-    private void detectGlomeruli(ObservableList<String> selectedImages, ProgressListener progressListener)
-            throws IOException {
-        submitTask(new GlomerulusDetectionTask(qupath, selectedImages, "cascade_R_50_FPN_1x", "external", 1,
-                progressListener));
-    }
+        private final StageType type;
 
-    /**
-     * Exports the annotations of each WSI to images
-     * 
-     * @param selectedImages
-     * @param progressListener
-     */
-    private void exportAnnotations(List<String> selectedImages, ProgressListener progressListener) {
-        submitTask(new AnnotationExportTask(qupath, selectedImages, 300, 1, progressListener));
-    }
+        private final Function<ObservableList<String>, Task<?>> factory;
 
-    /**
-     * Classifies annotated glomeruli
-     * 
-     * @param selectedImages
-     * @param multiclass
-     * @param progressListener
-     * @throws IOException
-     */
-    private void classifyGlomeruli(List<String> selectedImages, Boolean multiclass, ProgressListener progressListener)
-            throws IOException {
-        ClassificationTask classificationTask;
-        if (multiclass) {
-            classificationTask = new ClassificationTask(qupath, selectedImages, "swin_transformer", "convnext",
-                    progressListener);
-        } else {
-            classificationTask = new ClassificationTask(qupath, selectedImages, "swin_transformer", progressListener);
+        private PipelineStage(StageType type, Function<ObservableList<String>, Task<?>> factory) {
+            this.type = type;
+            this.factory = factory;
         }
-        submitTask(classificationTask);
     }
 }
@@ -13,36 +13,55 @@ public class TaskPaths {
 
     public static final String TMP_FOLDER = "Temp";
 
-    public static final String THRESHOLD_COMMAND = "gncnn-threshold";
+    private static final String RUN_JOURNAL_FILE = "gncnn-run-journal.json";
+
+    private static final String CACHE_FOLDER = "gncnn-cache";
+
     public static final String SEGMENT_COMMAND = "gncnn-segment";
     public static final String CLASSIFICATION_COMMAND = "gncnn-classify";
 
-    public static final String LOWRES_OUTPUT_FOLDER = "lowres-output";
-    public static final String THRESHOLD_OUTPUT_FOLDER = "threshold-output";
+    public static final String TISSUE_OUTPUT_FOLDER = "tissue-output";
     public static final String TILER_OUTPUT_FOLDER = "tiler-output";
     public static final String SEGMENT_OUTPUT_FOLDER = "segment-output";
     private static final String ANN_EXPORT_OUTPUT_FOLDER = "ann-export-output";
 
-    private static final String LOWRES_IMAGES_FOLDER = "Images";
-    private static final String THRESHOLD_ANNOTATIONS_FOLDER = "Annotations";
     private static final String TILES_FOLDER = "Tiles";
     private static final String DETECTIONS_FOLDER = "Detections";
     private static final String REPORT_FOLDER = "Report";
     private static final String MODEL_FOLDER = "B-swin_transformer_M-None";
 
-    public static String getLowResOutputDir(String baseDir, String imageName) {
-        return QP.buildFilePath(baseDir, TMP_FOLDER, LOWRES_OUTPUT_FOLDER, LOWRES_IMAGES_FOLDER, imageName);
+    /**
+     * Returns the path to the journal of the stages finished in the current
+     * run. It is kept outside the temporary folder, as it must survive a
+     * cancelled run
+     * 
+     * @param baseDir
+     * @return Path to the run journal
+     */
+    public static String getRunJournalPath(String baseDir) {
+        return QP.buildFilePath(baseDir, RUN_JOURNAL_FILE);
+    }
+
+    /**
+     * Returns the path to the cache of the detections of each tile. It is kept
+     * outside the temporary folder, so later runs can reuse it
+     * 
+     * @param baseDir
+     * @return Path to the detection cache
+     */
+    public static String getDetectionCachePath(String baseDir) {
+        return QP.buildFilePath(baseDir, CACHE_FOLDER, "detections");
     }
 
     /**
-     * Returns the path to the folder where the thresholded images are stored
+     * Returns the path to the tissue mask of an image
      * 
      * @param baseDir
      * @param imageName
-     * @return Path to the folder where the thresholded images are stored
+     * @return Path to the tissue mask
      */
-    public static String getThresholdOutputDir(String baseDir, String imageName) {
-        return QP.buildFilePath(baseDir, TMP_FOLDER, THRESHOLD_OUTPUT_FOLDER, THRESHOLD_ANNOTATIONS_FOLDER, imageName);
+    public static String getTissueMaskPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, TISSUE_OUTPUT_FOLDER, imageName + ".rle");
     }
 
     /**
@@ -56,6 +75,67 @@ public class TaskPaths {
         return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, TILES_FOLDER, imageName);
     }
 
+    /**
+     * Returns the path to the list of tiles of an image, saved instead of the
+     * tiles when they are handed to the detector through shared memory
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the list of tiles
+     */
+    public static String getTileListPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, imageName + ".tiles");
+    }
+
+    /**
+     * Returns the path to the list of the tiles of an image around the
+     * glomerulus candidates, which the detector is run on in the candidate
+     * cascade
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the list of candidate tiles
+     */
+    public static String getCandidateTileListPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, imageName + ".candidates.tiles");
+    }
+
+    /**
+     * Returns the path to the tiles left out by the candidate cascade of an
+     * image which are detected anyway, to estimate its recall
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the audited tiles
+     */
+    public static String getCandidateAuditPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, imageName + ".candidates.audit");
+    }
+
+    /**
+     * Returns the path to the tiles skipped by the prefilter of an image which
+     * are detected anyway, to estimate its recall
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the audited tiles
+     */
+    public static String getPrefilterAuditPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, imageName + ".audit");
+    }
+
+    /**
+     * Returns the path to the ring buffer the tiles of an image are handed to
+     * the detector through
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the ring buffer
+     */
+    public static String getTileRingPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, TILER_OUTPUT_FOLDER, imageName + ".ring");
+    }
+
     /**
      * Returns the path to the folder where the annotations are stored
      * 
@@ -68,15 +148,27 @@ public class TaskPaths {
     }
 
     /**
-     * Returns the path to the threshold results
+     * Returns the path to the list of annotation crops of an image, saved
+     * instead of the crops when the classifier reads them from the region
+     * server
      * 
      * @param baseDir
      * @param imageName
-     * @return Path to the threshold results
+     * @return Path to the list of crops
      */
-    public static String getThresholdResultsPath(String baseDir, String imageName) {
-        return QP.buildFilePath(baseDir, TMP_FOLDER, THRESHOLD_OUTPUT_FOLDER, THRESHOLD_ANNOTATIONS_FOLDER, imageName,
-                "annotations.geojson");
+    public static String getCropListPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, ANN_EXPORT_OUTPUT_FOLDER, imageName + ".crops");
+    }
+
+    /**
+     * Returns the path to the folder where the detection results are stored
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the folder where the detection results are stored
+     */
+    public static String getDetectionOutputDir(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName);
     }
 
     /**
@@ -91,6 +183,31 @@ public class TaskPaths {
                 "detections.geojson");
     }
 
+    /**
+     * Returns the path to the detections of each tile, before they are merged
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the raw detections
+     */
+    public static String getRawDetectionsPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName,
+                "raw-detections.jsonl");
+    }
+
+    /**
+     * Returns the path to the detections of the coarse tiles of the candidate
+     * cascade, kept apart from those of the tiles of the tiler
+     * 
+     * @param baseDir
+     * @param imageName
+     * @return Path to the raw detections of the coarse tiles
+     */
+    public static String getCoarseDetectionsPath(String baseDir, String imageName) {
+        return QP.buildFilePath(baseDir, TMP_FOLDER, SEGMENT_OUTPUT_FOLDER, DETECTIONS_FOLDER, imageName,
+                "coarse-detections.jsonl");
+    }
+
     /**
      * Returns the path to the classification results
      * 
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Prefilter of the tiles with tissue, which skips the tiles unlikely to
+ * contain glomeruli before they reach the detector, e.g. fat, medulla or
+ * capsule. Each tile is scored from a small thumbnail with a linear
+ * combination of colour and texture statistics: the fraction of pixels
+ * stained as nuclei, as glomeruli are the most cellular structures of the
+ * cortex, the mean gradient of the tissue, and the fraction of tissue.
+ *
+ * Every {@value #AUDIT_INTERVAL}th skipped tile is detected anyway, so the
+ * glomeruli found in them give an estimate of the recall lost, logged once
+ * the image is detected.
+ *
+ * @author Israel Mateos Aparicio
+ */
+class TilePrefilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(TilePrefilter.class);
+
+    // Side of the thumbnails the tiles are scored from, in pixels
+    private static final int THUMBNAIL_SIZE = 64;
+
+    // One of this many skipped tiles is detected anyway
+    static final int AUDIT_INTERVAL = 20;
+
+    // Weights of the statistics in the score, set so each of them ranges
+    // about from 0 to 1 in tissue
+    private static final double NUCLEI_WEIGHT = 4.0;
+
+    private static final double TEXTURE_WEIGHT = 8.0;
+
+    private static final double TISSUE_WEIGHT = 0.25;
+
+    // Optical density of the red channel above which a pixel is stained as
+    // a nucleus, i.e. red transmittance below ~30%
+    private static final double NUCLEUS_OPTICAL_DENSITY = 1.2;
+
+    // Pixels above this value in every channel are background or fat
+    private static final int BACKGROUND_LEVEL = 210;
+
+    private final double threshold;
+
+    /**
+     * @param threshold Minimum score of the tiles given to the detector
+     */
+    TilePrefilter(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Scores the tiles in parallel and returns those with a score of at least
+     * the threshold, along with the audited ones, in their order. The audited
+     * tiles are written to the given path
+     *
+     * @param server
+     * @param tiles     Tiles with tissue
+     * @param auditPath
+     * @param imageName
+     * @return Tiles to detect
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    List<RegionRequest> select(ImageServer<BufferedImage> server, List<RegionRequest> tiles, String auditPath,
+            String imageName) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        double[] scores = scoreTiles(server, tiles);
+
+        List<RegionRequest> selected = new ArrayList<>();
+        List<RegionRequest> audited = new ArrayList<>();
+        int skipped = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            if (scores[i] >= threshold) {
+                selected.add(tiles.get(i));
+            } else if (skipped++ % AUDIT_INTERVAL == 0) {
+                selected.add(tiles.get(i));
+                audited.add(tiles.get(i));
+            }
+        }
+        writeAudit(auditPath, skipped, audited);
+
+        double[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        logger.info("Prefilter of {}: skipped {} of {} tiles ({}%), auditing {} of them [threshold={},scores: "
+                + "min={},median={},max={},time={} ms]", imageName, skipped, tiles.size(),
+                GeneralTools.formatNumber(tiles.isEmpty() ? 0 : 100.0 * skipped / tiles.size(), 1),
+                audited.size(), threshold, formatScore(sorted, 0), formatScore(sorted, 0.5),
+                formatScore(sorted, 1), System.currentTimeMillis() - startTime);
+        return selected;
+    }
+
+    /**
+     * Reads a thumbnail of each tile and scores it, in parallel on the pool
+     * shared by the images
+     *
+     * @param server
+     * @param tiles
+     * @return Score of each tile
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static double[] scoreTiles(ImageServer<BufferedImage> server, List<RegionRequest> tiles)
+            throws IOException, InterruptedException {
+        double[] scores = new double[tiles.size()];
+        List<Callable<Void>> reads = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i++) {
+            int index = i;
+            RegionRequest tile = tiles.get(i);
+            reads.add(() -> {
+                double downsample = Math.max(tile.getDownsample(),
+                        (double) Math.max(tile.getWidth(), tile.getHeight()) / THUMBNAIL_SIZE);
+                scores[index] = score(server.readRegion(RegionRequest.createInstance(server.getPath(),
+                        downsample, tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight())));
+                return null;
+            });
+        }
+        RegionPool.invokeAll(reads);
+        return scores;
+    }
+
+    /**
+     * Scores a thumbnail of a tile
+     *
+     * @param image
+     * @return Score, higher for the tiles more likely to contain glomeruli
+     */
+    static double score(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] gray = new int[rgb.length];
+        boolean[] tissue = new boolean[rgb.length];
+        int tissuePixels = 0;
+        int nuclei = 0;
+        for (int i = 0; i < rgb.length; i++) {
+            int r = (rgb[i] >> 16) & 0xff;
+            int g = (rgb[i] >> 8) & 0xff;
+            int b = rgb[i] & 0xff;
+            gray[i] = (r * 299 + g * 587 + b * 114) / 1000;
+            tissue[i] = r < BACKGROUND_LEVEL || g < BACKGROUND_LEVEL || b < BACKGROUND_LEVEL;
+            if (tissue[i]) {
+                tissuePixels++;
+                // Haematoxylin absorbs red more than blue
+                if (-Math.log((r + 1) / 256.0) > NUCLEUS_OPTICAL_DENSITY && b > r) {
+                    nuclei++;
+                }
+            }
+        }
+        if (tissuePixels == 0) {
+            return 0;
+        }
+
+        double gradient = 0;
+        for (int y = 0; y < height - 1; y++) {
+            for (int x = 0; x < width - 1; x++) {
+                int i = y * width + x;
+                if (tissue[i]) {
+                    gradient += Math.abs(gray[i] - gray[i + 1]) + Math.abs(gray[i] - gray[i + width]);
+                }
+            }
+        }
+        double texture = gradient / (2 * 255.0 * tissuePixels);
+        return NUCLEI_WEIGHT * nuclei / tissuePixels + TEXTURE_WEIGHT * texture
+                + TISSUE_WEIGHT * tissuePixels / rgb.length;
+    }
+
+    private static String formatScore(double[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        return GeneralTools.formatNumber(sorted[(int) Math.round(quantile * (sorted.length - 1))], 3);
+    }
+
+    /**
+     * Writes the number of skipped tiles, and the audited ones
+     *
+     * @param path
+     * @param skipped
+     * @param audited
+     * @throws IOException
+     */
+    static void writeAudit(String path, int skipped, List<RegionRequest> audited) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(Integer.toString(skipped));
+        for (RegionRequest tile : audited) {
+            lines.add(TilerTask.formatTile(tile));
+        }
+        Path file = Paths.get(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, lines);
+    }
+
+    /**
+     * Logs an estimate of the glomeruli missed because of a filter of the
+     * tiles, e.g. the prefilter: the glomeruli found only in audited tiles,
+     * scaled by the ratio of skipped to audited tiles
+     *
+     * @param filter       Name of the filter, for the message
+     * @param server
+     * @param auditPath    Audited tiles written by the prefilter
+     * @param tileListPath Tiles detected, or null if they are not listed, in
+     *                     which case every glomerulus in an audited tile counts
+     *                     and the recall logged is only a lower bound
+     * @param glomeruli    Glomeruli detected in the image
+     * @param imageName
+     * @throws IOException
+     */
+    static void logRecall(String filter, ImageServer<BufferedImage> server, String auditPath, String tileListPath,
+            List<PathObject> glomeruli, String imageName) throws IOException {
+        Path path = Paths.get(auditPath);
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(path);
+        if (lines.size() < 2) {
+            return;
+        }
+        int skipped;
+        try {
+            skipped = Integer.parseInt(lines.get(0).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid prefilter audit " + auditPath, e);
+        }
+        List<RegionRequest> audited = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isBlank()) {
+                audited.add(TilerTask.parseTile(server, line, auditPath));
+            }
+        }
+
+        Set<RegionRequest> auditedSet = new HashSet<>(audited);
+        List<RegionRequest> kept = new ArrayList<>();
+        // Without the list of detected tiles, a glomerulus in an audited tile
+        // may also be in an overlapping kept tile, so the glomeruli found only
+        // in audited tiles are overcounted
+        boolean listed = tileListPath != null && Files.exists(Paths.get(tileListPath));
+        if (listed) {
+            for (RegionRequest tile : TilerTask.readTileList(server, tileListPath)) {
+                if (!auditedSet.contains(tile)) {
+                    kept.add(tile);
+                }
+            }
+        }
+
+        int foundInAudited = 0;
+        for (PathObject glomerulus : glomeruli) {
+            ROI roi = glomerulus.getROI();
+            double x = roi.getCentroidX();
+            double y = roi.getCentroidY();
+            if (kept.stream().noneMatch(tile -> tile.contains((int) x, (int) y, 0, 0))
+                    && audited.stream().anyMatch(tile -> tile.contains((int) x, (int) y, 0, 0))) {
+                foundInAudited++;
+            }
+        }
+        // Glomeruli expected in all the skipped tiles, of which those in the
+        // audited ones were detected anyway
+        double inSkipped = foundInAudited * (double) skipped / audited.size();
+        double found = glomeruli.size() - foundInAudited;
+        double recall = found + inSkipped > 0 ? found / (found + inSkipped) : 1.0;
+        logger.info("{} of {}: {} glomeruli found only in {} audited tiles, {} {} missed in the other "
+                + "skipped tiles, estimated recall {} {}", filter, imageName, foundInAudited, audited.size(),
+                listed ? "about" : "at most", GeneralTools.formatNumber(inSkipped - foundInAudited, 1),
+                listed ? "about" : "at least", GeneralTools.formatNumber(recall, 3));
+    }
+}
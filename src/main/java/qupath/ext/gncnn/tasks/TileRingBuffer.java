@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Memory-mapped ring buffer of tiles, which hands the tiles of a WSI to
+ * gncnn-segment as raw pixels, without encoding them to image files.
+ *
+ * The file starts with a header of {@link #HEADER_SIZE} bytes, followed by a
+ * fixed number of slots. Each slot has the region of the tile and its size in
+ * pixels, followed by its 8-bit interleaved BGR pixels. The tiles are written
+ * in order, and a slot is only reused once the reader has consumed the tile in
+ * it, so the writer never runs more than the number of slots ahead of the
+ * detector. All the values are little-endian:
+ *
+ * <pre>
+ * header: int magic, int version, int slots, int tiles, long slot size,
+ *         long tiles written, long tiles read, int state
+ * slot:   int x, int y, int width, int height, int pixel width,
+ *         int pixel height, double downsample, byte[] pixels
+ * </pre>
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TileRingBuffer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileRingBuffer.class);
+
+    /**
+     * Number of slots of the buffer, i.e. maximum number of tiles read ahead
+     * of the detector
+     */
+    public static final int DEFAULT_SLOTS = 8;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int SLOT_HEADER_SIZE = 32;
+
+    private static final int MAGIC = 0x474E5242;
+
+    private static final int VERSION = 1;
+
+    private static final int WRITTEN_OFFSET = 24;
+
+    private static final int READ_OFFSET = 32;
+
+    private static final int STATE_OFFSET = 40;
+
+    private static final int STATE_WRITING = 0;
+
+    private static final int STATE_FINISHED = 1;
+
+    private static final int STATE_ABORTED = 2;
+
+    // Time between checks of the reader progress, in ms
+    private static final long POLL_MILLIS = 2;
+
+    // The counters are shared with another process, so they are written with
+    // release semantics and read with acquire semantics
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int slots;
+
+    private final long slotSize;
+
+    private final int tileCount;
+
+    private TileRingBuffer(Path path, FileChannel channel, MappedByteBuffer buffer, int slots, long slotSize,
+            int tileCount) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slots = slots;
+        this.slotSize = slotSize;
+        this.tileCount = tileCount;
+    }
+
+    /**
+     * Creates the buffer file for the given tiles, replacing any previous one
+     *
+     * @param path
+     * @param tiles Tile requests, in full-resolution coordinates
+     * @param slots Maximum number of slots
+     * @return Ring buffer, ready to be written
+     * @throws IOException
+     */
+    public static TileRingBuffer create(String path, List<RegionRequest> tiles, int slots) throws IOException {
+        long maxPixels = 0;
+        for (RegionRequest tile : tiles) {
+            // One extra pixel in each dimension, as the size of the image read
+            // is rounded
+            long width = (long) Math.ceil(tile.getWidth() / tile.getDownsample()) + 1;
+            long height = (long) Math.ceil(tile.getHeight() / tile.getDownsample()) + 1;
+            maxPixels = Math.max(maxPixels, width * height);
+        }
+        // Slots are aligned to 8 bytes, so the reader can view their headers
+        long slotSize = (SLOT_HEADER_SIZE + maxPixels * 3 + 7) / 8 * 8;
+        // A mapped buffer cannot be larger than 2 GB
+        long maxSlots = (Integer.MAX_VALUE - HEADER_SIZE) / slotSize;
+        if (maxSlots < 1) {
+            throw new IOException("Tiles of " + maxPixels + " pixels are too large for a ring buffer");
+        }
+        int ringSlots = (int) Math.max(1, Math.min(Math.min(slots, maxSlots), Math.max(1, tiles.size())));
+
+        Path file = Paths.get(path);
+        Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + ringSlots * slotSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, ringSlots);
+            buffer.putInt(12, tiles.size());
+            buffer.putLong(16, slotSize);
+            buffer.putLong(WRITTEN_OFFSET, 0);
+            buffer.putLong(READ_OFFSET, 0);
+            INTS.setRelease(buffer, STATE_OFFSET, STATE_WRITING);
+            return new TileRingBuffer(file, channel, buffer, ringSlots, slotSize, tiles.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String getPath() {
+        return path.toString();
+    }
+
+    /**
+     * Reads the tiles from the image and writes them in order, waiting for a
+     * free slot when the reader is behind. The buffer is marked as finished
+     * once all the tiles are written, or as aborted if a tile cannot be read
+     *
+     * @param server
+     * @param tiles  Same tiles the buffer was created for
+     * @throws IOException
+     * @throws InterruptedException If interrupted while waiting for the reader
+     */
+    public void writeTiles(ImageServer<BufferedImage> server, List<RegionRequest> tiles)
+            throws IOException, InterruptedException {
+        if (tiles.size() != tileCount) {
+            throw new IllegalArgumentException("Expected " + tileCount + " tiles, got " + tiles.size());
+        }
+        try {
+            long waits = 0;
+            for (int i = 0; i < tileCount; i++) {
+                // Read the tile before waiting, so it is ready when the slot
+                // is freed
+                BufferedImage img = server.readRegion(tiles.get(i));
+                while (i - (long) LONGS.getAcquire(buffer, READ_OFFSET) >= slots) {
+                    waits++;
+                    Thread.sleep(POLL_MILLIS);
+                }
+                writeSlot(i % slots, tiles.get(i), img);
+                LONGS.setRelease(buffer, WRITTEN_OFFSET, (long) i + 1);
+            }
+            INTS.setRelease(buffer, STATE_OFFSET, STATE_FINISHED);
+            logger.debug("{} tiles written to {}, waited {} ms for the detector", tileCount, path.getFileName(),
+                    waits * POLL_MILLIS);
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            INTS.setRelease(buffer, STATE_OFFSET, STATE_ABORTED);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a tile in a slot
+     *
+     * @param slot
+     * @param tile
+     * @param img
+     * @throws IOException If the tile does not fit in the slot
+     */
+    private void writeSlot(int slot, RegionRequest tile, BufferedImage img) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int size = width * height * 3;
+        if (SLOT_HEADER_SIZE + (long) size > slotSize) {
+            throw new IOException("Tile of " + width + "x" + height + " pixels does not fit in the ring buffer");
+        }
+
+        int offset = (int) (HEADER_SIZE + slot * slotSize);
+        buffer.putInt(offset, tile.getX());
+        buffer.putInt(offset + 4, tile.getY());
+        buffer.putInt(offset + 8, tile.getWidth());
+        buffer.putInt(offset + 12, tile.getHeight());
+        buffer.putInt(offset + 16, width);
+        buffer.putInt(offset + 20, height);
+        buffer.putDouble(offset + 24, tile.getDownsample());
+        buffer.put(offset + SLOT_HEADER_SIZE, Utils.toBGR(img), 0, size);
+    }
+
+    /**
+     * Releases the file and deletes it. The file may be kept until QuPath
+     * exits on systems which do not delete mapped files
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        File file = path.toFile();
+        if (!file.delete() && file.exists()) {
+            logger.debug("Ring buffer {} is still mapped, it will be deleted on exit", file);
+            file.deleteOnExit();
+        }
+    }
+}
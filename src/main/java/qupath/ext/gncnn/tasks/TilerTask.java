@@ -4,8 +4,14 @@
 package qupath.ext.gncnn.tasks;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,15 +21,26 @@ import javafx.concurrent.Task;
 import qupath.ext.gncnn.entities.ProgressListener;
 import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.writers.TileExporter;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.writers.ImageWriterTools;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * Class to tile the WSI into the given size patches and save them in a
- * temporary folder
+ * temporary folder. Only the tiles with enough tissue, according to the
+ * tissue mask of the image, are saved. Optionally, the tiles unlikely to
+ * contain glomeruli are skipped too (see {@link TilePrefilter}).
+ *
+ * If the input size of the model is given, the tiles are read at the
+ * resolution the model works at, instead of reading full-resolution tiles
+ * the model resizes anyway: each tile covers the same region of the WSI, but
+ * it is read from the closest pyramid level with the input size of the model.
+ *
+ * If the tiles are not handed to the detector as image files, only the list of
+ * tiles is saved, and the tiles are read while they are detected (see
+ * {@link GlomerulusDetectionTask.TileSource})
  * 
  * @author Israel Mateos Aparicio
  */
@@ -31,7 +48,7 @@ public class TilerTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(TilerTask.class);
 
-    private QuPathGUI qupath;
+    private RunContext context;
 
     private ObservableList<String> selectedImages;
 
@@ -43,30 +60,61 @@ public class TilerTask extends Task<Void> {
 
     private String imageExtension;
 
+    private int modelInputSize;
+
+    private double modelPixelSize;
+
+    private double minTissueCoverage;
+
+    // Minimum prefilter score of the tiles, or 0 to keep every tile with
+    // tissue
+    private double prefilterThreshold;
+
+    private boolean saveTileList;
+
+    private ImageSession session;
+
+    private StageJournal stageJournal;
+
     private ProgressListener progressListener;
 
-    public TilerTask(QuPathGUI quPath, ObservableList<String> selectedImages, int tileSize, int tileOverlap,
-            double downsample, String imageExtension, ProgressListener progressListener) {
-        this.qupath = quPath;
+    public TilerTask(RunContext context, ObservableList<String> selectedImages, int tileSize, int tileOverlap,
+            double downsample, String imageExtension, int modelInputSize, double modelPixelSize,
+            double minTissueCoverage, double prefilterThreshold, boolean saveTileList, ImageSession session,
+            RunJournal journal, ProgressListener progressListener) {
+        this.context = context;
         this.selectedImages = selectedImages;
         this.tileSize = tileSize;
         this.tileOverlap = tileOverlap;
         this.downsample = downsample;
         this.imageExtension = imageExtension;
+        this.modelInputSize = modelInputSize;
+        this.modelPixelSize = modelPixelSize;
+        this.minTissueCoverage = minTissueCoverage;
+        this.prefilterThreshold = prefilterThreshold;
+        this.saveTileList = saveTileList;
+        this.session = session;
         this.progressListener = progressListener;
+        this.stageJournal = new StageJournal(journal, getClass().getSimpleName(),
+                "Tiling of {} already finished, skipping", this::getSettings, progressListener);
     }
 
     @Override
     protected Void call() throws Exception {
         try {
-            Project<BufferedImage> project = qupath.getProject();
-            String outputBaseDir = Utils.getBaseDir(qupath);
+            Project<BufferedImage> project = context.getProject();
+            String outputBaseDir = context.getBaseDir();
             if (project != null) {
-                tileWSIProject(project, outputBaseDir);
+                tileWSIProject(outputBaseDir);
             } else {
-                ImageData<BufferedImage> imageData = qupath.getImageData();
+                ImageData<BufferedImage> imageData = context.getImageData();
                 if (imageData != null) {
+                    String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+                    if (stageJournal.canSkip(imageName)) {
+                        return null;
+                    }
                     tileWSI(imageData, outputBaseDir);
+                    markFinished(imageName, outputBaseDir);
                 } else {
                     logger.error("No image or project is open");
                 }
@@ -81,7 +129,33 @@ public class TilerTask extends Task<Void> {
     }
 
     /**
-     * Tiles the image data and saves the tiles
+     * Returns the description of the parameters of this stage
+     * 
+     * @return Settings of the stage
+     */
+    private String getSettings() {
+        return String.format(
+                "size=%d,overlap=%d,downsample=%s,extension=%s,input=%d,pixel=%s,coverage=%s,prefilter=%s,list=%s",
+                tileSize, tileOverlap, downsample, imageExtension, modelInputSize, modelPixelSize,
+                minTissueCoverage, prefilterThreshold, saveTileList);
+    }
+
+    /**
+     * Records in the run journal that the image was tiled, along with the
+     * folder of its tiles or their list
+     * 
+     * @param imageName
+     * @param outputBaseDir
+     * @throws IOException
+     */
+    private void markFinished(String imageName, String outputBaseDir) throws IOException {
+        stageJournal.markFinished(imageName,
+                List.of(saveTileList ? TaskPaths.getTileListPath(outputBaseDir, imageName)
+                        : TaskPaths.getTilerOutputDir(outputBaseDir, imageName)));
+    }
+
+    /**
+     * Tiles the image data and saves the tiles with enough tissue
      * 
      * @param imageData
      * @param outputBaseDir
@@ -90,7 +164,8 @@ public class TilerTask extends Task<Void> {
      */
     private void tileWSI(ImageData<BufferedImage> imageData, String outputBaseDir)
             throws IOException, InterruptedException {
-        String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+        ImageServer<BufferedImage> server = imageData.getServer();
+        String imageName = GeneralTools.stripExtension(server.getMetadata().getName());
         String outputPath = TaskPaths.getTilerOutputDir(outputBaseDir, imageName);
 
         // Check if the thread has been interrupted before starting the tiling
@@ -98,22 +173,56 @@ public class TilerTask extends Task<Void> {
             throw new InterruptedException();
         }
 
-        // Create the output folder if it does not exist
-        Utils.createFolder(outputPath);
-        logger.info("Tiling {} [size={},overlap={}]", imageName, tileSize, tileOverlap);
-        new TileExporter(imageData)
-                .tileSize(tileSize)
-                .imageExtension(imageExtension)
-                .overlap(tileOverlap)
-                .downsample(downsample)
-                .annotatedTilesOnly(true)
-                .writeTiles(outputPath);
-        logger.info("Tiling of {} finished: {}", imageName, outputPath);
+        String maskPath = TaskPaths.getTissueMaskPath(outputBaseDir, imageName);
+        if (!new File(maskPath).exists()) {
+            throw new IOException("No tissue mask found for " + imageName + ", the tissue must be detected first");
+        }
+        TissueMask mask = TissueMask.load(maskPath);
 
-        // Remove all 'Tissue' annotations in the image hierarchy
-        imageData.getHierarchy().getAnnotationObjects().stream()
-                .filter(annotation -> annotation.getPathClass().getName().equals("Tissue"))
-                .forEach(annotation -> imageData.getHierarchy().removeObject(annotation, false));
+        double tileDownsample = downsample;
+        int size = tileSize;
+        int overlap = tileOverlap;
+        if (modelInputSize > 0) {
+            // Region of the WSI covered by each tile, in full-resolution pixels
+            double field = tileSize * downsample;
+            double pixelSize = server.getPixelCalibration().getAveragedPixelSizeMicrons();
+            if (modelPixelSize > 0 && Double.isFinite(pixelSize) && pixelSize > 0) {
+                field = modelInputSize * modelPixelSize / pixelSize;
+            }
+            tileDownsample = getPyramidDownsample(server, field / modelInputSize);
+            size = (int) Math.round(field / tileDownsample);
+            overlap = (int) Math.round(field * tileOverlap / tileSize / tileDownsample);
+        }
+
+        List<RegionRequest> allTiles = createTileRequests(server, tileDownsample, size, overlap);
+        List<RegionRequest> tiles = new ArrayList<>();
+        for (RegionRequest tile : allTiles) {
+            if (mask.getCoverage(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight()) >= minTissueCoverage) {
+                tiles.add(tile);
+            }
+        }
+        // The mask is kept in the temporary folder in case the run is resumed
+        TissueMask.evict(maskPath);
+
+        logger.info("Tiling {} [size={},overlap={},downsample={}]: {} of {} tiles with tissue coverage >= {}",
+                imageName, size, overlap, tileDownsample, tiles.size(), allTiles.size(), minTissueCoverage);
+        String auditPath = TaskPaths.getPrefilterAuditPath(outputBaseDir, imageName);
+        if (prefilterThreshold > 0) {
+            tiles = new TilePrefilter(prefilterThreshold).select(server, tiles, auditPath, imageName);
+        } else {
+            // Left by a previous run with the prefilter
+            Files.deleteIfExists(Paths.get(auditPath));
+        }
+        if (saveTileList) {
+            // The tiles are read when they are detected
+            outputPath = TaskPaths.getTileListPath(outputBaseDir, imageName);
+            writeTileList(tiles, outputPath);
+        } else {
+            // Create the output folder if it does not exist
+            Utils.createFolder(outputPath);
+            writeTiles(server, tiles, tileDownsample, imageName, outputPath);
+        }
+        logger.info("Tiling of {} finished: {}", imageName, outputPath);
 
         // Check if the thread has been interrupted after tiling the image
         if (Thread.interrupted()) {
@@ -124,28 +233,181 @@ public class TilerTask extends Task<Void> {
         progressListener.updateProgress();
     }
 
+    /**
+     * Returns the downsample of the pyramid level closest to the given one,
+     * if it is within 10%, so the tiles are read without resizing
+     * 
+     * @param server
+     * @param downsample
+     * @return Downsample to read the tiles at
+     */
+    static double getPyramidDownsample(ImageServer<BufferedImage> server, double downsample) {
+        double pyramidDownsample = downsample;
+        // Distance to the closest level found so far, compared to the
+        // requested downsample and not to the chosen one, which would never
+        // leave it
+        double distance = 0.1 * downsample;
+        for (double level : server.getPreferredDownsamples()) {
+            if (Math.abs(level - downsample) <= distance) {
+                pyramidDownsample = level;
+                distance = Math.abs(level - downsample);
+            }
+        }
+        // The model is not given tiles of higher resolution than the WSI
+        return Math.max(1.0, pyramidDownsample);
+    }
+
+    /**
+     * Creates the requests of the tiles covering the whole image, as
+     * TileExporter does: tiles incomplete at the image boundaries are not
+     * included
+     * 
+     * @param server
+     * @param downsample
+     * @param tileSize    In downsampled pixels
+     * @param tileOverlap In downsampled pixels
+     * @return Tile requests, in full-resolution coordinates
+     */
+    private static List<RegionRequest> createTileRequests(ImageServer<BufferedImage> server, double downsample,
+            int tileSize, int tileOverlap) {
+        int width = (int) (server.getWidth() / downsample);
+        int height = (int) (server.getHeight() / downsample);
+        int step = tileSize - tileOverlap;
+
+        List<RegionRequest> requests = new ArrayList<>();
+        for (int y = 0; y + tileSize <= height; y += step) {
+            int yi = (int) Math.round(y * downsample);
+            int hi = (int) Math.round((y + tileSize) * downsample) - yi;
+            for (int x = 0; x + tileSize <= width; x += step) {
+                int xi = (int) Math.round(x * downsample);
+                int wi = (int) Math.round((x + tileSize) * downsample) - xi;
+                requests.add(RegionRequest.createInstance(server.getPath(), downsample, xi, yi, wi, hi));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Writes the regions of the tiles, one per line
+     * 
+     * @param tiles
+     * @param path
+     * @throws IOException
+     */
+    static void writeTileList(List<RegionRequest> tiles, String path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (RegionRequest tile : tiles) {
+            lines.add(formatTile(tile));
+        }
+        Path file = Paths.get(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, lines);
+    }
+
+    /**
+     * Reads the regions of the tiles written by
+     * {@link #writeTileList(List, String)}
+     * 
+     * @param server
+     * @param path
+     * @return Tile requests, in full-resolution coordinates
+     * @throws IOException
+     */
+    static List<RegionRequest> readTileList(ImageServer<BufferedImage> server, String path) throws IOException {
+        List<RegionRequest> tiles = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            if (!line.isBlank()) {
+                tiles.add(parseTile(server, line, path));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Returns the line of a tile in a tile list
+     * 
+     * @param tile
+     * @return Downsample and region of the tile, separated by tabs
+     */
+    static String formatTile(RegionRequest tile) {
+        return String.format("%s\t%d\t%d\t%d\t%d", tile.getDownsample(), tile.getX(), tile.getY(),
+                tile.getWidth(), tile.getHeight());
+    }
+
+    /**
+     * Parses a line written by {@link #formatTile(RegionRequest)}
+     * 
+     * @param server
+     * @param line
+     * @param path   File the line was read from, for the error message
+     * @return Tile request, in full-resolution coordinates
+     * @throws IOException
+     */
+    static RegionRequest parseTile(ImageServer<BufferedImage> server, String line, String path)
+            throws IOException {
+        String[] fields = line.split("\t");
+        try {
+            return RegionRequest.createInstance(server.getPath(), Double.parseDouble(fields[0]),
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid tile in " + path + ": " + line, e);
+        }
+    }
+
+    /**
+     * Writes the tiles in parallel on the pool shared by the images, named
+     * with their coordinates as TileExporter does
+     * 
+     * @param server
+     * @param tiles
+     * @param downsample Downsample of the tiles, written in their names
+     * @param imageName
+     * @param outputPath
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeTiles(ImageServer<BufferedImage> server, List<RegionRequest> tiles, double downsample,
+            String imageName, String outputPath) throws IOException, InterruptedException {
+        List<Callable<Void>> writes = new ArrayList<>();
+        for (RegionRequest tile : tiles) {
+            // The downsample is read back by the detector, so it is written
+            // whatever the locale, with a point as the decimal separator
+            String tileName = String.format("%s [%sx=%d,y=%d,w=%d,h=%d]%s", imageName,
+                    downsample == 1 ? "" : "d=" + Double.toString(downsample) + ",",
+                    tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(), imageExtension);
+            writes.add(() -> {
+                ImageWriterTools.writeImageRegion(server, tile, new File(outputPath, tileName).getPath());
+                return null;
+            });
+        }
+        RegionPool.invokeAll(writes);
+    }
+
     /**
      * Tiles each WSI in a project and saves them in corresponding temporary folders
      * 
-     * @param project
      * @param outputBaseDir
      * @throws IOException
      * @throws InterruptedException
      */
-    private void tileWSIProject(Project<BufferedImage> project, String outputBaseDir)
-            throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
-
+    private void tileWSIProject(String outputBaseDir) throws IOException, InterruptedException {
         logger.info("Tiling {} images in the project [size={},overlap={}]",
                 selectedImages.size(), tileSize, tileOverlap);
         // For each image, tile it and save the tiles in a temporary folder
         // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                tileWSI(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
+        for (String imageName : selectedImages) {
+            if (stageJournal.canSkip(imageName)) {
+                continue;
+            }
+            ImageData<BufferedImage> imageData = session.getImageData(imageName);
+            if (imageData == null) {
+                logger.warn("Image {} not found in the project", imageName);
+                continue;
             }
+            // The image hierarchy is not modified, so it is not saved
+            tileWSI(imageData, outputBaseDir);
+            markFinished(imageName, outputBaseDir);
         }
 
         logger.info("Tiling {} images in the project finished", selectedImages.size());
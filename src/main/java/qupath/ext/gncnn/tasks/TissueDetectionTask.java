@@ -4,32 +4,25 @@
 package qupath.ext.gncnn.tasks;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
+import qupath.ext.gncnn.GNCnnPreferences;
 import qupath.ext.gncnn.entities.ProgressListener;
-import qupath.ext.gncnn.env.VirtualEnvironment;
-import qupath.ext.gncnn.utils.Utils;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.gui.QuPathGUI;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.writers.ImageWriterTools;
-import qupath.lib.io.PathIO;
-import qupath.lib.objects.PathObject;
-import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectImageEntry;
-import qupath.lib.regions.RegionRequest;
-import qupath.lib.scripting.QP;
 
 /**
  * Class to process the images using a thresholding method in order to separate
@@ -39,53 +32,49 @@ public class TissueDetectionTask extends Task<Void> {
 
     private static final Logger logger = LoggerFactory.getLogger(TissueDetectionTask.class);
 
-    private QuPathGUI qupath;
+    private RunContext context;
 
     private ObservableList<String> selectedImages;
 
     private int downsample;
 
-    private String imageExtension;
+    private ImageSession session;
+
+    private StageJournal stageJournal;
 
     private ProgressListener progressListener;
 
-    public TissueDetectionTask(QuPathGUI quPath, ObservableList<String> selectedImages, int downsample,
-            String imageExtension, ProgressListener progressListener) {
-        this.qupath = quPath;
+    public TissueDetectionTask(RunContext context, ObservableList<String> selectedImages, int downsample,
+            ImageSession session, RunJournal journal, ProgressListener progressListener) {
+        this.context = context;
         this.selectedImages = selectedImages;
         this.downsample = downsample;
-        this.imageExtension = imageExtension;
+        this.session = session;
         this.progressListener = progressListener;
+        this.stageJournal = new StageJournal(journal, getClass().getSimpleName(),
+                "Tissue detection for {} already finished, skipping", this::getSettings, progressListener);
     }
 
     @Override
     protected Void call() throws IOException, InterruptedException {
         try {
-            Project<BufferedImage> project = qupath.getProject();
-            String outputBaseDir = Utils.getBaseDir(qupath);
+            Project<BufferedImage> project = context.getProject();
+            String outputBaseDir = context.getBaseDir();
             if (project != null) {
-                detectTissueProject(project, outputBaseDir);
+                detectTissueProject(outputBaseDir);
             } else {
-                ImageData<BufferedImage> imageData = qupath.getImageData();
+                ImageData<BufferedImage> imageData = context.getImageData();
                 if (imageData != null) {
+                    String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
+                    if (stageJournal.canSkip(imageName)) {
+                        return null;
+                    }
                     detectTissue(imageData, outputBaseDir);
+                    markFinished(imageName, outputBaseDir);
                 } else {
                     logger.error("No image or project is open");
                 }
             }
-
-            // Low-resolution images are not needed anymore
-            File lowresOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.LOWRES_OUTPUT_FOLDER));
-            if (lowresOutputFolder.exists())
-                Utils.deleteFolder(lowresOutputFolder);
-
-            // Tissue detections are already added to the image hierarchy, so they
-            // are not needed
-            File thresholdOutputFolder = new File(
-                    QP.buildFilePath(outputBaseDir, TaskPaths.TMP_FOLDER, TaskPaths.THRESHOLD_OUTPUT_FOLDER));
-            if (thresholdOutputFolder.exists())
-                Utils.deleteFolder(thresholdOutputFolder);
         } catch (IOException e) {
             logger.error("Error with I/O of files: {}", e.getMessage(), e);
         } catch (InterruptedException e) {
@@ -95,24 +84,31 @@ public class TissueDetectionTask extends Task<Void> {
         return null;
     }
 
-    private void exportLowResolutionImage(ImageData<BufferedImage> imageData, String outputBaseDir) throws IOException {
-        ImageServer<BufferedImage> server = imageData.getServer();
-        String imageName = GeneralTools.stripExtension(server.getMetadata().getName());
-        String outputPath = TaskPaths.getLowResOutputDir(outputBaseDir, imageName);
-        // Create the output folder if it does not exist
-        Utils.createFolder(outputPath);
-
-        logger.info("Exporting low-res {} [downsample={}]", imageName, downsample);
-        RegionRequest request = RegionRequest.createInstance(server, downsample);
-        outputPath += "/" + imageName + imageExtension;
-        ImageWriterTools.writeImageRegion(server, request, outputPath);
-        logger.info("Low-res exporting of {} finished: {}", imageName, outputPath);
+    /**
+     * Returns the description of the parameters of this stage
+     * 
+     * @return Settings of the stage
+     */
+    private String getSettings() {
+        return "downsample=" + downsample + ",output=mask";
+    }
+
+    /**
+     * Records in the run journal that the tissue was detected in the image,
+     * along with its tissue mask
+     * 
+     * @param imageName
+     * @param outputBaseDir
+     * @throws IOException
+     */
+    private void markFinished(String imageName, String outputBaseDir) throws IOException {
+        stageJournal.markFinished(imageName, List.of(TaskPaths.getTissueMaskPath(outputBaseDir, imageName)));
     }
 
     /**
      * Applies the thresholding algorithm to the image, separating the
-     * foreground from the background, and adds the foreground objects as
-     * annotations to the image hierarchy
+     * foreground from the background, and saves the tissue mask in the
+     * temporary folder. The image hierarchy is not modified
      * 
      * @param imageData
      * @param outputBaseDir
@@ -121,50 +117,25 @@ public class TissueDetectionTask extends Task<Void> {
      */
     private void detectTissue(ImageData<BufferedImage> imageData, String outputBaseDir)
             throws IOException, InterruptedException {
-
-        // Check if the thread has been interrupted before exporting the
+        // Check if the thread has been interrupted before reading the
         // low-resolution image
         if (Thread.interrupted()) {
             throw new InterruptedException();
         }
 
-        exportLowResolutionImage(imageData, outputBaseDir);
-
         String imageName = GeneralTools.stripExtension(imageData.getServer().getMetadata().getName());
-        VirtualEnvironment venv = new VirtualEnvironment(this.getClass().getSimpleName(), progressListener);
+        logger.info("Running thresholding algorithm for {} [downsample={}]", imageName, downsample);
+        long startTime = System.currentTimeMillis();
+        TissueMask mask = TissueDetector.detectTissue(imageData.getServer(), downsample);
 
-        double pixelSize = imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
-
-        // This is the list of commands after the 'python' call
-        List<String> arguments = Arrays.asList(TaskPaths.THRESHOLD_COMMAND, "--wsi", imageName, "--export",
-                QP.buildFilePath(outputBaseDir), "--undersampling", Integer.toString(downsample), "--pixel-size",
-                Double.toString(pixelSize));
-        venv.setArguments(arguments);
-
-        // Check if the thread has been interrupted before starting the process
-        if (Thread.interrupted()) {
-            throw new InterruptedException();
-        }
-
-        // Run the command
-        logger.info("Running thresholding algorithm for {}", imageName);
-        venv.runCommand();
-        logger.info("Thresholding algorithm for {} finished", imageName);
-
-        // Read the annotations from the GeoJSON file
-        String geoJSONPath = TaskPaths.getThresholdResultsPath(outputBaseDir, imageName);
-        List<PathObject> detectedObjects = PathIO.readObjects(Paths.get(geoJSONPath));
-
-        // Check if the thread has been interrupted before adding the detected
-        // objects to the image hierarchy
+        // Check if the thread has been interrupted before saving the mask
         if (Thread.interrupted()) {
             throw new InterruptedException();
         }
 
-        // Add the detected objects to the image hierarchy
-        PathObjectHierarchy hierarchy = imageData.getHierarchy();
-        hierarchy.addObjects(detectedObjects);
-        logger.info("Added {} detected objects to {}", detectedObjects.size(), imageName);
+        mask.save(TaskPaths.getTissueMaskPath(outputBaseDir, imageName));
+        logger.info("Tissue of {} covers {}% of the image, detected in {} ms", imageName,
+                GeneralTools.formatNumber(mask.getCoverage() * 100, 1), System.currentTimeMillis() - startTime);
 
         // Update progress
         progressListener.updateProgress();
@@ -172,25 +143,50 @@ public class TissueDetectionTask extends Task<Void> {
 
     /**
      * Applies the thresholding algorithm to each image in the project, separating
-     * the foreground from the background, and adds the foreground objects as
-     * annotations to each image hierarchy
+     * the foreground from the background, and saves the tissue mask of each
+     * image
      * 
-     * @param project
      * @param outputBaseDir
      * @throws InterruptedException
      * @throws IOException
      */
-    private void detectTissueProject(Project<BufferedImage> project, String outputBaseDir)
-            throws IOException, InterruptedException {
-        List<ProjectImageEntry<BufferedImage>> imageEntryList = project.getImageList();
+    private void detectTissueProject(String outputBaseDir) throws IOException, InterruptedException {
         logger.info("Running tissue detection for {} images", selectedImages.size());
-        // Only process the selected images
-        for (ProjectImageEntry<BufferedImage> imageEntry : imageEntryList) {
-            ImageData<BufferedImage> imageData = imageEntry.readImageData();
-            if (selectedImages.contains(GeneralTools.stripExtension(imageData.getServer().getMetadata().getName()))) {
-                detectTissue(imageData, outputBaseDir);
-                imageEntry.saveImageData(imageData);
+
+        // The images are independent, so they are processed in parallel
+        int nThreads = Math.max(1, Math.min(GNCnnPreferences.javaThreadsProperty().get(), selectedImages.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads,
+                ThreadTools.createThreadFactory("GNCnn-tissue-", true));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            // Only process the selected images
+            for (String imageName : selectedImages) {
+                futures.add(pool.submit(() -> {
+                    if (stageJournal.canSkip(imageName)) {
+                        return null;
+                    }
+                    ImageData<BufferedImage> imageData = session.getImageData(imageName);
+                    if (imageData == null) {
+                        logger.warn("Image {} not found in the project", imageName);
+                        return null;
+                    }
+                    detectTissue(imageData, outputBaseDir);
+                    markFinished(imageName, outputBaseDir);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
             }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
 
         logger.info("Tissue detection for {} images in the project finished", selectedImages.size());
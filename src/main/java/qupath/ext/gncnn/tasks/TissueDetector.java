@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.CHAIN_APPROX_SIMPLE;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_RGB2HSV;
+import static org.bytedeco.opencv.global.opencv_imgproc.FILLED;
+import static org.bytedeco.opencv.global.opencv_imgproc.LINE_8;
+import static org.bytedeco.opencv.global.opencv_imgproc.MORPH_CLOSE;
+import static org.bytedeco.opencv.global.opencv_imgproc.MORPH_ELLIPSE;
+import static org.bytedeco.opencv.global.opencv_imgproc.RETR_EXTERNAL;
+import static org.bytedeco.opencv.global.opencv_imgproc.THRESH_BINARY;
+import static org.bytedeco.opencv.global.opencv_imgproc.THRESH_OTSU;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.tools.OpenCVTools;
+
+/**
+ * Separates the tissue from the background of a WSI, using a low-resolution
+ * version of the whole image: median filtering, saturation channel of HSV,
+ * Otsu's thresholding and morphological closing. Tissue regions are filled,
+ * and the small ones are dropped
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TissueDetector {
+
+    /**
+     * Minimum area of a tissue region, as for a glomerulus
+     */
+    public static final double MIN_AREA_MICRONS = 5000;
+
+    private static final int MEDIAN_KERNEL_SIZE = 11;
+
+    private static final int CLOSING_KERNEL_SIZE = 11;
+
+    private TissueDetector() {
+    }
+
+    /**
+     * Detects the tissue of the image
+     *
+     * @param server
+     * @param downsample Downsample of the image the threshold is computed on
+     * @return Mask of the tissue, at the given downsample
+     * @throws IOException
+     */
+    public static TissueMask detectTissue(ImageServer<BufferedImage> server, double downsample) throws IOException {
+        BufferedImage img = server.readRegion(RegionRequest.createInstance(server, downsample));
+        PixelCalibration calibration = server.getPixelCalibration();
+        // Area of a pixel of the mask, in um^2
+        double pixelArea = calibration.getPixelWidthMicrons() * calibration.getPixelHeightMicrons()
+                * downsample * downsample;
+
+        try (PointerScope scope = new PointerScope()) {
+            Mat mask = fillTissueRegions(createTissueMask(img), pixelArea);
+            byte[] pixels = new byte[mask.rows() * mask.cols()];
+            mask.data().get(pixels);
+            return TissueMask.fromPixels(mask.cols(), mask.rows(), downsample, pixels);
+        }
+    }
+
+    /**
+     * Computes the binary mask of the tissue in a low-resolution image
+     *
+     * @param img
+     * @return Mask with 255 for the tissue and 0 for the background
+     */
+    static Mat createTissueMask(BufferedImage img) {
+        Mat mat = OpenCVTools.imageToMat(img);
+
+        // 1. Median filtering
+        opencv_imgproc.medianBlur(mat, mat, MEDIAN_KERNEL_SIZE);
+
+        // 2. Saturation channel of HSV
+        Mat hsv = new Mat();
+        opencv_imgproc.cvtColor(mat, hsv, COLOR_RGB2HSV);
+        Mat mask = new Mat();
+        opencv_core.extractChannel(hsv, mask, 1);
+
+        // 3. Otsu's thresholding
+        opencv_imgproc.threshold(mask, mask, 0, 255, THRESH_BINARY + THRESH_OTSU);
+
+        // 4. Closing
+        Mat kernel = opencv_imgproc.getStructuringElement(MORPH_ELLIPSE,
+                new Size(CLOSING_KERNEL_SIZE, CLOSING_KERNEL_SIZE));
+        opencv_imgproc.morphologyEx(mask, mask, MORPH_CLOSE, kernel);
+
+        return mask;
+    }
+
+    /**
+     * Fills the external contours of a mask, dropping those with fewer than 3
+     * points or smaller than {@link #MIN_AREA_MICRONS}
+     *
+     * @param mask
+     * @param pixelArea Area of a pixel of the mask, in um^2
+     * @return Mask with the tissue regions filled
+     */
+    private static Mat fillTissueRegions(Mat mask, double pixelArea) {
+        MatVector contours = new MatVector();
+        opencv_imgproc.findContours(mask, contours, new Mat(), RETR_EXTERNAL, CHAIN_APPROX_SIMPLE);
+
+        Mat filled = new Mat(mask.size(), mask.type(), Scalar.all(0));
+        for (long i = 0; i < contours.size(); i++) {
+            Mat contour = contours.get(i);
+            // Areas are not filtered if the pixel size is unknown
+            if (contour.rows() < 3 || opencv_imgproc.contourArea(contour) * pixelArea < MIN_AREA_MICRONS) {
+                continue;
+            }
+            opencv_imgproc.drawContours(filled, contours, (int) i, Scalar.all(255), FILLED, LINE_8, new Mat(),
+                    Integer.MAX_VALUE, new Point());
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Low-resolution binary mask of the tissue of a WSI, kept outside the image
+ * hierarchy. It is stored run-length encoded in the temporary folder, so a
+ * run can be resumed, and cached in memory until the image is tiled
+ *
+ * @author Israel Mateos Aparicio
+ */
+public class TissueMask {
+
+    // Masks already read or written, by path
+    private static final Map<String, TissueMask> cache = new ConcurrentHashMap<>();
+
+    private final int width;
+
+    private final int height;
+
+    private final double downsample;
+
+    private final BitSet bits;
+
+    private TissueMask(int width, int height, double downsample, BitSet bits) {
+        this.width = width;
+        this.height = height;
+        this.downsample = downsample;
+        this.bits = bits;
+    }
+
+    /**
+     * Creates a mask from the pixels of a binary image
+     *
+     * @param width
+     * @param height
+     * @param downsample Downsample of the image with respect to the WSI
+     * @param pixels     Row-major pixels, non-zero for the tissue
+     * @return Tissue mask
+     */
+    public static TissueMask fromPixels(int width, int height, double downsample, byte[] pixels) {
+        BitSet bits = new BitSet(width * height);
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != 0) {
+                bits.set(i);
+            }
+        }
+        return new TissueMask(width, height, downsample, bits);
+    }
+
+    /**
+     * Returns the fraction of a region of the WSI covered by tissue
+     *
+     * @param x      In full-resolution coordinates
+     * @param y      In full-resolution coordinates
+     * @param width  In full-resolution coordinates
+     * @param height In full-resolution coordinates
+     * @return Tissue coverage, between 0 and 1
+     */
+    public double getCoverage(double x, double y, double width, double height) {
+        int x0 = Math.max(0, (int) Math.floor(x / downsample));
+        int y0 = Math.max(0, (int) Math.floor(y / downsample));
+        int x1 = Math.min(this.width, (int) Math.ceil((x + width) / downsample));
+        int y1 = Math.min(this.height, (int) Math.ceil((y + height) / downsample));
+        if (x1 <= x0 || y1 <= y0) {
+            return 0.0;
+        }
+        long tissue = 0;
+        for (int row = y0; row < y1; row++) {
+            int offset = row * this.width;
+            for (int i = bits.nextSetBit(offset + x0); i >= 0 && i < offset + x1; i = bits.nextSetBit(i + 1)) {
+                tissue++;
+            }
+        }
+        return (double) tissue / ((long) (x1 - x0) * (y1 - y0));
+    }
+
+    /**
+     * Returns the fraction of the whole mask covered by tissue
+     *
+     * @return Tissue coverage, between 0 and 1
+     */
+    public double getCoverage() {
+        return width * height == 0 ? 0.0 : (double) bits.cardinality() / ((long) width * height);
+    }
+
+    /**
+     * Writes the mask run-length encoded, and keeps it in memory
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void save(String path) throws IOException {
+        Path file = Paths.get(path);
+        Files.createDirectories(file.getParent());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeDouble(downsample);
+            // Runs alternate between background and tissue, starting with
+            // background
+            int size = width * height;
+            int start = 0;
+            boolean tissue = false;
+            while (start < size) {
+                int end = tissue ? bits.nextClearBit(start) : bits.nextSetBit(start);
+                if (end < 0 || end > size) {
+                    end = size;
+                }
+                out.writeInt(end - start);
+                start = end;
+                tissue = !tissue;
+            }
+        }
+        cache.put(path, this);
+    }
+
+    /**
+     * Returns the mask stored in the given path, from memory if possible
+     *
+     * @param path
+     * @return Tissue mask
+     * @throws IOException
+     */
+    public static TissueMask load(String path) throws IOException {
+        TissueMask mask = cache.get(path);
+        if (mask != null) {
+            return mask;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
+            int width = in.readInt();
+            int height = in.readInt();
+            double downsample = in.readDouble();
+            BitSet bits = new BitSet(width * height);
+            int size = width * height;
+            int start = 0;
+            boolean tissue = false;
+            while (start < size) {
+                int end = start + in.readInt();
+                if (tissue) {
+                    bits.set(start, end);
+                }
+                start = end;
+                tissue = !tissue;
+            }
+            mask = new TissueMask(width, height, downsample, bits);
+        }
+        cache.put(path, mask);
+        return mask;
+    }
+
+    /**
+     * Releases the mask kept in memory, once it is not needed anymore. The
+     * stored mask is kept
+     *
+     * @param path
+     */
+    public static void evict(String path) {
+        cache.remove(path);
+    }
+
+    /**
+     * Releases all the masks kept in memory
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+}
@@ -4,6 +4,7 @@
 package qupath.ext.gncnn.utils;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
@@ -466,4 +467,35 @@ public class Utils {
         }
         return filteredResults;
     }
+
+    /**
+     * Returns the pixels of an RGB image as interleaved 8-bit BGR, the
+     * channel order of OpenCV. The array may be the one backing the image, so
+     * it must not be modified
+     * 
+     * @param img
+     * @return Row-major pixels
+     */
+    public static byte[] toBGR(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        if (img.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && img.getRaster().getDataBuffer() instanceof DataBufferByte
+                && img.getRaster().getParent() == null) {
+            return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        }
+
+        byte[] pixels = new byte[width * height * 3];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            int i = y * width * 3;
+            for (int rgb : row) {
+                pixels[i++] = (byte) rgb;
+                pixels[i++] = (byte) (rgb >> 8);
+                pixels[i++] = (byte) (rgb >> 16);
+            }
+        }
+        return pixels;
+    }
 }
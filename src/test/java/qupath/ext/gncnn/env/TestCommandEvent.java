@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.env;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TestCommandEvent {
+
+    @Test
+    public void test_parsesProgressEvent() {
+        CommandEvent event = CommandEvent.parse(CommandEvent.EVENT_PREFIX
+                + "{\"event\": \"tile\", \"done\": 3, \"total\": 12, \"wsi\": \"image\"}");
+        assertEquals("tile", event.getType());
+        assertTrue(event.hasProgress());
+        assertEquals(0.25, event.getProgress());
+        assertEquals("image", event.getString("wsi", null));
+        assertEquals(3.0, event.getDouble("done", 0));
+    }
+
+    @Test
+    public void test_clampsProgress() {
+        CommandEvent event = CommandEvent.parse(CommandEvent.EVENT_PREFIX
+                + "{\"event\": \"tile\", \"done\": 15, \"total\": 12}");
+        assertEquals(1.0, event.getProgress());
+    }
+
+    @Test
+    public void test_eventWithoutProgress() {
+        CommandEvent event = CommandEvent.parse(CommandEvent.EVENT_PREFIX
+                + "{\"event\": \"wsi\", \"glomeruli\": 7, \"boxes\": [1, 2], \"total\": 0}");
+        assertEquals("wsi", event.getType());
+        assertFalse(event.hasProgress());
+        assertEquals("[1,2]", event.getString("boxes", null));
+        assertEquals("none", event.getString("missing", "none"));
+        // Not a number
+        assertEquals(-1.0, event.getDouble("boxes", -1));
+    }
+
+    @Test
+    public void test_ignoresOtherLines() {
+        assertNull(CommandEvent.parse("Processing tile 3/12"));
+        assertNull(CommandEvent.parse(CommandEvent.EVENT_PREFIX + "{\"done\": 3, \"total\": 12}"));
+        assertNull(CommandEvent.parse(CommandEvent.EVENT_PREFIX + "{\"event\": \"tile\""));
+        assertNull(CommandEvent.parse(CommandEvent.EVENT_PREFIX + "[1, 2]"));
+        assertNull(CommandEvent.parse(CommandEvent.EVENT_PREFIX + "{\"event\": null}"));
+        assertNull(CommandEvent.parse(CommandEvent.EVENT_PREFIX + "{\"event\": {\"type\": \"tile\"}}"));
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import qupath.ext.gncnn.tasks.BatchRunner.BatchResult;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Worker process of {@link TestShardedJob}, which replaces the glomeruli of
+ * each image of its units with a new one, and records each image it processed
+ * by creating a file, which fails if another worker processed it already
+ */
+public class ShardedJobWorker {
+
+    static final String PROCESSED_FOLDER = "processed";
+
+    static final String GLOMERULUS_NAME = "detected";
+
+    public static void main(String[] args) throws Exception {
+        Path jobDir = Paths.get(args[0]);
+        boolean complete = ShardedJob.work(jobDir, args[1],
+                (context, session, images, stages, multiclass) -> run(jobDir, session, images, stages));
+        System.exit(complete ? BatchRunner.EXIT_OK : BatchRunner.EXIT_INCOMPLETE);
+    }
+
+    private static BatchResult run(Path jobDir, ImageSession session, List<String> images, String stages)
+            throws IOException, InterruptedException {
+        Files.createDirectories(jobDir.resolve(PROCESSED_FOLDER));
+        for (String imageName : images) {
+            Files.createFile(jobDir.resolve(PROCESSED_FOLDER).resolve(imageName));
+            ImageData<BufferedImage> imageData = session.getImageData(imageName);
+            PathObjectHierarchy hierarchy = imageData.getHierarchy();
+            List<PathObject> old = new ArrayList<>();
+            for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+                if (BatchRunner.isGlomerulus(annotation)) {
+                    old.add(annotation);
+                }
+            }
+            hierarchy.removeObjects(old, true);
+            PathObject glomerulus = TestShardedJob.createGlomerulus();
+            glomerulus.setName(GLOMERULUS_NAME);
+            hierarchy.addObject(glomerulus);
+            session.saveLater(imageName, () -> {
+            });
+            // Long enough for the other worker to claim the next unit
+            Thread.sleep(500);
+        }
+        session.commit(images);
+        BatchResult result = new BatchResult(jobDir.toString(), List.of());
+        result.setComplete(true);
+        return result;
+    }
+}
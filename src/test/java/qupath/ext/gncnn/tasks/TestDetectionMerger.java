@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.gncnn.tasks.DetectionMerger.Detection;
+import qupath.lib.geom.Point2;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Merges fixed detections, checking that the suppression keeps the same
+ * detections as the NMS of the detector, and that only the parts of a
+ * glomerulus cut by the tiles are stitched
+ */
+public class TestDetectionMerger {
+
+    // NMS_THRESHOLD of gncnn-segment, for both the IoU and the IoM
+    private static final double THRESHOLD = 0.4;
+
+    // Boxes [x1, y1, x2, y2] and scores, with the indices the NMS of the
+    // detector keeps: 1 overlaps 0 (IoU 0.68), 3 contains 0 with a lower
+    // priority, and 5 contains 4, which has a higher score but a lower
+    // score² × area
+    private static final double[][] BOXES = {
+            { 0, 0, 9, 9 },
+            { 1, 1, 10, 10 },
+            { 50, 50, 59, 59 },
+            { 0, 0, 29, 29 },
+            { 100, 100, 109, 109 },
+            { 100, 100, 139, 139 } };
+
+    private static final double[] SCORES = { 0.9, 0.8, 0.5, 0.2, 0.9, 0.5 };
+
+    private static final Set<Integer> KEPT = Set.of(0, 2, 5);
+
+    private static final String NMS_SCRIPT = String.join("\n",
+            "import json, sys",
+            "from gncnn.detection.qupath.nms import nms",
+            "boxes, scores = json.loads(sys.argv[1]), json.loads(sys.argv[2])",
+            "print('kept', *sorted(nms(boxes, scores, " + THRESHOLD + ", " + THRESHOLD + ", return_idxs=True)))");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void test_suppressesAsDetector() {
+        List<Detection> detections = new ArrayList<>();
+        for (int i = 0; i < BOXES.length; i++) {
+            detections.add(createDetection(BOXES[i], SCORES[i], Double.NaN, Double.NaN, false));
+        }
+        List<Detection> kept = new DetectionMerger(THRESHOLD, THRESHOLD).suppress(detections, 1);
+        Set<Integer> keptIndices = new HashSet<>();
+        for (Detection detection : kept) {
+            keptIndices.add(detections.indexOf(detection));
+        }
+        assertEquals(KEPT.size(), kept.size());
+        assertEquals(KEPT, keptIndices);
+    }
+
+    @Test
+    public void test_nmsOfDetectorKeepsSameDetections() throws Exception {
+        String python = System.getProperty("gncnn.python", "python3");
+        assumeTrue(canImportNms(python), "gncnn nms cannot be imported with " + python);
+
+        StringBuilder boxes = new StringBuilder("[");
+        StringBuilder scores = new StringBuilder("[");
+        for (int i = 0; i < BOXES.length; i++) {
+            String separator = i > 0 ? ", " : "";
+            boxes.append(separator).append(String.format("[%s, %s, %s, %s]", BOXES[i][0], BOXES[i][1],
+                    BOXES[i][2], BOXES[i][3]));
+            scores.append(separator).append(SCORES[i]);
+        }
+        Process process = startPython(python, "-c", NMS_SCRIPT, boxes.append("]").toString(),
+                scores.append("]").toString());
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(process.waitFor(2, TimeUnit.MINUTES));
+        assertEquals(0, process.exitValue(), output);
+        Set<Integer> kept = new HashSet<>();
+        for (String line : output.split("\\R")) {
+            if (line.startsWith("kept")) {
+                for (String index : line.substring(4).trim().split(" ")) {
+                    if (!index.isEmpty()) {
+                        kept.add(Integer.parseInt(index));
+                    }
+                }
+            }
+        }
+        assertEquals(KEPT, kept);
+    }
+
+    @Test
+    public void test_mergeDropsSmallGlomeruli() throws IOException {
+        Path path = dir.resolve("raw-detections.jsonl");
+        List<String> lines = new ArrayList<>();
+        lines.add("{\"min_area_um\": 50, \"pixel_size\": 1}");
+        for (int i = 0; i < BOXES.length; i++) {
+            double[] box = BOXES[i];
+            // The glomerulus of the box 2 is below the minimum area
+            double area = i == 2 ? 40 : (box[2] - box[0]) * (box[3] - box[1]);
+            lines.add(String.format("{\"box\": [%s, %s, %s, %s], \"score\": %s, \"area_um\": %s, "
+                    + "\"polygon\": [[%s, %s], [%s, %s], [%s, %s], [%s, %s]]}", box[0], box[1], box[2], box[3],
+                    SCORES[i], area, box[0], box[1], box[2], box[1], box[2], box[3], box[0], box[3]));
+        }
+        Files.write(path, lines, StandardCharsets.UTF_8);
+
+        List<PathObject> glomeruli = new DetectionMerger(THRESHOLD, THRESHOLD).merge(path);
+        assertEquals(KEPT.size() - 1, glomeruli.size());
+    }
+
+    @Test
+    public void test_stitchesPartsCutByTiles() {
+        // Tiles at x = 0 and x = 90, overlapping by 10 pixels, and a
+        // glomerulus wider than the overlap, cut by the edge of both tiles
+        Detection left = createDetection(new double[] { 70, 40, 100, 60 }, 0.9, 0, 0, true);
+        Detection right = createDetection(new double[] { 90, 40, 130, 60 }, 0.8, 90, 0, true);
+
+        List<Detection> kept = new DetectionMerger(THRESHOLD, THRESHOLD).suppress(List.of(left, right), 1);
+        assertEquals(1, kept.size());
+        assertFalse(kept.contains(left));
+        assertFalse(kept.contains(right));
+    }
+
+    @Test
+    public void test_keepsPartsInsideOtherTileApart() {
+        // Tiles at x = 0 and x = 40, overlapping by 60 pixels: the left part
+        // lies inside the right tile, which saw it whole, so the parts are
+        // touching glomeruli rather than one cut by the tiles
+        Detection left = createDetection(new double[] { 85, 40, 100, 60 }, 0.9, 0, 0, true);
+        Detection right = createDetection(new double[] { 95, 40, 140, 60 }, 0.8, 40, 0, true);
+
+        List<Detection> kept = new DetectionMerger(THRESHOLD, THRESHOLD).suppress(List.of(left, right), 1);
+        assertEquals(Set.of(left, right), new HashSet<>(kept));
+    }
+
+    private static Detection createDetection(double[] box, double score, double tileX, double tileY,
+            boolean cut) {
+        List<Point2> polygon = List.of(new Point2(box[0], box[1]), new Point2(box[2] - 1, box[1]),
+                new Point2(box[2] - 1, box[3] - 1), new Point2(box[0], box[3] - 1));
+        double area = (box[2] - box[0]) * (box[3] - box[1]);
+        return new Detection(box[0], box[1], box[2], box[3], score, area, polygon, tileX, tileY, 100, 100, cut);
+    }
+
+    private static boolean canImportNms(String python) throws InterruptedException {
+        try {
+            Process process = startPython(python, "-c", "import gncnn.detection.qupath.nms");
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            return process.waitFor(2, TimeUnit.MINUTES) && process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Process startPython(String... command) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        builder.environment().put("PYTHONPATH", Paths.get("gncnn").toAbsolutePath().toString());
+        return builder.start();
+    }
+}
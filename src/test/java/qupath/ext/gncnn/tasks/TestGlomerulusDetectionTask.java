@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Adds the detections of two runs to the same image, as when the detection is
+ * run again because the image or the settings changed
+ */
+public class TestGlomerulusDetectionTask {
+
+    private static final int GLOMERULI = 3;
+
+    @Test
+    public void test_detectingAgainReplacesGlomeruli() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        // A region drawn by hand
+        hierarchy.addObject(PathObjects.createAnnotationObject(
+                ROIs.createRectangleROI(0, 0, 200, 200, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Tissue")));
+
+        assertEquals(0, GlomerulusDetectionTask.replaceGlomeruli(hierarchy, detect()));
+        // The classification of the first run renames the class of a
+        // glomerulus, and records the probabilities of the classes
+        PathObject classified = hierarchy.getAnnotationObjects().stream()
+                .filter(BatchRunner::isGlomerulus).findFirst().orElseThrow();
+        classified.setPathClass(PathClass.fromString("Sclerotic"));
+        classified.getMeasurementList().put("NoSclerotic-prob", 0.1);
+        assertTrue(ClassificationTask.isClassified(classified));
+
+        assertEquals(GLOMERULI, GlomerulusDetectionTask.replaceGlomeruli(hierarchy, detect()));
+        int glomeruli = 0;
+        int others = 0;
+        for (PathObject annotation : hierarchy.getAnnotationObjects()) {
+            if (BatchRunner.isGlomerulus(annotation)) {
+                glomeruli++;
+            } else {
+                others++;
+            }
+        }
+        assertEquals(GLOMERULI, glomeruli);
+        assertEquals(1, others);
+    }
+
+    private static List<PathObject> detect() {
+        List<PathObject> glomeruli = new ArrayList<>();
+        for (int i = 0; i < GLOMERULI; i++) {
+            glomeruli.add(PathObjects.createAnnotationObject(
+                    ROIs.createEllipseROI(20 + 50 * i, 20, 30, 30, ImagePlane.getDefaultPlane()),
+                    PathClass.fromString("Glomerulus")));
+        }
+        return glomeruli;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.gncnn.entities.ProgressListener;
+
+public class TestRunJournal {
+
+    private static final String IMAGE = "image";
+
+    private static final String TISSUE = RunJournal.STAGES.get(0);
+
+    private static final String TILER = RunJournal.STAGES.get(1);
+
+    private static final String DETECTION = RunJournal.STAGES.get(2);
+
+    private static final String EXPORT = RunJournal.STAGES.get(3);
+
+    private static final String CLASSIFICATION = RunJournal.STAGES.get(4);
+
+    // Fingerprint of the annotations read by the export
+    private static final String ANNOTATIONS = "annotations";
+
+    @TempDir
+    Path baseDir;
+
+    @Test
+    public void test_fullRunIsCompleteAndSkippedNextTime() throws IOException {
+        RunJournal journal = openJournal();
+        runAllStages(journal, true);
+        assertTrue(journal.isComplete(List.of(IMAGE), RunJournal.STAGES));
+
+        RunJournal nextJournal = openJournal();
+        assertTrue(nextJournal.isComplete(List.of(IMAGE), RunJournal.STAGES));
+        for (String stage : RunJournal.STAGES) {
+            assertTrue(nextJournal.canSkip(IMAGE, stage, getSettings(stage), getInput(stage)), stage);
+        }
+    }
+
+    @Test
+    public void test_unsavedImageRedoesFollowingStages() throws IOException {
+        RunJournal journal = openJournal();
+        runAllStages(journal, false);
+        assertFalse(journal.isComplete(List.of(IMAGE), RunJournal.STAGES));
+
+        // The detection was never saved, so it is run again, and the export
+        // does not follow the new record
+        RunJournal nextJournal = openJournal();
+        assertTrue(nextJournal.canSkip(IMAGE, TILER, getSettings(TILER)));
+        assertFalse(nextJournal.canSkip(IMAGE, DETECTION, getSettings(DETECTION)));
+        nextJournal.markPending(IMAGE, DETECTION, getSettings(DETECTION), null, List.of());
+        assertFalse(nextJournal.canSkip(IMAGE, EXPORT, getSettings(EXPORT), ANNOTATIONS));
+        assertFalse(nextJournal.canSkip(IMAGE, CLASSIFICATION, getSettings(CLASSIFICATION)));
+    }
+
+    @Test
+    public void test_changedSettingsRedoFollowingStages() throws IOException {
+        RunJournal journal = openJournal();
+        runAllStages(journal, true);
+
+        RunJournal nextJournal = openJournal();
+        nextJournal.expect(TILER, "tiler-2");
+        assertFalse(nextJournal.canSkip(IMAGE, TILER, "tiler-2"));
+        nextJournal.markFinished(IMAGE, TILER, "tiler-2", List.of());
+        assertFalse(nextJournal.canSkip(IMAGE, DETECTION, getSettings(DETECTION)));
+        assertFalse(nextJournal.isComplete(List.of(IMAGE), RunJournal.STAGES));
+    }
+
+    @Test
+    public void test_deletedArtifactsSkippedOnlyIfNextStageFollows() throws IOException {
+        RunJournal journal = openJournal();
+        runAllStages(journal, true);
+        Files.delete(baseDir.resolve("mask.png"));
+
+        // The tiler already used the mask, so the tissue detection is not
+        // run again to create it
+        RunJournal nextJournal = openJournal();
+        assertTrue(nextJournal.canSkip(IMAGE, TISSUE, getSettings(TISSUE)));
+
+        // The tiler is run again with other settings and needs the mask
+        nextJournal.expect(TILER, "tiler-2");
+        assertFalse(nextJournal.canSkip(IMAGE, TISSUE, getSettings(TISSUE)));
+    }
+
+    @Test
+    public void test_changedInputRedoesStage() throws IOException {
+        RunJournal journal = openJournal();
+        runAllStages(journal, true);
+
+        // The annotations were edited by hand since the export
+        RunJournal nextJournal = openJournal();
+        assertFalse(nextJournal.canSkip(IMAGE, EXPORT, getSettings(EXPORT), "annotations-2"));
+        nextJournal.markFinished(IMAGE, EXPORT, getSettings(EXPORT), "annotations-2", List.of());
+        assertFalse(nextJournal.canSkip(IMAGE, CLASSIFICATION, getSettings(CLASSIFICATION)));
+    }
+
+    @Test
+    public void test_stageJournalSkipsFinishedImages() throws IOException {
+        RunJournal journal = openJournal();
+        runAllStages(journal, false);
+        ProgressListener progress = new ProgressListener(0.5);
+        StageJournal tiler = new StageJournal(journal, TILER, "Skipping {}", () -> getSettings(TILER), progress);
+        StageJournal detection = new StageJournal(journal, DETECTION, "Skipping {}",
+                () -> getSettings(DETECTION), progress);
+
+        // A pending record lets the next stages follow, but the stage is
+        // only skipped by the next run once the image is saved
+        assertTrue(detection.isUpToDate(IMAGE));
+        assertFalse(new StageJournal(openJournal(), DETECTION, "Skipping {}", () -> getSettings(DETECTION),
+                progress).canSkip(IMAGE));
+        assertEquals(0.0, progress.getProgress());
+
+        journal.commitPending(IMAGE, DETECTION);
+        RunJournal nextJournal = openJournal();
+        assertTrue(new StageJournal(nextJournal, DETECTION, "Skipping {}", () -> getSettings(DETECTION),
+                progress).canSkip(IMAGE));
+        assertEquals(0.5, progress.getProgress());
+
+        // Running the tiler again redoes the detection after it
+        assertTrue(tiler.canSkip(IMAGE));
+        tiler.markFinished(IMAGE, List.of());
+        assertEquals(1.0, progress.getProgress());
+        assertFalse(detection.isUpToDate(IMAGE));
+    }
+
+    /**
+     * Records every stage as the tasks of a project run do: the detection and
+     * the classification only once the image is saved, after the following
+     * stage has already run
+     */
+    private void runAllStages(RunJournal journal, boolean saveImage) throws IOException {
+        Path mask = Files.createFile(baseDir.resolve("mask.png"));
+        journal.markFinished(IMAGE, TISSUE, getSettings(TISSUE), List.of(mask.toString()));
+        journal.markFinished(IMAGE, TILER, getSettings(TILER), List.of());
+        journal.markPending(IMAGE, DETECTION, getSettings(DETECTION), null, List.of());
+        journal.markFinished(IMAGE, EXPORT, getSettings(EXPORT), ANNOTATIONS, List.of());
+        journal.markPending(IMAGE, CLASSIFICATION, getSettings(CLASSIFICATION), null, List.of());
+        if (saveImage) {
+            journal.commitPending(IMAGE, DETECTION);
+            journal.commitPending(IMAGE, CLASSIFICATION);
+        }
+    }
+
+    private RunJournal openJournal() {
+        RunJournal journal = RunJournal.open(baseDir.toString());
+        for (String stage : RunJournal.STAGES) {
+            journal.expect(stage, getSettings(stage));
+        }
+        return journal;
+    }
+
+    private static String getSettings(String stage) {
+        return stage + "-settings";
+    }
+
+    private static String getInput(String stage) {
+        return stage.equals(EXPORT) ? ANNOTATIONS : null;
+    }
+}
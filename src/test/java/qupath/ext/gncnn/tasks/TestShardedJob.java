@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServerBuilder.UriImageSupport;
+import qupath.lib.images.servers.ImageServerProvider;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Runs a sharded job with two worker processes on a temporary project, with
+ * a runner which adds a glomerulus to each image instead of running the
+ * stages
+ */
+public class TestShardedJob {
+
+    private static final int IMAGES = 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void test_workersShareUnitsAndMerge() throws Exception {
+        Project<BufferedImage> project = createProject(dir.resolve("project"));
+        List<String> images = new ArrayList<>();
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            images.add(entry.getImageName().replace(".tif", ""));
+            // A region drawn by hand, and a glomerulus of an earlier run
+            ImageData<BufferedImage> imageData = entry.readImageData();
+            imageData.getHierarchy().addObject(PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(0, 0, 10, 10, ImagePlane.getDefaultPlane()),
+                    PathClass.fromString("Tissue")));
+            imageData.getHierarchy().addObject(createGlomerulus());
+            entry.saveImageData(imageData);
+        }
+
+        Path jobDir = dir.resolve("job");
+        ShardedJob.plan(jobDir, project.getPath().toString(), images, "all", false, 1, 2);
+        // A worker crashed while holding the first unit
+        Path crashedLease = jobDir.resolve("leases").resolve("unit-00000.0.lease");
+        Files.writeString(crashedLease, "crashed");
+        Files.setLastModifiedTime(crashedLease, FileTime.fromMillis(0));
+
+        List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            workers.add(new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), ShardedJobWorker.class.getName(),
+                    jobDir.toString(), "worker-" + i).inheritIO().start());
+        }
+        for (Process worker : workers) {
+            assertTrue(worker.waitFor(2, TimeUnit.MINUTES));
+            assertEquals(0, worker.exitValue());
+        }
+
+        // Every unit was processed once, the first one after its lease was
+        // stale
+        for (int unit = 0; unit < IMAGES; unit++) {
+            assertTrue(Files.exists(jobDir.resolve("done").resolve(String.format("unit-%05d.json", unit))));
+        }
+        assertTrue(Files.exists(jobDir.resolve("leases").resolve("unit-00000.1.lease")));
+        List<String> processed;
+        try (var files = Files.list(jobDir.resolve(ShardedJobWorker.PROCESSED_FOLDER))) {
+            processed = files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+        assertEquals(images, processed);
+
+        // A glomerulus added to the project after the workers read it is not
+        // in the results either
+        ProjectImageEntry<BufferedImage> first = project.getImageList().get(0);
+        ImageData<BufferedImage> firstData = first.readImageData();
+        firstData.getHierarchy().addObject(createGlomerulus());
+        first.saveImageData(firstData);
+
+        assertTrue(ShardedJob.merge(jobDir));
+        Project<BufferedImage> merged = ProjectIO.loadProject(project.getPath().toFile(), BufferedImage.class);
+        for (ProjectImageEntry<BufferedImage> entry : merged.getImageList()) {
+            List<PathObject> glomeruli = new ArrayList<>();
+            int tissue = 0;
+            for (PathObject annotation : entry.readHierarchy().getAnnotationObjects()) {
+                if (BatchRunner.isGlomerulus(annotation)) {
+                    glomeruli.add(annotation);
+                } else {
+                    tissue++;
+                }
+            }
+            assertEquals(1, tissue, entry.getImageName());
+            assertEquals(1, glomeruli.size(), entry.getImageName());
+            assertEquals(ShardedJobWorker.GLOMERULUS_NAME, glomeruli.get(0).getName());
+        }
+    }
+
+    static PathObject createGlomerulus() {
+        return PathObjects.createAnnotationObject(
+                ROIs.createEllipseROI(20, 20, 20, 20, ImagePlane.getDefaultPlane()),
+                PathClass.fromString("Glomerulus"));
+    }
+
+    private static Project<BufferedImage> createProject(Path projectDir) throws IOException {
+        Files.createDirectories(projectDir);
+        Project<BufferedImage> project = Projects.createProject(projectDir.toFile(), BufferedImage.class);
+        for (int i = 0; i < IMAGES; i++) {
+            File file = projectDir.resolve("image-" + i + ".tif").toFile();
+            ImageIO.write(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB), "tif", file);
+            UriImageSupport<BufferedImage> support = ImageServerProvider.getPreferredUriImageSupport(
+                    BufferedImage.class, file.getAbsolutePath());
+            ProjectImageEntry<BufferedImage> entry = project.addImage(support.getBuilders().get(0));
+            entry.setImageName(file.getName());
+        }
+        project.syncChanges();
+        return project;
+    }
+}
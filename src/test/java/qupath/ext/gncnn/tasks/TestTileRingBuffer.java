@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2024 Israel Mateos-Aparicio-Ruiz
+ */
+package qupath.ext.gncnn.tasks;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.gncnn.utils.Utils;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Writes tiles to a ring buffer with fewer slots than tiles, and reads them
+ * back as gncnn-segment does, checking that no slot is reused before its tile
+ * is read
+ */
+public class TestTileRingBuffer {
+
+    private static final int SLOTS = 2;
+
+    private static final int TILE_SIZE = 16;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    // Reads the tiles with the reader of gncnn-segment, queueing them ahead
+    // while the first one is processed, so the slots of the queued tiles are
+    // reused by the writer
+    private static final String READER_SCRIPT = String.join("\n",
+            "import hashlib, sys, time, types",
+            "from gncnn.detection.qupath.segment import open_tiles, prefetch",
+            "args = types.SimpleNamespace(ring=sys.argv[1], wsi='image', region_server=False)",
+            "_, tiles = open_tiles(args)",
+            "for i, (name, image, x, y, d) in enumerate(prefetch(tiles, 4)):",
+            "    if i == 0:",
+            "        time.sleep(0.5)",
+            "    print('tile', x, y, hashlib.sha1(image.tobytes()).hexdigest(), flush=True)");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void test_slotsReusedOnlyOnceRead() throws Exception {
+        ImageServer<BufferedImage> server = createServer();
+        List<RegionRequest> tiles = createTiles(server);
+        Path path = dir.resolve("tiles.ring");
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (TileRingBuffer ring = TileRingBuffer.create(path.toString(), tiles, SLOTS);
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(SLOTS, buffer.getInt(8));
+            assertEquals(tiles.size(), buffer.getInt(12));
+            long slotSize = buffer.getLong(16);
+
+            Future<?> written = writer.submit(() -> {
+                ring.writeTiles(server, tiles);
+                return null;
+            });
+            for (int i = 0; i < tiles.size(); i++) {
+                while ((long) LONGS.getAcquire(buffer, 24) <= i) {
+                    Thread.sleep(1);
+                }
+                // Long enough for the writer to overwrite the slot if it did
+                // not wait for the reader
+                Thread.sleep(20);
+                assertTrue((long) LONGS.getAcquire(buffer, 24) - i <= SLOTS);
+
+                RegionRequest tile = tiles.get(i);
+                int offset = (int) (TileRingBuffer.HEADER_SIZE + (i % SLOTS) * slotSize);
+                assertEquals(tile.getX(), buffer.getInt(offset));
+                assertEquals(tile.getY(), buffer.getInt(offset + 4));
+                assertEquals(TILE_SIZE, buffer.getInt(offset + 16));
+                assertEquals(TILE_SIZE, buffer.getInt(offset + 20));
+                byte[] expected = Utils.toBGR(server.readRegion(tile));
+                byte[] pixels = new byte[expected.length];
+                buffer.get(offset + TileRingBuffer.SLOT_HEADER_SIZE, pixels);
+                assertArrayEquals(expected, pixels);
+                LONGS.setRelease(buffer, 32, (long) i + 1);
+            }
+            written.get(10, TimeUnit.SECONDS);
+            // Finished
+            assertEquals(1, buffer.getInt(40));
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_segmentReadsTilesQueuedAhead() throws Exception {
+        String python = System.getProperty("gncnn.python", "python3");
+        assumeTrue(canImportSegment(python), "gncnn-segment cannot be imported with " + python);
+
+        ImageServer<BufferedImage> server = createServer();
+        List<RegionRequest> tiles = createTiles(server);
+        List<String> expected = new ArrayList<>();
+        for (RegionRequest tile : tiles) {
+            byte[] pixels = Utils.toBGR(server.readRegion(tile));
+            expected.add(String.format("tile %d %d %s", tile.getX(), tile.getY(),
+                    HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(pixels))));
+        }
+
+        Path path = dir.resolve("tiles.ring");
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (TileRingBuffer ring = TileRingBuffer.create(path.toString(), tiles, SLOTS)) {
+            Future<?> written = writer.submit(() -> {
+                ring.writeTiles(server, tiles);
+                return null;
+            });
+            Process reader = startPython(python, "-c", READER_SCRIPT, path.toString());
+            List<String> read = new ArrayList<>();
+            try (BufferedReader output = new BufferedReader(
+                    new InputStreamReader(reader.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = output.readLine(); line != null; line = output.readLine()) {
+                    if (line.startsWith("tile ")) {
+                        read.add(line);
+                    }
+                }
+            }
+            assertTrue(reader.waitFor(2, TimeUnit.MINUTES));
+            assertEquals(0, reader.exitValue());
+            written.get(10, TimeUnit.SECONDS);
+            assertEquals(expected, read);
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    /**
+     * Image whose pixels differ in each tile, so a tile read from a reused
+     * slot does not match
+     */
+    private static ImageServer<BufferedImage> createServer() {
+        BufferedImage img = new BufferedImage(4 * TILE_SIZE, 3 * TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, (x / TILE_SIZE * 60) << 16 | (y / TILE_SIZE * 80) << 8 | (x + y) & 0xff);
+            }
+        }
+        return new WrappedBufferedImageServer("image", img);
+    }
+
+    private static List<RegionRequest> createTiles(ImageServer<BufferedImage> server) {
+        List<RegionRequest> tiles = new ArrayList<>();
+        for (int y = 0; y < server.getHeight(); y += TILE_SIZE) {
+            for (int x = 0; x < server.getWidth(); x += TILE_SIZE) {
+                tiles.add(RegionRequest.createInstance(server.getPath(), 1, x, y, TILE_SIZE, TILE_SIZE));
+            }
+        }
+        return tiles;
+    }
+
+    private static boolean canImportSegment(String python) throws InterruptedException {
+        try {
+            Process process = startPython(python, "-c", "import gncnn.detection.qupath.segment");
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            return process.waitFor(2, TimeUnit.MINUTES) && process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Process startPython(String... command) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        builder.environment().put("PYTHONPATH", Paths.get("gncnn").toAbsolutePath().toString());
+        return builder.start();
+    }
+}